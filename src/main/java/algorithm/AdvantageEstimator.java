@@ -0,0 +1,134 @@
+package algorithm;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import org.apache.commons.lang3.Validate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * 广义优势估计(GAE)
+ * rewards、values、masks各自一次性拷贝到JVM，在基础类型数组上完成逆序递推，
+ * 得到的回报和标准化后的优势再各自一次性交给引擎。
+ * <p>
+ * 幕结束处的mask会切断递推，因此各幕可以独立计算。样本数量较多时按幕切分，并行计算各段。
+ *
+ * @author Caojunqi
+ * @date 2021-12-24 10:20
+ */
+public final class AdvantageEstimator {
+
+    /**
+     * 样本数量达到该值时按幕并行计算
+     */
+    private static final int PARALLEL_THRESHOLD = 8192;
+
+    private AdvantageEstimator() {
+    }
+
+    /**
+     * 估计优势，最后一个样本之后的状态价值视为0
+     *
+     * @param values  各状态的价值估计
+     * @param rewards 收益
+     * @param masks   幕是否结束
+     * @return [期望回报, 标准化后的优势]
+     */
+    public static NDList estimate(NDArray values, NDArray rewards, NDArray masks) {
+        return estimate(0, values, rewards, masks.toBooleanArray());
+    }
+
+    /**
+     * 估计优势
+     *
+     * @param lastValue 最后一个样本之后的状态价值，用于未结束的幕自举
+     * @param values    各状态的价值估计
+     * @param rewards   收益
+     * @param masks     幕是否结束
+     * @return [期望回报, 标准化后的优势]
+     */
+    public static NDList estimate(float lastValue, NDArray values, NDArray rewards, boolean[] masks) {
+        float[] valueData = values.toFloatArray();
+        float[] rewardData = rewards.toFloatArray();
+        int n = rewardData.length;
+        Validate.isTrue(valueData.length == n && masks.length == n, "价值、收益、幕结束标记的数量不一致！！");
+
+        float[] advantages = new float[n];
+        gae(rewardData, valueData, masks, lastValue, CommonParameter.GAMMA, CommonParameter.GAE_LAMBDA, advantages);
+
+        float[] returns = new float[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            returns[i] = valueData[i] + advantages[i];
+            sum += advantages[i];
+        }
+        double mean = sum / n;
+        double squareSum = 0;
+        for (int i = 0; i < n; i++) {
+            double diff = advantages[i] - mean;
+            squareSum += diff * diff;
+        }
+        double std = Math.sqrt(squareSum / (n - 1));
+        for (int i = 0; i < n; i++) {
+            advantages[i] = (float) ((advantages[i] - mean) / std);
+        }
+
+        NDManager manager = rewards.getManager();
+        return new NDList(manager.create(returns, values.getShape()), manager.create(advantages, values.getShape()));
+    }
+
+    /**
+     * 在基础类型数组上计算GAE
+     *
+     * @param rewards    收益
+     * @param values     各状态的价值估计
+     * @param masks      幕是否结束
+     * @param lastValue  最后一个样本之后的状态价值
+     * @param gamma      折扣系数
+     * @param lambda     GAE系数
+     * @param advantages 计算结果
+     */
+    public static void gae(float[] rewards, float[] values, boolean[] masks, float lastValue,
+                           float gamma, float lambda, float[] advantages) {
+        int n = rewards.length;
+        if (n < PARALLEL_THRESHOLD) {
+            gae(rewards, values, masks, lastValue, gamma, lambda, advantages, 0, n);
+            return;
+        }
+        List<int[]> segments = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < n; i++) {
+            if (masks[i]) {
+                segments.add(new int[]{start, i + 1});
+                start = i + 1;
+            }
+        }
+        if (start < n) {
+            segments.add(new int[]{start, n});
+        }
+        IntStream.range(0, segments.size()).parallel().forEach(k -> {
+            int[] segment = segments.get(k);
+            gae(rewards, values, masks, lastValue, gamma, lambda, advantages, segment[0], segment[1]);
+        });
+    }
+
+    /**
+     * 对[from, to)区间逆序递推
+     * 区间在数据末尾结束时，之后的状态价值为lastValue；否则区间以幕结束为界，不再自举
+     */
+    private static void gae(float[] rewards, float[] values, boolean[] masks, float lastValue,
+                            float gamma, float lambda, float[] advantages, int from, int to) {
+        float prevValue = to == rewards.length ? lastValue : 0;
+        float prevAdvantage = 0;
+        for (int i = to - 1; i >= from; i--) {
+            int mask = masks[i] ? 0 : 1;
+            float delta = rewards[i] + gamma * prevValue * mask - values[i];
+            advantages[i] = delta + gamma * lambda * prevAdvantage * mask;
+            prevValue = values[i];
+            prevAdvantage = advantages[i];
+        }
+    }
+}
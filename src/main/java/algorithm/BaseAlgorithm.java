@@ -1,13 +1,19 @@
 package algorithm;
 
-import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDList;
 import ai.djl.ndarray.NDManager;
-import ai.djl.ndarray.index.NDIndex;
-import ai.djl.ndarray.types.Shape;
+import algorithm.ppo.model.BasePolicyModel;
 import env.action.core.IAction;
+import env.state.collector.IStateCollector;
 import env.state.core.IState;
+import utils.CollectorRegistry;
+import utils.InferenceContext;
 import utils.Memory;
+import utils.NDScope;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 /**
  * 更新模型的算法基类
@@ -24,6 +30,14 @@ public abstract class BaseAlgorithm<S extends IState<S>, A extends IAction> {
      * 样本缓存
      */
     protected Memory<S, A> memory = new Memory<>();
+    /**
+     * 随机数生成器，用于小批量样本的划分
+     */
+    protected final Random random = new Random(CommonParameter.SEED);
+    /**
+     * 各线程单步推理所用的上下文
+     */
+    private final ThreadLocal<InferenceContext> inferenceContexts = ThreadLocal.withInitial(() -> new InferenceContext(manager));
 
     public BaseAlgorithm(NDManager manager) {
         this.manager = manager;
@@ -45,50 +59,99 @@ public abstract class BaseAlgorithm<S extends IState<S>, A extends IAction> {
      */
     public abstract A greedyAction(S state);
 
+    /**
+     * 为多个环境状态分别选择动作，用于同时与多个环境交互的场景
+     * 各状态按行写入状态收集器后只进行一次前向计算
+     *
+     * @param states 各环境当前状态
+     * @return 各环境接下来应采取的动作，顺序与states一致
+     */
+    public List<A> selectActions(List<S> states) {
+        IStateCollector collector = CollectorRegistry.acquireState(states.get(0).getCollectorClz(), states.size());
+        try {
+            for (int i = 0; i < states.size(); i++) {
+                collector.addState(i, states.get(i));
+            }
+            return selectActions(collector);
+        } finally {
+            CollectorRegistry.release(collector);
+        }
+    }
+
+    /**
+     * 为按行存放在状态收集器中的多个环境状态选择动作，只进行一次前向计算
+     *
+     * @param states 各环境当前状态，第i行对应第i个环境
+     * @return 各环境接下来应采取的动作，顺序与states中的行一致
+     */
+    public List<A> selectActions(IStateCollector states) {
+        try (NDScope scope = NDScope.nested("action", manager)) {
+            // 动作视图引用的NDArray属于作用域的管理器，需在关闭前取出全部动作
+            NDList batchStates = new NDList(states.createNDArray(scope.getManager()));
+            return new ArrayList<>(getPolicyModel().policy(batchStates, false, false, true).getActions());
+        }
+    }
+
     public abstract void updateModel();
 
     /**
-     * 重置样本缓存
+     * 返回用于选择动作的策略模型
      */
-    public void resetMemory() {
-        this.memory.reset();
+    public abstract BasePolicyModel<A> getPolicyModel();
+
+    /**
+     * 返回当前线程的单步推理上下文
+     */
+    public InferenceContext getInferenceContext() {
+        return inferenceContexts.get();
     }
 
-    public void collect(S state, A action, boolean done, S nextState, float reward) {
-        memory.addTransition(state, action, done, nextState, reward);
+    /**
+     * 算法使用的NDManager，模型参数等长期存在的NDArray都归属于它
+     */
+    public NDManager getManager() {
+        return manager;
     }
 
-    protected NDList estimateAdvantage(NDArray values, NDArray rewards, NDArray masks) {
-        NDManager manager = rewards.getManager();
-        NDArray deltas = manager.create(rewards.getShape());
-        NDArray advantages = manager.create(rewards.getShape());
-
-        float prevValue = 0;
-        float prevAdvantage = 0;
-        for (long i = rewards.getShape().get(0) - 1; i >= 0; i--) {
-            NDIndex index = new NDIndex(i);
-            int mask = masks.getBoolean(i) ? 0 : 1;
-            deltas.set(index, rewards.get(i).add(CommonParameter.GAMMA * prevValue * mask).sub(values.get(i)));
-            advantages.set(index, deltas.get(i).add(CommonParameter.GAMMA * CommonParameter.GAE_LAMBDA * prevAdvantage * mask));
-
-            prevValue = values.getFloat(i);
-            prevAdvantage = advantages.getFloat(i);
+    /**
+     * 使用当前线程的推理上下文，为单个环境状态选择动作
+     *
+     * @param state         环境当前状态
+     * @param deterministic 是否选择确定性策略
+     */
+    protected A policyAction(S state, boolean deterministic) {
+        InferenceContext context = inferenceContexts.get();
+        try {
+            return getPolicyModel().policy(context.stateList(state), deterministic, false, true).singletonOrThrow();
+        } finally {
+            context.reset();
         }
+    }
+
+    /**
+     * 重置样本缓存
+     */
+    public void resetMemory() {
+        this.memory.reset();
+    }
 
-        NDArray expected_returns = values.add(advantages);
-        NDArray advantagesMean = advantages.mean();
-        NDArray advantagesStd = advantages.sub(advantagesMean).pow(2).sum().div(advantages.size() - 1).sqrt();
-        advantages = advantages.sub(advantagesMean).div(advantagesStd);
+    /**
+     * 清空样本缓存中已结束的幕，各环境尚未结束的幕保留到下次收集，见{@link Memory#resetFinished()}
+     */
+    public void resetFinishedMemory() {
+        this.memory.resetFinished();
+    }
 
-        return new NDList(expected_returns, advantages);
+    public void collect(S state, A action, boolean done, S nextState, float reward) {
+        collect(0, state, action, done, nextState, reward);
     }
 
-    protected NDArray getSample(NDManager subManager, NDArray array, int[] index) {
-        Shape shape = Shape.update(array.getShape(), 0, index.length);
-        NDArray sample = subManager.zeros(shape, array.getDataType());
-        for (int i = 0; i < index.length; i++) {
-            sample.set(new NDIndex(i), array.get(index[i]));
-        }
-        return sample;
+    /**
+     * 收集指定环境产生的一步交互数据
+     *
+     * @param envIndex 环境索引，同时与多个环境交互时用于区分各环境的数据
+     */
+    public void collect(int envIndex, S state, A action, boolean done, S nextState, float reward) {
+        memory.addTransition(envIndex, state, action, done, nextState, reward);
     }
 }
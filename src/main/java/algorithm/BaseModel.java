@@ -4,6 +4,11 @@ import ai.djl.Model;
 import ai.djl.inference.Predictor;
 import ai.djl.ndarray.NDList;
 import ai.djl.ndarray.NDManager;
+import ai.djl.nn.Parameter;
+import ai.djl.nn.ParameterList;
+import ai.djl.training.ParameterStore;
+import ai.djl.util.Pair;
+import org.apache.commons.lang3.Validate;
 
 /**
  * 模型基类
@@ -15,6 +20,14 @@ public abstract class BaseModel {
     protected NDManager manager;
     protected Model model;
     protected Predictor<NDList, NDList> predictor;
+    /**
+     * 模型参数的连续存储，调用{@link #flattenParameters()}后才会创建
+     */
+    protected FlatParameters flatParameters;
+    /**
+     * 训练时前向计算使用的参数存储，首次调用{@link #forward(NDList)}时创建并一直复用
+     */
+    private ParameterStore parameterStore;
 
     public Model getModel() {
         return model;
@@ -23,4 +36,60 @@ public abstract class BaseModel {
     public Predictor<NDList, NDList> getPredictor() {
         return predictor;
     }
+
+    /**
+     * 训练时的前向计算，直接调用模型的block，不经过{@link Predictor}和Translator，
+     * 省去每次调用时创建上下文及包装异常的开销，{@link Predictor}只用于推理。
+     * 输出的NDArray与输入属于同一个NDManager，可参与梯度计算。
+     *
+     * @param inputs 模型输入
+     * @return 模型输出
+     */
+    public NDList forward(NDList inputs) {
+        if (parameterStore == null) {
+            parameterStore = new ParameterStore(manager, false);
+        }
+        return model.getBlock().forward(parameterStore, inputs, true);
+    }
+
+    /**
+     * 将模型全部参数改为连续存储，重复调用返回同一个结果
+     */
+    public FlatParameters flattenParameters() {
+        if (flatParameters == null) {
+            flatParameters = new FlatParameters(manager, model.getBlock().getParameters());
+        }
+        return flatParameters;
+    }
+
+    /**
+     * 按{@link FlatParameters}中的顺序将全部参数拷贝到JVM，结果可直接交给{@link FlatParameters#load(float[])}
+     * 不会改变参数的存储方式，未连续存储时逐个参数拷贝
+     */
+    public float[] copyParameters() {
+        if (flatParameters != null) {
+            return flatParameters.toFloatArray();
+        }
+        ParameterList parameters = model.getBlock().getParameters();
+        long size = 0;
+        for (Pair<String, Parameter> params : parameters) {
+            size += params.getValue().getArray().size();
+        }
+        Validate.isTrue(size <= Integer.MAX_VALUE, "模型参数过多，无法拷贝到JVM！！");
+        float[] data = new float[(int) size];
+        int offset = 0;
+        for (Pair<String, Parameter> params : parameters) {
+            float[] values = params.getValue().getArray().toFloatArray();
+            System.arraycopy(values, 0, data, offset, values.length);
+            offset += values.length;
+        }
+        return data;
+    }
+
+    /**
+     * 返回模型参数的连续存储，未调用过{@link #flattenParameters()}时为null
+     */
+    public FlatParameters getFlatParameters() {
+        return flatParameters;
+    }
 }
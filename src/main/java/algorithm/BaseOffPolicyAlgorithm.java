@@ -0,0 +1,239 @@
+package algorithm;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.translate.TranslateException;
+import env.action.core.IAction;
+import env.state.core.IState;
+import org.apache.commons.lang3.Validate;
+import utils.MappedMemory;
+import utils.MemoryBatch;
+import utils.MemorySnapshot;
+import utils.MinibatchPrefetcher;
+import utils.MinibatchPrefetcher.Minibatch;
+import utils.NDScope;
+import utils.NStepAccumulator;
+import utils.PrioritizedMemory;
+import utils.ReplayMemory;
+import utils.datatype.PrioritizedSample;
+
+import java.io.File;
+/**
+ * 离线策略算法基类
+ * 负责样本缓存的选择以及小批量样本的组织，具体的参数更新由子类在{@link #updateBatch}中完成。
+ * <p>
+ * 开启{@link CommonParameter#PERSISTENT_REPLAY}或构造时指定persistentReplay后，样本保存在{@link ReplayMemory}中，
+ * 每次更新模型时先追加新收集的样本，再从整个缓存中有放回地抽取小批量样本，
+ * 小批量数量与未开启时相同，即 INNER_UPDATES * ceil(新样本数 / INNER_BATCH_SIZE)。
+ * 开启{@link CommonParameter#MAPPED_REPLAY}后，经验回放缓存改为存放在内存映射文件中的{@link MappedMemory}。
+ * N_STEP大于1时，收集的样本先经过{@link NStepAccumulator}转为N步样本，子类计算目标Q值时需使用{@link #bootstrapDiscount}。
+ * 开启{@link CommonParameter#REPLAY_SNAPSHOT}后，定期在后台保存经验回放缓存快照，重启时从快照恢复。
+ * 训练结束后应调用{@link #close()}，等待快照写入完成并释放经验回放缓存。
+ *
+ * @author Caojunqi
+ * @date 2021-12-21 11:20
+ */
+public abstract class BaseOffPolicyAlgorithm<S extends IState<S>, A extends IAction> extends BaseAlgorithm<S, A> implements AutoCloseable {
+    /**
+     * 持久化的经验回放缓存，未开启时为null
+     */
+    protected ReplayMemory<S, A> replayMemory;
+    /**
+     * 优先经验回放缓存，未开启优先经验回放时为null
+     */
+    protected PrioritizedMemory<S, A> prioritizedMemory;
+    /**
+     * N步回报累加器，N_STEP为1时为null
+     */
+    private NStepAccumulator<S, A> nStepAccumulator;
+    /**
+     * 目标Q值中自举项的折扣，即γ^N
+     */
+    protected final double bootstrapDiscount = NStepAccumulator.bootstrapDiscount(CommonParameter.GAMMA, CommonParameter.N_STEP);
+    /**
+     * 经验回放缓存快照，首次保存时创建
+     */
+    private MemorySnapshot snapshot;
+    /**
+     * 模型更新次数
+     */
+    private int updateNum;
+
+    public BaseOffPolicyAlgorithm(NDManager manager) {
+        this(manager, CommonParameter.PERSISTENT_REPLAY);
+    }
+
+    /**
+     * @param persistentReplay 是否使用持久化的经验回放缓存，开启优先经验回放或内存映射经验回放缓存时忽略
+     */
+    public BaseOffPolicyAlgorithm(NDManager manager, boolean persistentReplay) {
+        super(manager);
+        Validate.isTrue(!(CommonParameter.PRIORITIZED_REPLAY && CommonParameter.MAPPED_REPLAY), "优先经验回放不支持内存映射经验回放缓存，PRIORITIZED_REPLAY与MAPPED_REPLAY不能同时开启！！");
+        if (CommonParameter.PRIORITIZED_REPLAY) {
+            this.prioritizedMemory = new PrioritizedMemory<>(manager, CommonParameter.REPLAY_CAPACITY);
+            this.replayMemory = prioritizedMemory;
+            this.memory = prioritizedMemory;
+        } else if (CommonParameter.MAPPED_REPLAY) {
+            File file = new File(CommonParameter.MAPPED_REPLAY_FILE);
+            if (CommonParameter.REPLAY_SNAPSHOT && file.exists()) {
+                this.replayMemory = MappedMemory.open(manager, file);
+            } else {
+                this.replayMemory = new MappedMemory<>(manager, file, CommonParameter.MAPPED_REPLAY_CAPACITY);
+            }
+            this.memory = replayMemory;
+        } else if (persistentReplay) {
+            this.replayMemory = new ReplayMemory<>(manager, CommonParameter.REPLAY_CAPACITY);
+            this.memory = replayMemory;
+        }
+        if (CommonParameter.N_STEP > 1) {
+            this.nStepAccumulator = new NStepAccumulator<>(CommonParameter.N_STEP, CommonParameter.GAMMA, memory);
+        }
+        File snapshotFile = new File(CommonParameter.REPLAY_SNAPSHOT_FILE);
+        if (CommonParameter.REPLAY_SNAPSHOT && replayMemory != null && !(replayMemory instanceof MappedMemory) && snapshotFile.exists()) {
+            this.snapshot = MemorySnapshot.resume(snapshotFile, replayMemory);
+        }
+    }
+
+    /**
+     * 等待经验回放缓存快照的后台写入完成，并释放经验回放缓存
+     */
+    @Override
+    public void close() {
+        if (snapshot != null) {
+            snapshot.close();
+            snapshot = null;
+        }
+        if (replayMemory != null) {
+            replayMemory.close();
+        }
+    }
+
+    @Override
+    public void resetMemory() {
+        super.resetMemory();
+        if (nStepAccumulator != null) {
+            nStepAccumulator.reset();
+        }
+    }
+
+    @Override
+    public void collect(int envIndex, S state, A action, boolean done, S nextState, float reward) {
+        if (nStepAccumulator != null) {
+            nStepAccumulator.add(envIndex, state, action, done, nextState, reward);
+        } else {
+            super.collect(envIndex, state, action, done, nextState, reward);
+        }
+    }
+
+    @Override
+    public void updateModel() {
+        try (NDScope scope = NDScope.nested("update", manager)) {
+            NDManager subManager = scope.getManager();
+            if (replayMemory != null) {
+                updateFromReplay(subManager);
+                updateNum++;
+                if (CommonParameter.REPLAY_SNAPSHOT && !(replayMemory instanceof MappedMemory)
+                        && updateNum % CommonParameter.REPLAY_SNAPSHOT_INTERVAL == 0) {
+                    if (snapshot == null) {
+                        snapshot = new MemorySnapshot(new File(CommonParameter.REPLAY_SNAPSHOT_FILE));
+                    }
+                    snapshot.write(replayMemory);
+                }
+            } else {
+                updateFromMemory(subManager);
+            }
+            getPolicyModel().syncHostForward();
+        } catch (TranslateException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 使用一个小批量样本更新模型参数
+     *
+     * @param subManager   本批次NDArray所属的NDManager
+     * @param states       状态
+     * @param actions      动作
+     * @param nextStates   下一状态
+     * @param rewards      收益
+     * @param terminations 幕是否结束
+     * @param weights      重要性采样权重，未开启优先经验回放时为null
+     * @return 各样本的TD误差绝对值，未开启优先经验回放时可返回null
+     */
+    protected abstract NDArray updateBatch(NDManager subManager, NDArray states, NDArray actions, NDArray nextStates,
+                                           NDArray rewards, NDArray terminations, NDArray weights) throws TranslateException;
+
+    /**
+     * 计算加权均值，用于在损失函数中引入重要性采样权重
+     *
+     * @param values  待求均值的数据
+     * @param weights 各样本权重，为null时等价于直接求均值
+     */
+    protected NDArray weightedMean(NDArray values, NDArray weights) {
+        return weights == null ? values.mean() : values.mul(weights).mean();
+    }
+
+    /**
+     * 使用本次收集的样本，打乱后进行INNER_UPDATES轮完整遍历
+     */
+    private void updateFromMemory(NDManager subManager) throws TranslateException {
+        MemoryBatch batch = memory.sample(subManager);
+        NDList fields = new NDList(batch.getStates(),
+                batch.getActions(),
+                batch.getNextStates(),
+                batch.getRewards(),
+                batch.getMasks().toType(DataType.FLOAT64, true));
+        try (MinibatchPrefetcher prefetcher = MinibatchPrefetcher.shuffled(subManager, fields,
+                CommonParameter.INNER_BATCH_SIZE, CommonParameter.INNER_UPDATES, random.nextLong())) {
+            while (prefetcher.hasNext()) {
+                try (Minibatch minibatch = prefetcher.next(); NDScope scope = minibatch.openScope()) {
+                    updateBatch(scope.getManager(), minibatch.get(0), minibatch.get(1), minibatch.get(2),
+                            minibatch.get(3), minibatch.get(4), null);
+                }
+            }
+        }
+    }
+
+    /**
+     * 追加新样本后，从经验回放缓存中抽取小批量样本进行更新
+     * 下一批样本的采样在后台线程上进行，因此优先经验回放时下一批样本已采出，不会反映本批次更新后的优先级
+     */
+    private void updateFromReplay(NDManager subManager) throws TranslateException {
+        int newSampleNum = replayMemory.sync();
+        int optimIterNum = CommonParameter.INNER_UPDATES * ((newSampleNum + CommonParameter.INNER_BATCH_SIZE - 1) / CommonParameter.INNER_BATCH_SIZE);
+        try (MinibatchPrefetcher prefetcher = new MinibatchPrefetcher(subManager, optimIterNum, this::loadReplayBatch)) {
+            while (prefetcher.hasNext()) {
+                try (Minibatch minibatch = prefetcher.next(); NDScope scope = minibatch.openScope()) {
+                    NDArray tdErrors = updateBatch(scope.getManager(), minibatch.get(0), minibatch.get(1), minibatch.get(2),
+                            minibatch.get(3), minibatch.get(4), prioritizedMemory != null ? minibatch.get(5) : null);
+                    if (prioritizedMemory != null) {
+                        prioritizedMemory.updatePriorities(minibatch.getIndex(), tdErrors.toType(DataType.FLOAT32, false).toFloatArray());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 从经验回放缓存中采样一批样本，在预取线程上调用
+     */
+    private Minibatch loadReplayBatch(NDManager batchManager, int batchIndex) {
+        int[] index;
+        NDArray weights = null;
+        if (prioritizedMemory != null) {
+            PrioritizedSample prioritizedSample = prioritizedMemory.samplePrioritized(CommonParameter.INNER_BATCH_SIZE);
+            index = prioritizedSample.getIndex();
+            weights = batchManager.create(prioritizedSample.getWeights()).reshape(-1, 1);
+        } else {
+            index = replayMemory.sampleIndex(CommonParameter.INNER_BATCH_SIZE);
+        }
+        MemoryBatch batch = replayMemory.sample(batchManager, index);
+        NDArray terminations = batch.getMasks().toType(DataType.FLOAT64, false);
+        if (weights == null) {
+            return new Minibatch(batchManager, index, batch.getStates(), batch.getActions(), batch.getNextStates(), batch.getRewards(), terminations);
+        }
+        return new Minibatch(batchManager, index, batch.getStates(), batch.getActions(), batch.getNextStates(), batch.getRewards(), terminations, weights);
+    }
+}
@@ -1,5 +1,7 @@
 package algorithm;
 
+import utils.CategoricalSampler;
+
 /**
  * 算法共用参数常量类
  *
@@ -32,9 +34,37 @@ public final class CommonParameter {
      */
     public final static float LEARNING_RATE = 3e-4f;
     /**
-     * 激活的线程数
+     * 激活的线程数，{@link utils.ParallelRunner}中为采样线程数
      */
     public final static int THREAD_NUM = 1;
+    /**
+     * 并行采样时，允许的最大策略滞后版本数，样本所用策略落后学习器超过该值时会被丢弃，为0时只使用最新策略采集的样本
+     */
+    public final static int MAX_POLICY_LAG = 1;
+    /**
+     * 并行采样时，等待学习器消费的最大幕数，队列满时采样线程阻塞
+     */
+    public final static int ROLLOUT_QUEUE_CAPACITY = 64;
+    /**
+     * 策略推理服务单个批次的最大请求数
+     */
+    public final static int INFERENCE_MAX_BATCH_SIZE = 256;
+    /**
+     * 策略推理服务收到批次的第一个请求后，等待更多请求的最长时间，单位微秒
+     */
+    public final static long INFERENCE_MAX_WAIT_MICROS = 200;
+    /**
+     * 策略模型推理时，批次不超过该值则在JVM中完成前向计算，否则交给引擎；为0时关闭纯Java前向计算
+     */
+    public final static int HOST_FORWARD_MAX_BATCH = 0;
+    /**
+     * 离散型动作分布的采样方式
+     */
+    public final static CategoricalSampler.Mode CATEGORICAL_SAMPLING = CategoricalSampler.Mode.INVERSE_CDF;
+    /**
+     * NDScope是否记录打开位置及父管理器中已有的资源，用于定位泄漏的NDArray
+     */
+    public final static boolean ND_SCOPE_TRACE = false;
     /**
      * 随机种子
      */
@@ -75,4 +105,75 @@ public final class CommonParameter {
      * 目标模型进行 Soft update 时，参数更新比例
      */
     public final static double SOFT_TARGET_TAU = 5e-3;
+    /**
+     * 每进行多少次小批量更新后，对目标模型进行一次 Soft update
+     */
+    public final static int TARGET_UPDATE_INTERVAL = 1;
+    /**
+     * 目标模型及其源模型的参数是否改为连续存储
+     */
+    public final static boolean FLAT_PARAMETERS = false;
+    /**
+     * 离线策略算法计算目标Q值时使用的回报步数，1表示单步回报
+     */
+    public final static int N_STEP = 1;
+    /**
+     * 离线策略算法是否默认使用持久化的经验回放缓存，开启后样本不会在每次收集前被清空
+     * 也可在构造算法时单独指定，见{@link BaseOffPolicyAlgorithm#BaseOffPolicyAlgorithm(ai.djl.ndarray.NDManager, boolean)}
+     */
+    public final static boolean PERSISTENT_REPLAY = false;
+    /**
+     * 经验回放缓存的最大样本容量
+     */
+    public final static int REPLAY_CAPACITY = 1000000;
+    /**
+     * 经验回放缓存中观测容量与样本容量之比
+     * 同一幕的相邻样本共用观测，每幕及每次同步额外占用少量观测；观测不足时提前淘汰最旧的样本
+     */
+    public final static float REPLAY_OBSERVATION_RATIO = 1.25f;
+    /**
+     * 离线策略算法是否使用基于内存映射文件的经验回放缓存，适用于超出堆内存的缓存容量
+     */
+    public final static boolean MAPPED_REPLAY = false;
+    /**
+     * 内存映射经验回放缓存所使用的文件
+     */
+    public final static String MAPPED_REPLAY_FILE = "replay.mmap";
+    /**
+     * 内存映射经验回放缓存的最大样本容量
+     */
+    public final static int MAPPED_REPLAY_CAPACITY = 20000000;
+    /**
+     * 是否定期保存经验回放缓存快照，并在启动时从快照恢复
+     * 使用内存映射经验回放缓存时，直接重新打开其数据文件
+     */
+    public final static boolean REPLAY_SNAPSHOT = false;
+    /**
+     * 经验回放缓存快照文件
+     */
+    public final static String REPLAY_SNAPSHOT_FILE = "replay.snapshot";
+    /**
+     * 保存经验回放缓存快照的间隔，单位为模型更新次数
+     */
+    public final static int REPLAY_SNAPSHOT_INTERVAL = 10;
+    /**
+     * 离线策略算法是否使用优先经验回放，优先经验回放总是使用持久化的经验回放缓存
+     */
+    public final static boolean PRIORITIZED_REPLAY = false;
+    /**
+     * 优先经验回放中，优先级的指数α，0表示均匀采样
+     */
+    public final static double PRIORITY_ALPHA = 0.6;
+    /**
+     * 优先经验回放中，重要性采样系数β的初始值
+     */
+    public final static float PRIORITY_BETA = 0.4f;
+    /**
+     * 每次采样后β的增量，直至增大到1
+     */
+    public final static float PRIORITY_BETA_INCREMENT = 1e-4f;
+    /**
+     * 计算优先级时加在TD误差上的小量，避免样本优先级为0
+     */
+    public final static double PRIORITY_EPS = 1e-6;
 }
@@ -0,0 +1,110 @@
+package algorithm;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.Parameter;
+import ai.djl.nn.ParameterList;
+import ai.djl.util.Pair;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * 模型参数的连续存储
+ * 模型的全部参数依次存放在一个一维张量中，各参数的NDArray改为指向其中对应区段的视图，
+ * 前向、反向传播及优化器更新都直接读写这段连续内存。
+ * 整个模型的拷贝、软更新等操作因此只需一次向量运算，模型快照也只需一次整体拷贝。
+ * <p>
+ * 梯度由引擎为每个参数单独分配，无法放入连续存储。
+ *
+ * @author Caojunqi
+ * @date 2021-12-25 15:10
+ */
+public final class FlatParameters {
+
+    private final NDManager manager;
+    /**
+     * 全部参数的连续存储
+     */
+    private final NDArray buffer;
+    private final int size;
+
+    FlatParameters(NDManager manager, ParameterList parameters) {
+        long total = 0;
+        for (Pair<String, Parameter> params : parameters) {
+            NDArray array = params.getValue().getArray();
+            Validate.isTrue(array.getDataType() == DataType.FLOAT32, "参数[" + params.getKey() + "]不是FLOAT32类型，无法连续存储！！");
+            total += array.size();
+        }
+        Validate.isTrue(total <= Integer.MAX_VALUE, "模型参数过多，无法连续存储！！");
+        this.manager = manager;
+        this.size = (int) total;
+        this.buffer = manager.zeros(new Shape(total), DataType.FLOAT32);
+
+        NDIndex all = new NDIndex("...");
+        long offset = 0;
+        for (Pair<String, Parameter> params : parameters) {
+            NDArray array = params.getValue().getArray();
+            long length = array.size();
+            NDArray view = buffer.get(new NDIndex("{}:{}", offset, offset + length)).reshape(array.getShape());
+            try (NDArray value = array.stopGradient()) {
+                view.set(all, value);
+            }
+            boolean requiresGradient = array.hasGradient();
+            // 参数NDArray改为指向连续存储中的视图，原有存储随之释放
+            array.intern(view);
+            if (requiresGradient) {
+                array.setRequiresGradient(true);
+            }
+            offset += length;
+        }
+    }
+
+    /**
+     * 返回全部参数的连续存储，对其原地修改会直接作用于模型参数
+     */
+    public NDArray getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * 参数总数
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 从另一个结构相同的模型拷贝全部参数
+     */
+    public void copyFrom(FlatParameters source) {
+        Validate.isTrue(source.size == size, "模型参数数量不一致！！");
+        buffer.set(new NDIndex("..."), source.buffer);
+    }
+
+    /**
+     * 软更新 this = (1 - tau) * this + tau * source
+     */
+    public void softUpdateFrom(FlatParameters source, double tau) {
+        Validate.isTrue(source.size == size, "模型参数数量不一致！！");
+        buffer.subi(source.buffer).muli(1 - tau).addi(source.buffer);
+    }
+
+    /**
+     * 将全部参数一次性拷贝到JVM
+     */
+    public float[] toFloatArray() {
+        return buffer.toFloatArray();
+    }
+
+    /**
+     * 用{@link #toFloatArray()}得到的数据覆盖全部参数
+     */
+    public void load(float[] data) {
+        Validate.isTrue(data.length == size, "参数数量不一致，期望[" + size + "]实际[" + data.length + "]！！");
+        try (NDArray value = manager.create(data)) {
+            buffer.set(new NDIndex("..."), value);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package algorithm;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.nn.Parameter;
+import ai.djl.nn.ParameterList;
+import ai.djl.util.Pair;
+import org.apache.commons.lang3.Validate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 多层感知机的纯Java前向计算
+ * 将模型中各全连接层的参数拷贝为基础类型数组，在JVM中完成前向计算，仅用于推理。
+ * 小批量推理时，JNI调用和引擎调度的开销远大于计算本身，这种情况下纯Java计算更快。
+ * <p>
+ * 全连接层按参数列表中WEIGHT、BIAS参数出现的顺序依次连接，除最后一层外，每层之后接同一种激活函数。
+ * 模型参数更新后需调用{@link #sync()}重新拷贝参数。
+ *
+ * @author Caojunqi
+ * @date 2021-12-26 10:20
+ */
+public final class HostMlp {
+
+    /**
+     * 隐藏层激活函数
+     */
+    public enum Activation {
+        RELU,
+        TANH
+    }
+
+    private final List<Parameter> weights = new ArrayList<>();
+    private final List<Parameter> biases = new ArrayList<>();
+    private final Activation activation;
+    private final int inputSize;
+    private final int outputSize;
+    /**
+     * 参数拷贝，sync时整体替换，前向计算期间不会被修改
+     */
+    private volatile Layers layers;
+
+    private HostMlp(ParameterList parameters, Activation activation) {
+        for (Pair<String, Parameter> params : parameters) {
+            Parameter parameter = params.getValue();
+            if (parameter.getType() == Parameter.Type.WEIGHT) {
+                weights.add(parameter);
+            } else if (parameter.getType() == Parameter.Type.BIAS) {
+                biases.add(parameter);
+            }
+        }
+        Validate.isTrue(!weights.isEmpty() && weights.size() == biases.size(), "模型不是由带偏置的全连接层组成的多层感知机！！");
+        this.activation = activation;
+        this.inputSize = (int) weights.get(0).getArray().getShape().get(1);
+        this.outputSize = (int) weights.get(weights.size() - 1).getArray().getShape().get(0);
+        sync();
+    }
+
+    /**
+     * 为指定参数列表创建纯Java前向计算，并拷贝当前参数
+     *
+     * @param parameters 模型参数列表
+     * @param activation 隐藏层激活函数
+     */
+    public static HostMlp mirror(ParameterList parameters, Activation activation) {
+        return new HostMlp(parameters, activation);
+    }
+
+    /**
+     * 重新拷贝模型参数
+     */
+    public void sync() {
+        int layerNum = weights.size();
+        float[][] w = new float[layerNum][];
+        float[][] b = new float[layerNum][];
+        int[] fanIn = new int[layerNum];
+        for (int i = 0; i < layerNum; i++) {
+            NDArray weight = weights.get(i).getArray();
+            w[i] = weight.toFloatArray();
+            b[i] = biases.get(i).getArray().toFloatArray();
+            fanIn[i] = (int) weight.getShape().get(1);
+            Validate.isTrue(w[i].length == b[i].length * fanIn[i], "全连接层参数形状不一致！！");
+        }
+        this.layers = new Layers(w, b, fanIn);
+    }
+
+    /**
+     * 前向计算
+     *
+     * @param input     输入数据，按行存放，长度为 batchSize * 输入维度
+     * @param batchSize 样本数
+     * @return 输出数据，按行存放，长度为 batchSize * 输出维度
+     */
+    public float[] forward(float[] input, int batchSize) {
+        Validate.isTrue(input.length == batchSize * inputSize, "输入数据长度[" + input.length + "]与输入维度[" + inputSize + "]不一致！！");
+        Layers layers = this.layers;
+        float[] x = input;
+        int layerNum = layers.weights.length;
+        for (int l = 0; l < layerNum; l++) {
+            float[] w = layers.weights[l];
+            float[] b = layers.biases[l];
+            int in = layers.fanIn[l];
+            int out = b.length;
+            float[] y = new float[batchSize * out];
+            boolean hidden = l < layerNum - 1;
+            for (int n = 0; n < batchSize; n++) {
+                int xOffset = n * in;
+                int yOffset = n * out;
+                for (int j = 0; j < out; j++) {
+                    int wOffset = j * in;
+                    float sum = b[j];
+                    for (int i = 0; i < in; i++) {
+                        sum += x[xOffset + i] * w[wOffset + i];
+                    }
+                    if (hidden) {
+                        sum = activation == Activation.RELU ? Math.max(sum, 0) : (float) Math.tanh(sum);
+                    }
+                    y[yOffset + j] = sum;
+                }
+            }
+            x = y;
+        }
+        return x;
+    }
+
+    public int getInputSize() {
+        return inputSize;
+    }
+
+    public int getOutputSize() {
+        return outputSize;
+    }
+
+    private static final class Layers {
+        private final float[][] weights;
+        private final float[][] biases;
+        private final int[] fanIn;
+
+        private Layers(float[][] weights, float[][] biases, int[] fanIn) {
+            this.weights = weights;
+            this.biases = biases;
+            this.fanIn = fanIn;
+        }
+    }
+}
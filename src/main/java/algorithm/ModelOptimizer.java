@@ -0,0 +1,123 @@
+package algorithm;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDArrays;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.nn.Parameter;
+import ai.djl.nn.ParameterList;
+import ai.djl.training.optimizer.Optimizer;
+import ai.djl.training.tracker.Tracker;
+import ai.djl.util.Pair;
+import org.apache.commons.lang3.Validate;
+import utils.Helper;
+
+/**
+ * 模型参数优化器
+ * 对一个模型的全部参数进行一次Adam更新，调用前需已完成反向传播。
+ * <p>
+ * 未开启融合更新时，逐个参数调用{@link Optimizer#update}。
+ * 开启融合更新时，模型参数改为连续存储（见{@link FlatParameters}），各参数梯度拼接成一个向量后，
+ * 在整个参数向量上用少量向量运算完成Adam更新，不再逐个参数拷贝梯度、启动小算子。
+ * 学习率同样由{@link Tracker}按更新次数给出，偏差修正及权重衰减方式与{@link Optimizer#adam()}一致。
+ *
+ * @author Caojunqi
+ * @date 2021-12-26 10:15
+ */
+public final class ModelOptimizer {
+
+    private static final float BETA1 = 0.9f;
+    private static final float BETA2 = 0.999f;
+    private static final float EPSILON = 1e-8f;
+
+    private final BaseModel model;
+    private final Tracker learningRateTracker;
+    private final float weightDecay;
+    /**
+     * 逐参数更新时使用的优化器，融合更新时为null
+     */
+    private Optimizer optimizer;
+    /**
+     * 融合更新时的一阶、二阶矩估计
+     */
+    private NDArray means;
+    private NDArray variances;
+    private int updateNum;
+
+    private ModelOptimizer(BaseModel model, Tracker learningRateTracker, float weightDecay, boolean fused) {
+        this.model = model;
+        this.learningRateTracker = learningRateTracker;
+        this.weightDecay = weightDecay;
+        if (fused) {
+            FlatParameters flatParameters = model.flattenParameters();
+            NDManager manager = flatParameters.getBuffer().getManager();
+            this.means = manager.zeros(flatParameters.getBuffer().getShape());
+            this.variances = manager.zeros(flatParameters.getBuffer().getShape());
+        } else {
+            this.optimizer = Optimizer.adam().optLearningRateTracker(learningRateTracker).optWeightDecays(weightDecay).build();
+        }
+    }
+
+    /**
+     * 创建Adam优化器
+     *
+     * @param model               待优化的模型
+     * @param learningRateTracker 学习率
+     * @param weightDecay         权重衰减系数
+     * @param fused               是否在连续存储的参数上融合更新
+     */
+    public static ModelOptimizer adam(BaseModel model, Tracker learningRateTracker, float weightDecay, boolean fused) {
+        return new ModelOptimizer(model, learningRateTracker, weightDecay, fused);
+    }
+
+    public static ModelOptimizer adam(BaseModel model, Tracker learningRateTracker, boolean fused) {
+        return adam(model, learningRateTracker, 0, fused);
+    }
+
+    /**
+     * 使用模型参数当前的梯度更新一次参数，并将梯度清零
+     */
+    public void update() {
+        ParameterList parameters = model.getModel().getBlock().getParameters();
+        if (optimizer != null) {
+            try (NDManager subManager = parameters.valueAt(0).getArray().getManager().newSubManager()) {
+                for (Pair<String, Parameter> params : parameters) {
+                    NDArray paramsArr = params.getValue().getArray();
+                    NDArray gradient = Helper.scoped(paramsArr.getGradient(), subManager);
+                    optimizer.update(params.getKey(), paramsArr, gradient.duplicate());
+                }
+            }
+            return;
+        }
+        updateNum++;
+        double coef1 = 1.0 - Math.pow(BETA1, updateNum);
+        double coef2 = 1.0 - Math.pow(BETA2, updateNum);
+        float learningRate = (float) (learningRateTracker.getNewValue(updateNum) * Math.sqrt(coef2) / coef1);
+        Validate.isTrue(!Float.isNaN(learningRate) && !Float.isInfinite(learningRate), "学习率为NaN或无穷大！！");
+
+        NDArray weights = model.getFlatParameters().getBuffer();
+        try (NDManager subManager = weights.getManager().newSubManager()) {
+            NDList gradients = new NDList(parameters.size());
+            for (Pair<String, Parameter> params : parameters) {
+                NDArray gradient = params.getValue().getArray().getGradient();
+                gradient.attach(subManager);
+                gradients.add(gradient.reshape(-1));
+            }
+            NDArray gradient = Helper.scoped(NDArrays.concat(gradients), subManager);
+            if (weightDecay != 0) {
+                gradient.addi(Helper.scoped(weights.mul(weightDecay), subManager));
+            }
+            means.muli(BETA1).addi(Helper.scoped(gradient.mul(1 - BETA1), subManager));
+            variances.muli(BETA2).addi(Helper.scoped(gradient.square(), subManager).muli(1 - BETA2));
+            NDArray denominator = Helper.scoped(variances.sqrt(), subManager).addi(EPSILON);
+            weights.subi(Helper.scoped(means.div(denominator), subManager).muli(learningRate));
+            NDIndex all = new NDIndex("...");
+            for (Pair<String, Parameter> params : parameters) {
+                NDArray paramGradient = params.getValue().getArray().getGradient();
+                paramGradient.attach(subManager);
+                paramGradient.set(all, 0);
+            }
+        }
+    }
+}
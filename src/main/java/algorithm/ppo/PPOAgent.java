@@ -6,14 +6,11 @@ import ai.djl.modality.rl.agent.RlAgent;
 import ai.djl.modality.rl.env.RlEnv;
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDList;
-import ai.djl.ndarray.NDManager;
-import ai.djl.ndarray.index.NDIndex;
-import ai.djl.ndarray.types.Shape;
 import ai.djl.training.GradientCollector;
 import ai.djl.training.Trainer;
 import ai.djl.training.listener.TrainingListener;
 import ai.djl.translate.Batchifier;
-import algorithm.CommonParameter;
+import algorithm.AdvantageEstimator;
 import utils.ActionSampler;
 import utils.Helper;
 
@@ -69,7 +66,7 @@ public class PPOAgent implements RlAgent {
 
         NDList valueOutput = valueTrainer.evaluate(batchifier.batchify(preObservations));
         NDArray values = valueOutput.singletonOrThrow().duplicate();
-        NDList estimates = estimateAdvantage(values.duplicate(), batchifier.batchify(rewards).singletonOrThrow(), dones);
+        NDList estimates = AdvantageEstimator.estimate(0, values.duplicate(), batchifier.batchify(rewards).singletonOrThrow(), dones);
         NDArray expectedReturns = estimates.get(0);
         NDArray advantages = estimates.get(1);
 
@@ -142,38 +139,4 @@ public class PPOAgent implements RlAgent {
         }
         return resultData;
     }
-
-    private NDList estimateAdvantage(NDArray values, NDArray rewards, boolean[] masks) {
-        NDManager manager = rewards.getManager();
-        NDArray deltas = manager.create(rewards.getShape());
-        NDArray advantages = manager.create(rewards.getShape());
-
-        float prevValue = 0;
-        float prevAdvantage = 0;
-        for (int i = (int) rewards.getShape().get(0) - 1; i >= 0; i--) {
-            NDIndex index = new NDIndex(i);
-            int mask = masks[i] ? 0 : 1;
-            deltas.set(index, rewards.get(i).add(CommonParameter.GAMMA * prevValue * mask).sub(values.get(i)));
-            advantages.set(index, deltas.get(i).add(CommonParameter.GAMMA * CommonParameter.GAE_LAMBDA * prevAdvantage * mask));
-
-            prevValue = values.getFloat(i);
-            prevAdvantage = advantages.getFloat(i);
-        }
-
-        NDArray expected_returns = values.add(advantages);
-        NDArray advantagesMean = advantages.mean();
-        NDArray advantagesStd = advantages.sub(advantagesMean).pow(2).sum().div(advantages.size() - 1).sqrt();
-        advantages = advantages.sub(advantagesMean).div(advantagesStd);
-
-        return new NDList(expected_returns, advantages);
-    }
-
-    private NDArray getSample(NDManager subManager, NDArray array, int[] index) {
-        Shape shape = Shape.update(array.getShape(), 0, index.length);
-        NDArray sample = subManager.zeros(shape, array.getDataType());
-        for (int i = 0; i < index.length; i++) {
-            sample.set(new NDIndex(i), array.get(index[i]));
-        }
-        return sample;
-    }
 }
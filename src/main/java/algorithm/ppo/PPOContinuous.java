@@ -6,20 +6,22 @@ import ai.djl.ndarray.NDList;
 import ai.djl.ndarray.NDManager;
 import ai.djl.nn.Parameter;
 import ai.djl.training.GradientCollector;
-import ai.djl.training.optimizer.Optimizer;
 import ai.djl.training.tracker.Tracker;
 import ai.djl.translate.TranslateException;
 import ai.djl.util.Pair;
+import algorithm.AdvantageEstimator;
 import algorithm.BaseAlgorithm;
 import algorithm.CommonParameter;
+import algorithm.ModelOptimizer;
 import algorithm.ppo.model.BasePolicyModel;
 import algorithm.ppo.model.BaseValueModel;
 import env.action.core.impl.BoxAction;
 import env.state.core.IState;
 import utils.Helper;
 import utils.MemoryBatch;
-
-import java.util.Arrays;
+import utils.MinibatchPrefetcher;
+import utils.MinibatchPrefetcher.Minibatch;
+import utils.NDScope;
 
 /**
  * PPO算法  Proximal policy optimization algorithms
@@ -33,36 +35,40 @@ public class PPOContinuous<S extends IState<S>> extends BaseAlgorithm<S, BoxActi
      * 策略模型
      */
     private BasePolicyModel<BoxAction> policyModel;
-    private Optimizer policyOptimizer;
+    private ModelOptimizer policyOptimizer;
     /**
      * 价值函数近似模型
      */
     private BaseValueModel valueModel;
-    private Optimizer valueOptimizer;
+    private ModelOptimizer valueOptimizer;
 
     public PPOContinuous(NDManager manager, BasePolicyModel<BoxAction> policyModel, BaseValueModel valueModel) {
         super(manager);
         this.policyModel = policyModel;
-        this.policyOptimizer = Optimizer.adam().optLearningRateTracker(Tracker.fixed(CommonParameter.LEARNING_RATE)).build();
+        this.policyOptimizer = ModelOptimizer.adam(policyModel, Tracker.fixed(CommonParameter.LEARNING_RATE), PPOParameter.FUSED_OPTIMIZER);
         this.valueModel = valueModel;
-        this.valueOptimizer = Optimizer.adam().optLearningRateTracker(Tracker.fixed(CommonParameter.LEARNING_RATE)).build();
+        this.valueOptimizer = ModelOptimizer.adam(valueModel, Tracker.fixed(CommonParameter.LEARNING_RATE), PPOParameter.FUSED_OPTIMIZER);
     }
 
     @Override
     public BoxAction selectAction(S state) {
-        NDManager subManager = manager.newSubManager();
-        return policyModel.policy(state.singleStateList(subManager), false, false, true).singletonOrThrow();
+        return policyAction(state, false);
     }
 
     @Override
     public BoxAction greedyAction(S state) {
-        NDManager subManager = manager.newSubManager();
-        return policyModel.policy(state.singleStateList(subManager), true, false, true).singletonOrThrow();
+        return policyAction(state, true);
+    }
+
+    @Override
+    public BasePolicyModel<BoxAction> getPolicyModel() {
+        return policyModel;
     }
 
     @Override
     public void updateModel() {
-        try (NDManager subManager = manager.newSubManager()) {
+        try (NDScope scope = NDScope.nested("update", manager)) {
+            NDManager subManager = scope.getManager();
             MemoryBatch batch = memory.sample(subManager);
             NDArray states = batch.getStates();
             NDArray actions = batch.getActions();
@@ -74,65 +80,60 @@ public class PPOContinuous<S extends IState<S>> extends BaseAlgorithm<S, BoxActi
             NDList valueOutput = valueModel.getPredictor().predict(new NDList(states));
             NDArray values = valueOutput.singletonOrThrow().duplicate();
 
-            NDList estimates = estimateAdvantage(values.duplicate(), batch.getRewards(), batch.getMasks());
+            NDList estimates = AdvantageEstimator.estimate(values.duplicate(), batch.getRewards(), batch.getMasks());
             NDArray expectedReturns = estimates.get(0);
             NDArray advantages = estimates.get(1);
 
-            int optimIterNum = (int) (states.getShape().get(0) + CommonParameter.INNER_BATCH_SIZE - 1) / CommonParameter.INNER_BATCH_SIZE;
-            for (int i = 0; i < CommonParameter.INNER_UPDATES; i++) {
-                int[] allIndex = manager.arange((int) states.getShape().get(0)).toIntArray();
-                Helper.shuffleArray(allIndex);
-                for (int j = 0; j < optimIterNum; j++) {
-                    int[] index = Arrays.copyOfRange(allIndex, j * CommonParameter.INNER_BATCH_SIZE, Math.min((j + 1) * CommonParameter.INNER_BATCH_SIZE, (int) states.getShape().get(0)));
-                    NDArray statesSubset = getSample(subManager, states, index);
-                    NDArray actionsSubset = getSample(subManager, actions, index);
-                    NDArray distributionSubset = getSample(subManager, distribution, index);
-                    NDArray expectedReturnsSubset = getSample(subManager, expectedReturns, index);
-                    NDArray advantagesSubset = getSample(subManager, advantages, index);
-
-                    // update critic
-                    NDList valueOutputUpdated = valueModel.getPredictor().predict(new NDList(statesSubset));
-                    NDArray valuesUpdated = valueOutputUpdated.singletonOrThrow();
-                    NDArray lossCritic = (expectedReturnsSubset.sub(valuesUpdated)).square().mean();
-                    for (Pair<String, Parameter> params : valueModel.getModel().getBlock().getParameters()) {
-                        NDArray paramsArr = params.getValue().getArray();
-                        lossCritic = lossCritic.add(paramsArr.square().sum().mul(CommonParameter.L2_REG));
-                    }
-                    try (GradientCollector collector = Engine.getInstance().newGradientCollector()) {
-                        collector.backward(lossCritic);
+            NDList fields = new NDList(states, actions, distribution, expectedReturns, advantages);
+            try (MinibatchPrefetcher prefetcher = MinibatchPrefetcher.shuffled(subManager, fields,
+                    CommonParameter.INNER_BATCH_SIZE, CommonParameter.INNER_UPDATES, random.nextLong())) {
+                while (prefetcher.hasNext()) {
+                    try (Minibatch minibatch = prefetcher.next(); NDScope batchScope = minibatch.openScope()) {
+                        NDArray statesSubset = minibatch.get(0);
+                        NDArray actionsSubset = minibatch.get(1);
+                        NDArray distributionSubset = minibatch.get(2);
+                        NDArray expectedReturnsSubset = minibatch.get(3);
+                        NDArray advantagesSubset = minibatch.get(4);
+
+                        // update critic
+                        NDList valueOutputUpdated = valueModel.getPredictor().predict(new NDList(statesSubset));
+                        NDArray valuesUpdated = valueOutputUpdated.singletonOrThrow();
+                        NDArray lossCritic = (expectedReturnsSubset.sub(valuesUpdated)).square().mean();
                         for (Pair<String, Parameter> params : valueModel.getModel().getBlock().getParameters()) {
                             NDArray paramsArr = params.getValue().getArray();
-                            valueOptimizer.update(params.getKey(), paramsArr, paramsArr.getGradient().duplicate());
+                            lossCritic = lossCritic.add(Helper.mul(Helper.scoped(paramsArr.square(), batchScope.getManager()).sum(), CommonParameter.L2_REG));
+                        }
+                        try (GradientCollector collector = Engine.getInstance().newGradientCollector()) {
+                            collector.backward(lossCritic);
+                            valueOptimizer.update();
                         }
-                    }
 
-                    // update policy
-                    NDList policyOutputUpdated = policyModel.getPredictor().predict(new NDList(statesSubset));
-                    NDArray distributionUpdated = normalLogDensity(actionsSubset, policyOutputUpdated.get(0), policyOutputUpdated.get(1), policyOutputUpdated.get(2));
-                    distributionUpdated = distributionUpdated.exp();
-                    NDArray ratios = distributionUpdated.div(distributionSubset);
+                        // update policy
+                        NDList policyOutputUpdated = policyModel.getPredictor().predict(new NDList(statesSubset));
+                        NDArray distributionUpdated = normalLogDensity(actionsSubset, policyOutputUpdated.get(0), policyOutputUpdated.get(1), policyOutputUpdated.get(2));
+                        distributionUpdated = distributionUpdated.exp();
+                        NDArray ratios = distributionUpdated.div(distributionSubset);
 
-                    NDArray surr1 = ratios.mul(advantagesSubset);
-                    NDArray surr2 = ratios.clip(PPOParameter.RATIO_LOWER_BOUND, PPOParameter.RATIO_UPPER_BOUND).mul(advantagesSubset);
-                    NDArray lossActor = surr1.minimum(surr2).mean().neg();
+                        NDArray surr1 = ratios.mul(advantagesSubset);
+                        NDArray surr2 = ratios.clip(PPOParameter.RATIO_LOWER_BOUND, PPOParameter.RATIO_UPPER_BOUND).mul(advantagesSubset);
+                        NDArray lossActor = surr1.minimum(surr2).mean().neg();
 
-                    try (GradientCollector collector = Engine.getInstance().newGradientCollector()) {
-                        collector.backward(lossActor);
-                        for (Pair<String, Parameter> params : policyModel.getModel().getBlock().getParameters()) {
-                            NDArray paramsArr = params.getValue().getArray();
-                            policyOptimizer.update(params.getKey(), paramsArr, paramsArr.getGradient().duplicate());
+                        try (GradientCollector collector = Engine.getInstance().newGradientCollector()) {
+                            collector.backward(lossActor);
+                            policyOptimizer.update();
                         }
                     }
                 }
             }
+            policyModel.syncHostForward();
         } catch (TranslateException e) {
             throw new IllegalStateException(e);
         }
     }
 
     private NDArray normalLogDensity(NDArray actions, NDArray actionMean, NDArray actionLogStd, NDArray actionStd) {
-        NDArray var = actionStd.pow(2);
-        NDArray logDensity = actions.sub(actionMean).pow(2).div(var.mul(2)).neg().sub(Math.log(2 * Math.PI) * 0.5).sub(actionLogStd);
+        NDArray var = actionStd.square();
+        NDArray logDensity = actions.sub(actionMean).square().div(Helper.mul(var, 2)).neg().sub(Math.log(2 * Math.PI) * 0.5).sub(actionLogStd);
         return logDensity.sum(new int[]{1}, true);
     }
 }
@@ -29,4 +29,8 @@ public final class PPOParameter {
     public final static float CLIP_EPSILON = 0.2f;
     public final static float RATIO_LOWER_BOUND = 1.0f - CLIP_EPSILON;
     public final static float RATIO_UPPER_BOUND = 1.0f + CLIP_EPSILON;
+    /**
+     * 是否在连续存储的模型参数上融合进行Adam更新
+     */
+    public final static boolean FUSED_OPTIMIZER = false;
 }
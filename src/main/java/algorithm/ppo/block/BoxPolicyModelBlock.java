@@ -15,6 +15,7 @@ import ai.djl.training.initializer.Initializer;
 import ai.djl.training.initializer.XavierInitializer;
 import ai.djl.util.PairList;
 import algorithm.BaseModelBlock;
+import utils.Helper;
 
 /**
  * 用于生成连续型动作的策略模型
@@ -55,7 +56,8 @@ public class BoxPolicyModelBlock extends BaseModelBlock {
     protected NDList forwardInternal(ParameterStore parameterStore, NDList inputs, boolean training, PairList<String, Object> params) {
         NDList hidden = new NDList(affineLayer.forward(parameterStore, inputs, training).singletonOrThrow());
         NDArray mean = actionMean.forward(parameterStore, hidden, training).singletonOrThrow();
-        NDArray logStd = actionLogStd.getArray().broadcast(mean.getShape()).duplicate();
+        // 以参数为第一个操作数的结果归属于模型的NDManager，需转交给本次输入的NDManager
+        NDArray logStd = Helper.scoped(actionLogStd.getArray().broadcast(mean.getShape()), mean.getManager()).duplicate();
         NDArray std = logStd.exp();
         return new NDList(mean, logStd, std);
     }
@@ -2,6 +2,8 @@ package algorithm.ppo.model;
 
 import ai.djl.ndarray.NDList;
 import algorithm.BaseModel;
+import algorithm.CommonParameter;
+import algorithm.HostMlp;
 import env.action.core.IAction;
 import utils.datatype.PolicyPair;
 
@@ -18,6 +20,10 @@ public abstract class BasePolicyModel<A extends IAction> extends BaseModel {
      * 随机数生成器
      */
     protected Random random = new Random(0);
+    /**
+     * 纯Java前向计算，模型不支持或未开启时为null
+     */
+    protected HostMlp hostMlp;
 
     /**
      * 进行策略选择
@@ -30,4 +36,27 @@ public abstract class BasePolicyModel<A extends IAction> extends BaseModel {
      */
     public abstract PolicyPair<A> policy(NDList states, boolean deterministic, boolean returnPolicyInfo, boolean noGrad);
 
+
+    /**
+     * 重新设置随机种子，多个模型副本并行采样时需为各副本设置不同的种子，避免探索时的随机数序列相同
+     */
+    public void seed(long seed) {
+        random.setSeed(seed);
+    }
+
+    /**
+     * 判断指定大小的批次是否在JVM中完成前向计算
+     */
+    protected boolean useHostForward(int batchSize) {
+        return hostMlp != null && batchSize <= CommonParameter.HOST_FORWARD_MAX_BATCH;
+    }
+
+    /**
+     * 模型参数更新后，重新拷贝纯Java前向计算所用的参数
+     */
+    public void syncHostForward() {
+        if (hostMlp != null) {
+            hostMlp.sync();
+        }
+    }
 }
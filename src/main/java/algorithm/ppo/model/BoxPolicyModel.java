@@ -4,16 +4,19 @@ import ai.djl.Model;
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDList;
 import ai.djl.ndarray.NDManager;
-import ai.djl.ndarray.index.NDIndex;
 import ai.djl.ndarray.types.DataType;
 import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.Parameter;
 import ai.djl.translate.NoopTranslator;
 import ai.djl.translate.TranslateException;
+import ai.djl.util.Pair;
 import algorithm.BaseModelBlock;
 import algorithm.CommonParameter;
+import algorithm.HostMlp;
 import algorithm.ppo.PPOParameter;
 import algorithm.ppo.block.BoxPolicyModelBlock;
 import env.action.core.impl.BoxAction;
+import utils.datatype.BoxActionView;
 import utils.datatype.PolicyPair;
 
 import java.util.ArrayList;
@@ -26,6 +29,11 @@ import java.util.List;
  * @date 2021-09-23 22:01
  */
 public class BoxPolicyModel extends BasePolicyModel<BoxAction> {
+    /**
+     * 动作方差对数参数，及其用于纯Java前向计算的拷贝
+     */
+    private Parameter actionLogStd;
+    private float[] hostLogStd;
 
     private BoxPolicyModel() {
         // 私有化构造器
@@ -41,11 +49,25 @@ public class BoxPolicyModel extends BasePolicyModel<BoxAction> {
         boxPolicyModel.manager = manager;
         boxPolicyModel.model = model;
         boxPolicyModel.predictor = model.newPredictor(new NoopTranslator());
+        if (CommonParameter.HOST_FORWARD_MAX_BATCH > 0) {
+            for (Pair<String, Parameter> params : net.getParameters()) {
+                if (params.getValue().getType() == Parameter.Type.OTHER) {
+                    boxPolicyModel.actionLogStd = params.getValue();
+                }
+            }
+            boxPolicyModel.hostMlp = HostMlp.mirror(net.getParameters(), HostMlp.Activation.TANH);
+            boxPolicyModel.syncHostForward();
+        }
         return boxPolicyModel;
     }
 
     @Override
     public PolicyPair<BoxAction> policy(NDList states, boolean deterministic, boolean returnPolicyInfo, boolean noGrad) {
+        NDArray input = states.singletonOrThrow();
+        int batchSize = (int) input.getShape().get(0);
+        if (!returnPolicyInfo && useHostForward(batchSize)) {
+            return hostPolicy(input.toFloatArray(), batchSize, deterministic);
+        }
         try (NDManager subManager = manager.newSubManager()) {
             NDList distribution = predictor.predict(states);
             NDArray mean = distribution.get(0);
@@ -65,15 +87,40 @@ public class BoxPolicyModel extends BasePolicyModel<BoxAction> {
                 actionArray = std.mul(noise).add(mean);
             }
 
-            int actionSize = (int) actionArray.getShape().get(0);
-            List<BoxAction> actions = new ArrayList<>();
-            for (int i = 0; i < actionSize; i++) {
-                float[] actionData = actionArray.get(new NDIndex(i + ",:")).toFloatArray();
-                actions.add(new BoxAction(actionData));
-            }
+            List<BoxAction> actions = new BoxActionView(actionArray);
             return PolicyPair.of(actions, null);
         } catch (TranslateException e) {
             throw new IllegalStateException(e);
         }
     }
+
+    @Override
+    public void syncHostForward() {
+        super.syncHostForward();
+        if (hostMlp != null) {
+            hostLogStd = actionLogStd.getArray().toFloatArray();
+        }
+    }
+
+    /**
+     * 在JVM中完成前向计算及动作采样
+     */
+    private PolicyPair<BoxAction> hostPolicy(float[] states, int batchSize, boolean deterministic) {
+        float[] means = hostMlp.forward(states, batchSize);
+        int actionDim = hostMlp.getOutputSize();
+        float[] logStd = hostLogStd;
+        List<BoxAction> actions = new ArrayList<>(batchSize);
+        for (int n = 0; n < batchSize; n++) {
+            float[] actionData = new float[actionDim];
+            for (int i = 0; i < actionDim; i++) {
+                double action = means[n * actionDim + i];
+                if (!deterministic) {
+                    action += Math.exp(logStd[i]) * random.nextGaussian();
+                }
+                actionData[i] = (float) action;
+            }
+            actions.add(new BoxAction(actionData));
+        }
+        return PolicyPair.of(actions, null);
+    }
 }
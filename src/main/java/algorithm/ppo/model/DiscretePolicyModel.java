@@ -9,10 +9,12 @@ import ai.djl.ndarray.types.Shape;
 import ai.djl.translate.NoopTranslator;
 import ai.djl.translate.TranslateException;
 import algorithm.BaseModelBlock;
+import algorithm.CommonParameter;
+import algorithm.HostMlp;
 import algorithm.ppo.PPOParameter;
 import algorithm.ppo.block.DiscretePolicyModelBlock;
 import env.action.core.impl.DiscreteAction;
-import utils.ActionSampler;
+import utils.CategoricalSampler;
 import utils.datatype.PolicyPair;
 
 import java.util.ArrayList;
@@ -40,11 +42,19 @@ public class DiscretePolicyModel extends BasePolicyModel<DiscreteAction> {
         discretePolicyModel.manager = manager;
         discretePolicyModel.model = model;
         discretePolicyModel.predictor = model.newPredictor(new NoopTranslator());
+        if (CommonParameter.HOST_FORWARD_MAX_BATCH > 0) {
+            discretePolicyModel.hostMlp = HostMlp.mirror(net.getParameters(), HostMlp.Activation.TANH);
+        }
         return discretePolicyModel;
     }
 
     @Override
     public PolicyPair<DiscreteAction> policy(NDList states, boolean deterministic, boolean returnPolicyInfo, boolean noGrad) {
+        NDArray input = states.singletonOrThrow();
+        int batchSize = (int) input.getShape().get(0);
+        if (!returnPolicyInfo && useHostForward(batchSize)) {
+            return hostPolicy(input.toFloatArray(), batchSize, deterministic);
+        }
         try (NDManager subManager = manager.newSubManager()) {
             NDArray prob = predictor.predict(states).singletonOrThrow();
             if (noGrad) {
@@ -55,18 +65,57 @@ public class DiscretePolicyModel extends BasePolicyModel<DiscreteAction> {
             if (deterministic) {
                 actionArray = prob.argMax(-1).toType(DataType.INT32, false);
             } else {
-                actionArray = ActionSampler.sampleMultinomial(subManager, prob, random);
+                actionArray = CategoricalSampler.sample(subManager, prob, random);
             }
 
-            int sampleSize = (int) actionArray.getShape().get(0);
-            List<DiscreteAction> actions = new ArrayList<>();
-            for (int i = 0; i < sampleSize; i++) {
-                int actionData = actionArray.getInt(i);
-                actions.add(new DiscreteAction(actionData));
+            int[] actionData = actionArray.toIntArray();
+            List<DiscreteAction> actions = new ArrayList<>(actionData.length);
+            for (int action : actionData) {
+                actions.add(new DiscreteAction(action));
             }
             return PolicyPair.of(actions, null);
         } catch (TranslateException e) {
             throw new IllegalStateException(e);
         }
     }
+
+    /**
+     * 在JVM中完成前向计算及动作采样
+     */
+    private PolicyPair<DiscreteAction> hostPolicy(float[] states, int batchSize, boolean deterministic) {
+        float[] scores = hostMlp.forward(states, batchSize);
+        int actionNum = hostMlp.getOutputSize();
+        int[] actionData = new int[batchSize];
+        for (int n = 0; n < batchSize; n++) {
+            int offset = n * actionNum;
+            int best = 0;
+            for (int j = 1; j < actionNum; j++) {
+                if (scores[offset + j] > scores[offset + best]) {
+                    best = j;
+                }
+            }
+            actionData[n] = best;
+            if (deterministic) {
+                continue;
+            }
+            // softmax
+            float max = scores[offset + best];
+            float sum = 0;
+            for (int j = 0; j < actionNum; j++) {
+                scores[offset + j] = (float) Math.exp(scores[offset + j] - max);
+                sum += scores[offset + j];
+            }
+            for (int j = 0; j < actionNum; j++) {
+                scores[offset + j] /= sum;
+            }
+        }
+        if (!deterministic) {
+            actionData = CategoricalSampler.sample(scores, batchSize, actionNum, random, CommonParameter.CATEGORICAL_SAMPLING);
+        }
+        List<DiscreteAction> actions = new ArrayList<>(batchSize);
+        for (int action : actionData) {
+            actions.add(new DiscreteAction(action));
+        }
+        return PolicyPair.of(actions, null);
+    }
 }
@@ -15,7 +15,7 @@ import ai.djl.training.initializer.Initializer;
 import ai.djl.training.initializer.XavierInitializer;
 import ai.djl.util.PairList;
 import algorithm.ppo.PPOParameter;
-import utils.ActionSampler;
+import utils.CategoricalSampler;
 
 import java.util.Random;
 
@@ -24,15 +24,13 @@ import java.util.Random;
  * @date 2021-11-29 10:39
  */
 public class ActorCriticPolicy extends AbstractBlock {
-    private NDManager mainManager;
     private Random random;
 
     private MlpExtractor mlpExtractor;
     private Block actionNet;
     private Block valueNet;
 
-    public ActorCriticPolicy(NDManager mainManager, Random random, int actionDim) {
-        this.mainManager = mainManager;
+    public ActorCriticPolicy(Random random, int actionDim) {
         this.random = random;
 
         int[] shared = new int[]{};
@@ -55,12 +53,12 @@ public class ActorCriticPolicy extends AbstractBlock {
 //        NDArray maskPolicy = NDArrays.where(mask, meanAction, meanAction.getManager().create(-1e8f));
 //        maskPolicy = maskPolicy.sub(maskPolicy.exp().sum(new int[]{-1},true).log());
         NDArray actionProb = meanAction.softmax(-1);
+        // 动作与输入归属于同一个NDManager，由调用方决定其生命周期
         NDArray actions;
         if (training) {
-            actions = ActionSampler.sampleMultinomial(mainManager, actionProb, random);
+            actions = CategoricalSampler.sample(actionProb.getManager(), actionProb, random);
         } else {
             actions = actionProb.argMax().toType(DataType.INT32, false);
-            actions.attach(mainManager);
         }
         NDArray entropy = meanAction.mul(actionProb).sum(new int[]{-1}).neg();
         return new NDList(actions, values, meanAction, entropy);
@@ -11,7 +11,7 @@ import ai.djl.translate.TranslateException;
 import algorithm.BaseModelBlock;
 import algorithm.ppo.PPOParameter;
 import env.action.core.impl.DiscreteAction;
-import utils.ActionSampler;
+import utils.CategoricalSampler;
 import utils.datatype.PolicyPair;
 
 import java.util.ArrayList;
@@ -54,14 +54,13 @@ public class DiscreteActorCriticModel extends BaseActorCriticModel<DiscreteActio
                 actionArray = prob.argMax(-1).toType(DataType.INT32, false);
             } else {
                 Random random = new Random(0);
-                actionArray = ActionSampler.sampleMultinomial(subManager, prob, random);
+                actionArray = CategoricalSampler.sample(subManager, prob, random);
             }
 
-            int sampleSize = (int) actionArray.getShape().get(0);
-            List<DiscreteAction> actions = new ArrayList<>();
-            for (int i = 0; i < sampleSize; i++) {
-                int actionData = actionArray.getInt(i);
-                actions.add(new DiscreteAction(actionData));
+            int[] actionData = actionArray.toIntArray();
+            List<DiscreteAction> actions = new ArrayList<>(actionData.length);
+            for (int action : actionData) {
+                actions.add(new DiscreteAction(action));
             }
             return PolicyPair.of(actions, null);
         } catch (TranslateException e) {
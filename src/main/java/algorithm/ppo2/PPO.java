@@ -6,16 +6,17 @@ import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDList;
 import ai.djl.ndarray.NDManager;
 import ai.djl.ndarray.index.NDIndex;
-import ai.djl.ndarray.types.Shape;
 import ai.djl.training.GradientCollector;
 import ai.djl.training.Trainer;
 import ai.djl.translate.Batchifier;
+import algorithm.AdvantageEstimator;
 import algorithm.CommonParameter;
 import algorithm.RlAgentCloseable;
 import algorithm.ppo.PPOParameter;
 import utils.Helper;
+import utils.MinibatchPrefetcher;
+import utils.MinibatchPrefetcher.Minibatch;
 
-import java.util.Arrays;
 import java.util.Random;
 
 /**
@@ -48,6 +49,8 @@ public class PPO implements RlAgentCloseable {
             } else {
                 action = trainer.evaluate(batchifier.batchify(inputs)).get(0).duplicate();
             }
+            // 交给环境后，动作随对应的Step一起释放
+            action.attach(agentManager);
             return new NDList(action);
         }
     }
@@ -77,45 +80,45 @@ public class PPO implements RlAgentCloseable {
             NDList lastValueOutput = trainer.forward(new NDList(lastState));
             float lastValue = lastValueOutput.get(1).duplicate().getFloat(-1);
 
-            NDList estimates = estimateAdvantage(lastValue, values, rewards, masks);
+            NDList estimates = AdvantageEstimator.estimate(lastValue, values, rewards, masks);
             NDArray expectedReturns = estimates.get(0);
             NDArray advantages = estimates.get(1);
 
-            int optimIterNum = (int) (states.getShape().get(0) + CommonParameter.INNER_BATCH_SIZE - 1) / CommonParameter.INNER_BATCH_SIZE;
-            for (int i = 0; i < CommonParameter.INNER_UPDATES; i++) {
-                int[] allIndex = subManager.arange((int) states.getShape().get(0)).toIntArray();
-                Helper.shuffleArray(allIndex);
-                for (int j = 0; j < optimIterNum; j++) {
-                    int[] index = Arrays.copyOfRange(allIndex, j * CommonParameter.INNER_BATCH_SIZE, Math.min((j + 1) * CommonParameter.INNER_BATCH_SIZE, (int) states.getShape().get(0)));
-                    NDArray statesSubset = getSample(subManager, states, index);
-                    NDArray actionsSubset = getSample(subManager, actions, index);
-                    NDArray actionLogProbPredSubset = getSample(subManager, actionLogProbPred, index);
-                    NDArray entropySubset = getSample(subManager, entropy, index);
-                    NDArray expectedReturnsSubset = getSample(subManager, expectedReturns, index);
-                    NDArray advantagesSubset = getSample(subManager, advantages, index);
-                    NDArray distributionSubset = getSample(subManager, distribution, index);
-
-                    NDList outputBatch = trainer.forward(new NDList(statesSubset));
-                    NDArray actionsBatch = outputBatch.get(0);
-                    NDArray valuesBatch = outputBatch.get(1);
-                    NDArray actionLogProbBatch = outputBatch.get(2);
-                    NDArray distributionBatch = actionLogProbBatch.get(new NDIndex().addAllDim(actionLogProbBatch.getShape().dimension() - 1).addPickDim(actionsSubset));
-
-                    NDArray ratios = distributionBatch.sub(distributionSubset).exp();
-
-                    NDArray surr1 = ratios.mul(advantagesSubset);
-                    NDArray surr2 = ratios.clip(PPOParameter.RATIO_LOWER_BOUND, PPOParameter.RATIO_UPPER_BOUND).mul(advantagesSubset);
-                    NDArray lossActor = surr1.minimum(surr2).mean().neg();
-
-                    NDArray lossCritic = (expectedReturnsSubset.sub(valuesBatch)).square().mean();
-
-                    NDArray lossEntropy = entropySubset.mean().neg();
-
-                    NDArray loss = lossActor.add(lossEntropy.mul(PPOParameter.ENT_LOSS_COEF)).add(lossCritic.mul(PPOParameter.VF_LOSS_COEF));
-
-                    try (GradientCollector collector = Engine.getInstance().newGradientCollector()) {
-                        collector.backward(loss);
-                        trainer.step();
+            NDList fields = new NDList(states, actions, actionLogProbPred, entropy, expectedReturns, advantages, distribution);
+            try (MinibatchPrefetcher prefetcher = MinibatchPrefetcher.shuffled(subManager, fields,
+                    CommonParameter.INNER_BATCH_SIZE, CommonParameter.INNER_UPDATES, random.nextLong())) {
+                while (prefetcher.hasNext()) {
+                    try (Minibatch minibatch = prefetcher.next()) {
+                        NDArray statesSubset = minibatch.get(0);
+                        NDArray actionsSubset = minibatch.get(1);
+                        NDArray actionLogProbPredSubset = minibatch.get(2);
+                        NDArray entropySubset = minibatch.get(3);
+                        NDArray expectedReturnsSubset = minibatch.get(4);
+                        NDArray advantagesSubset = minibatch.get(5);
+                        NDArray distributionSubset = minibatch.get(6);
+
+                        NDList outputBatch = trainer.forward(new NDList(statesSubset));
+                        NDArray actionsBatch = outputBatch.get(0);
+                        NDArray valuesBatch = outputBatch.get(1);
+                        NDArray actionLogProbBatch = outputBatch.get(2);
+                        NDArray distributionBatch = actionLogProbBatch.get(new NDIndex().addAllDim(actionLogProbBatch.getShape().dimension() - 1).addPickDim(actionsSubset));
+
+                        NDArray ratios = distributionBatch.sub(distributionSubset).exp();
+
+                        NDArray surr1 = ratios.mul(advantagesSubset);
+                        NDArray surr2 = ratios.clip(PPOParameter.RATIO_LOWER_BOUND, PPOParameter.RATIO_UPPER_BOUND).mul(advantagesSubset);
+                        NDArray lossActor = surr1.minimum(surr2).mean().neg();
+
+                        NDArray lossCritic = (expectedReturnsSubset.sub(valuesBatch)).square().mean();
+
+                        NDArray lossEntropy = entropySubset.mean().neg();
+
+                        NDArray loss = lossActor.add(Helper.mul(lossEntropy, PPOParameter.ENT_LOSS_COEF)).add(Helper.mul(lossCritic, PPOParameter.VF_LOSS_COEF));
+
+                        try (GradientCollector collector = Engine.getInstance().newGradientCollector()) {
+                            collector.backward(loss);
+                            trainer.step();
+                        }
                     }
                 }
             }
@@ -161,38 +164,4 @@ public class PPO implements RlAgentCloseable {
         }
         return resultData;
     }
-
-    private NDList estimateAdvantage(float lastValue, NDArray values, NDArray rewards, boolean[] masks) {
-        NDManager manager = rewards.getManager();
-        NDArray deltas = manager.create(rewards.getShape());
-        NDArray advantages = manager.create(rewards.getShape());
-
-        float prevValue = lastValue;
-        float prevAdvantage = 0;
-        for (int i = (int) rewards.getShape().get(0) - 1; i >= 0; i--) {
-            NDIndex index = new NDIndex(i);
-            int mask = masks[i] ? 0 : 1;
-            deltas.set(index, rewards.get(i).add(CommonParameter.GAMMA * prevValue * mask).sub(values.get(i)));
-            advantages.set(index, deltas.get(i).add(CommonParameter.GAMMA * CommonParameter.GAE_LAMBDA * prevAdvantage * mask));
-
-            prevValue = values.getFloat(i);
-            prevAdvantage = advantages.getFloat(i);
-        }
-
-        NDArray expected_returns = values.add(advantages);
-        NDArray advantagesMean = advantages.mean();
-        NDArray advantagesStd = advantages.sub(advantagesMean).pow(2).sum().div(advantages.size() - 1).sqrt();
-        advantages = advantages.sub(advantagesMean).div(advantagesStd);
-
-        return new NDList(expected_returns, advantages);
-    }
-
-    private NDArray getSample(NDManager subManager, NDArray array, int[] index) {
-        Shape shape = Shape.update(array.getShape(), 0, index.length);
-        NDArray sample = subManager.zeros(shape, array.getDataType());
-        for (int i = 0; i < index.length; i++) {
-            sample.set(new NDIndex(i), array.get(index[i]));
-        }
-        return sample;
-    }
 }
@@ -63,7 +63,7 @@ public class PPOTrainer {
         int stateSpaceDim = (int) env.getObservation().singletonOrThrow().getShape().get(0);
         int actionSpaceDim = env.getActionSpace().size();
         Model policyModel = Model.newInstance("discrete_policy_model");
-        ActorCriticPolicy policyNet = new ActorCriticPolicy(mainManager, random, actionSpaceDim);
+        ActorCriticPolicy policyNet = new ActorCriticPolicy(random, actionSpaceDim);
         policyModel.setBlock(policyNet);
 
         DefaultTrainingConfig policyConfig = setupTrainingConfig();
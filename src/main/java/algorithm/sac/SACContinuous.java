@@ -12,21 +12,19 @@ import ai.djl.training.optimizer.Optimizer;
 import ai.djl.training.tracker.Tracker;
 import ai.djl.translate.TranslateException;
 import ai.djl.util.Pair;
-import algorithm.BaseAlgorithm;
-import algorithm.BaseModel;
+import algorithm.BaseOffPolicyAlgorithm;
 import algorithm.CommonParameter;
+import algorithm.ModelOptimizer;
 import algorithm.ppo.model.BasePolicyModel;
+import algorithm.sac.model.EnsembleQFunctionModel;
 import algorithm.sac.model.GaussianPolicyModel;
-import algorithm.sac.model.QFunctionModel;
 import env.action.core.impl.BoxAction;
 import env.common.Environment;
 import env.state.core.IState;
 import utils.Helper;
-import utils.MemoryBatch;
+import utils.TargetUpdater;
 import utils.datatype.PolicyPair;
 
-import java.util.Arrays;
-
 /**
  * SAC算法  Soft Actor-Critic algorithm
  * 针对连续型动作空间和连续型状态空间
@@ -34,30 +32,25 @@ import java.util.Arrays;
  * @author Caojunqi
  * @date 2021-10-12 15:03
  */
-public class SACContinuous<S extends IState<S>> extends BaseAlgorithm<S, BoxAction> {
+public class SACContinuous<S extends IState<S>> extends BaseOffPolicyAlgorithm<S, BoxAction> {
     /**
      * 策略模型
      */
     private BasePolicyModel<BoxAction> policyModel;
-    private Optimizer policyOptimizer;
-    /**
-     * Q函数模型_1
-     */
-    private BaseModel qf1;
-    private Optimizer qfOptimizer1;
+    private ModelOptimizer policyOptimizer;
     /**
-     * Q函数模型_2
+     * 集成Q函数模型
      */
-    private BaseModel qf2;
-    private Optimizer qfOptimizer2;
+    private EnsembleQFunctionModel qf;
+    private ModelOptimizer qfOptimizer;
     /**
-     * 目标Q函数模型_1
+     * 目标集成Q函数模型
      */
-    private BaseModel targetQf1;
+    private EnsembleQFunctionModel targetQf;
     /**
-     * 目标Q函数模型_2
+     * 目标Q函数模型参数更新器
      */
-    private BaseModel targetQf2;
+    private TargetUpdater targetQfUpdater;
 
 
     private NDArray entropyScale;
@@ -66,20 +59,21 @@ public class SACContinuous<S extends IState<S>> extends BaseAlgorithm<S, BoxActi
     private Optimizer alphasOptimizer;
 
     public SACContinuous(NDManager manager, Environment<S, BoxAction> env) {
-        super(manager);
+        this(manager, env, CommonParameter.PERSISTENT_REPLAY);
+    }
+
+    public SACContinuous(NDManager manager, Environment<S, BoxAction> env, boolean persistentReplay) {
+        super(manager, persistentReplay);
         int stateDim = env.getStateSpaceDim();
         int actionDim = env.getActionSpaceDim();
         this.policyModel = GaussianPolicyModel.newModel(manager, stateDim, actionDim);
-        this.policyOptimizer = Optimizer.adam().optLearningRateTracker(Tracker.fixed(SACParameter.POLICY_LR)).optWeightDecays(SACParameter.POLICY_WEIGHT_DECAY).build();
-        this.qf1 = QFunctionModel.newModel(manager, stateDim, actionDim);
-        this.qfOptimizer1 = Optimizer.adam().optLearningRateTracker(Tracker.fixed(SACParameter.QF_LR)).build();
-        this.qf2 = QFunctionModel.newModel(manager, stateDim, actionDim);
-        this.qfOptimizer2 = Optimizer.adam().optLearningRateTracker(Tracker.fixed(SACParameter.QF_LR)).build();
-        this.targetQf1 = QFunctionModel.newModel(manager, stateDim, actionDim);
-        this.targetQf2 = QFunctionModel.newModel(manager, stateDim, actionDim);
-
-        Helper.copyModel(qf1, targetQf1);
-        Helper.copyModel(qf2, targetQf2);
+        this.policyOptimizer = ModelOptimizer.adam(policyModel, Tracker.fixed(SACParameter.POLICY_LR), SACParameter.POLICY_WEIGHT_DECAY, SACParameter.FUSED_OPTIMIZER);
+        this.qf = EnsembleQFunctionModel.newModel(manager, stateDim, actionDim, SACParameter.QF_ENSEMBLE_SIZE);
+        this.qfOptimizer = ModelOptimizer.adam(qf, Tracker.fixed(SACParameter.QF_LR), SACParameter.FUSED_OPTIMIZER);
+        this.targetQf = EnsembleQFunctionModel.newModel(manager, stateDim, actionDim, SACParameter.QF_ENSEMBLE_SIZE);
+
+        this.targetQfUpdater = new TargetUpdater(qf, targetQf, CommonParameter.SOFT_TARGET_TAU, CommonParameter.TARGET_UPDATE_INTERVAL);
+        targetQfUpdater.hardUpdate();
         this.entropyScale = manager.create(SACParameter.ENTROPY_SCALE);
         this.tgtEntro = manager.create(-actionDim);
         this.logAlpha = manager.zeros(new Shape(1));
@@ -89,136 +83,102 @@ public class SACContinuous<S extends IState<S>> extends BaseAlgorithm<S, BoxActi
 
     @Override
     public BoxAction selectAction(S state) {
-        NDManager subManager = manager.newSubManager();
-        return policyModel.policy(state.singleStateList(subManager), false, false, true).singletonOrThrow();
+        return policyAction(state, false);
     }
 
     @Override
     public BoxAction greedyAction(S state) {
-        NDManager subManager = manager.newSubManager();
-        return policyModel.policy(state.singleStateList(subManager), true, false, true).singletonOrThrow();
+        return policyAction(state, true);
     }
 
     @Override
-    public void updateModel() {
-        try (NDManager subManager = manager.newSubManager()) {
-            MemoryBatch batch = memory.sample(subManager);
-            NDArray states = batch.getStates();
-            NDArray actions = batch.getActions();
-            NDArray nextStates = batch.getNextStates();
-            NDArray rewards = batch.getRewards();
-            NDArray masks = batch.getMasks();
-            NDArray terminations = masks.toType(DataType.FLOAT64, true);
-
-            float policyPriorLogProb = 0.0f; // Uniform prior // TODO: Normal prior
-
-            int optimIterNum = (int) (states.getShape().get(0) + CommonParameter.INNER_BATCH_SIZE - 1) / CommonParameter.INNER_BATCH_SIZE;
-            for (int i = 0; i < CommonParameter.INNER_UPDATES; i++) {
-                int[] allIndex = manager.arange((int) states.getShape().get(0)).toIntArray();
-                Helper.shuffleArray(allIndex);
-                for (int j = 0; j < optimIterNum; j++) {
-                    int[] index = Arrays.copyOfRange(allIndex, j * CommonParameter.INNER_BATCH_SIZE, Math.min((j + 1) * CommonParameter.INNER_BATCH_SIZE, (int) states.getShape().get(0)));
-                    NDArray statesSubset = getSample(subManager, states, index);
-                    NDArray actionsSubset = getSample(subManager, actions, index);
-                    NDArray nextStatesSubset = getSample(subManager, nextStates, index);
-                    NDArray rewardsSubset = getSample(subManager, rewards, index);
-                    NDArray terminationsSubset = getSample(subManager, terminations, index);
-
-                    // Alphas
-                    NDArray alpha = this.entropyScale.mul(this.logAlpha.exp().duplicate());
-
-                    // Actions for batch observation
-                    PolicyPair<BoxAction> policyPair = this.policyModel.policy(new NDList(statesSubset), false, true, false);
-                    NDArray newActions = policyPair.getInfo().get(0);
-                    NDArray newLogPi = policyPair.getInfo().get(4);
-                    PolicyPair<BoxAction> nextPolicyPair = this.policyModel.policy(new NDList(nextStatesSubset), false, true, true);
-                    NDArray nextActions = nextPolicyPair.getInfo().get(0);
-                    NDArray nextLogPi = nextPolicyPair.getInfo().get(4);
-
-                    // =========== Policy Evaluation Step ============
-
-                    // Estimate from target Q-value(s)
-                    // Q1_target(s', a')
-                    NDArray nextStatesActions = nextStatesSubset.concat(nextActions, -1).toType(DataType.FLOAT32, false);
-                    NDArray nextQ1 = this.targetQf1.getPredictor().predict(new NDList(nextStatesActions)).singletonOrThrow().duplicate();
-                    // Q2_target(s', a')
-                    NDArray nextQ2 = this.targetQf2.getPredictor().predict(new NDList(nextStatesActions)).singletonOrThrow().duplicate();
-                    // Minimum Unintentional Double-Q
-                    NDArray nextQ = nextQ1.minimum(nextQ2);
-                    // V_target(s')
-                    NDArray nextV = nextQ.sub(alpha.mul(nextLogPi)).duplicate();
-
-                    // Calculate Bellman Backup for Q-values
-                    NDArray qBackup = rewardsSubset.add(terminationsSubset.neg().add(1).mul(CommonParameter.GAMMA).mul(nextV));
-
-                    // Prediction Q(s,a)
-                    NDArray statesActions = statesSubset.concat(actionsSubset, -1).toType(DataType.FLOAT32, false);
-                    NDArray predQ1 = this.qf1.getPredictor().predict(new NDList(statesActions)).singletonOrThrow();
-                    // Critic loss: Mean Squared Bellman Error (MSBE)
-                    NDArray lossQf1 = predQ1.sub(qBackup).pow(2).mean().mul(0.5).squeeze(-1);
-
-                    NDArray predQ2 = this.qf2.getPredictor().predict(new NDList(statesActions)).singletonOrThrow();
-                    NDArray lossQf2 = predQ2.sub(qBackup).pow(2).mean().mul(0.5).squeeze(-1);
-
-                    NDArray qvaluesLoss = lossQf1.add(lossQf2);
-                    try (GradientCollector collector = Engine.getInstance().newGradientCollector()) {
-                        collector.backward(qvaluesLoss);
-                        for (Pair<String, Parameter> params : qf1.getModel().getBlock().getParameters()) {
-                            NDArray paramsArr = params.getValue().getArray();
-                            qfOptimizer1.update(params.getKey(), paramsArr, paramsArr.getGradient().duplicate());
-                        }
-                        for (Pair<String, Parameter> params : qf2.getModel().getBlock().getParameters()) {
-                            NDArray paramsArr = params.getValue().getArray();
-                            qfOptimizer2.update(params.getKey(), paramsArr, paramsArr.getGradient().duplicate());
-                        }
-                    }
-
-                    // =========== Policy Improvement Step ============
-
-                    // TODO: Decide if use the minimum btw q1 and q2. Using new_q1 for now
-                    for (Pair<String, Parameter> params : qf1.getModel().getBlock().getParameters()) {
-                        params.getValue().getArray().setRequiresGradient(false);
-                    }
-                    NDArray statesNewActions = statesSubset.concat(newActions, -1).toType(DataType.FLOAT32, false);
-                    NDArray newQ1 = this.qf1.getPredictor().predict(new NDList(statesNewActions)).singletonOrThrow();
-                    NDArray newQ = newQ1;
-
-                    // Policy KL loss: - (E_a[Q(s, a) + H(.)])
-                    NDArray policyKlLoss = newQ.sub(alpha.mul(newLogPi)).add(policyPriorLogProb).mean().neg();
-                    // TODO: It can include regularization of mean, std
-                    double policyReguLoss = 0;
-                    NDArray policyLoss = policyKlLoss.add(policyReguLoss).sum();
-                    try (GradientCollector collector = Engine.getInstance().newGradientCollector()) {
-                        collector.backward(policyLoss);
-                        for (Pair<String, Parameter> params : policyModel.getModel().getBlock().getParameters()) {
-                            NDArray paramsArr = params.getValue().getArray();
-                            policyOptimizer.update(params.getKey(), paramsArr, paramsArr.getGradient().duplicate());
-                        }
-                    }
-
-                    for (Pair<String, Parameter> params : qf1.getModel().getBlock().getParameters()) {
-                        params.getValue().getArray().setRequiresGradient(true);
-                    }
-
-                    // =========== Entropy Adjustment Step ===========
-
-                    // NOTE: In formula is alphas and not log_alphas
-                    NDArray alphasLoss = this.logAlpha.mul(newLogPi.squeeze(-1).add(this.tgtEntro).mean().duplicate()).neg();
-                    NDArray hiuAlphasLoss = alphasLoss.sum();
-                    try (GradientCollector collector = Engine.getInstance().newGradientCollector()) {
-                        collector.backward(hiuAlphasLoss);
-                        alphasOptimizer.update(this.logAlpha.getUid(), this.logAlpha, this.logAlpha.getGradient().duplicate());
-                    }
-                    this.logAlpha.clip(Math.log(SACParameter.MIN_ALPHA), Math.log(SACParameter.MAX_ALPHA));
-
-                    // =========== Target Networks Update Step ===========
-
-                    Helper.softParamUpdateFromTo(this.qf1, this.targetQf1, CommonParameter.SOFT_TARGET_TAU);
-                    Helper.softParamUpdateFromTo(this.qf2, this.targetQf2, CommonParameter.SOFT_TARGET_TAU);
-                }
-            }
-        } catch (TranslateException e) {
-            throw new IllegalStateException(e);
+    public BasePolicyModel<BoxAction> getPolicyModel() {
+        return policyModel;
+    }
+
+    @Override
+    protected NDArray updateBatch(NDManager subManager, NDArray states, NDArray actions, NDArray nextStates,
+                                  NDArray rewards, NDArray terminations, NDArray weights) throws TranslateException {
+        float policyPriorLogProb = 0.0f; // Uniform prior // TODO: Normal prior
+
+        // Alphas
+        // 以logAlpha等长期存在的NDArray为第一个操作数时，运算结果需交给subManager，否则会一直留在算法的NDManager中
+        NDArray alpha = Helper.scoped(this.logAlpha.exp(), subManager).duplicate().mul(this.entropyScale);
+
+        // Actions for batch observation
+        PolicyPair<BoxAction> policyPair = this.policyModel.policy(new NDList(states), false, true, false);
+        NDArray newActions = policyPair.getInfo().get(0);
+        NDArray newLogPi = policyPair.getInfo().get(4);
+        PolicyPair<BoxAction> nextPolicyPair = this.policyModel.policy(new NDList(nextStates), false, true, true);
+        NDArray nextActions = nextPolicyPair.getInfo().get(0);
+        NDArray nextLogPi = nextPolicyPair.getInfo().get(4);
+
+        // =========== Policy Evaluation Step ============
+
+        // Estimate from target Q-value(s)
+        // Q_target(s', a'), all critics in one forward
+        NDArray nextStatesActions = nextStates.concat(nextActions, -1).toType(DataType.FLOAT32, false);
+        NDArray nextQs = this.targetQf.forward(new NDList(nextStatesActions)).singletonOrThrow().duplicate();
+        // Minimum Unintentional Double-Q
+        NDArray nextQ = EnsembleQFunctionModel.min(nextQs);
+        // V_target(s')
+        NDArray nextV = nextQ.sub(alpha.mul(nextLogPi)).duplicate();
+
+        // Calculate Bellman Backup for Q-values
+        NDArray qBackup = rewards.add(terminations.neg().add(1).mul(bootstrapDiscount).mul(nextV));
+
+        // Prediction Q(s,a)
+        NDArray statesActions = states.concat(actions, -1).toType(DataType.FLOAT32, false);
+        NDArray predQs = this.qf.forward(new NDList(statesActions)).singletonOrThrow();
+        // Critic loss: Mean Squared Bellman Error (MSBE), summed over critics so that one backward updates all of them
+        NDArray qvaluesLoss = Helper.mul(weightedMean(predQs.sub(qBackup).square().sum(new int[]{0}), weights), 0.5).squeeze(-1);
+        try (GradientCollector collector = Engine.getInstance().newGradientCollector()) {
+            collector.backward(qvaluesLoss);
+            qfOptimizer.update();
+        }
+
+        // =========== Policy Improvement Step ============
+
+        // TODO: Decide if use the minimum btw q1 and q2. Using new_q1 for now
+        for (Pair<String, Parameter> params : qf.getModel().getBlock().getParameters()) {
+            params.getValue().getArray().setRequiresGradient(false);
+        }
+        NDArray statesNewActions = states.concat(newActions, -1).toType(DataType.FLOAT32, false);
+        NDArray newQ1 = this.qf.forward(new NDList(statesNewActions)).singletonOrThrow().get(0);
+        NDArray newQ = newQ1;
+
+        // Policy KL loss: - (E_a[Q(s, a) + H(.)])
+        NDArray policyKlLoss = newQ.sub(alpha.mul(newLogPi)).add(policyPriorLogProb).mean().neg();
+        // TODO: It can include regularization of mean, std
+        double policyReguLoss = 0;
+        NDArray policyLoss = policyKlLoss.add(policyReguLoss).sum();
+        try (GradientCollector collector = Engine.getInstance().newGradientCollector()) {
+            collector.backward(policyLoss);
+            policyOptimizer.update();
+        }
+
+        for (Pair<String, Parameter> params : qf.getModel().getBlock().getParameters()) {
+            params.getValue().getArray().setRequiresGradient(true);
+        }
+
+        // =========== Entropy Adjustment Step ===========
+
+        // NOTE: In formula is alphas and not log_alphas
+        NDArray alphasLoss = newLogPi.squeeze(-1).add(this.tgtEntro).mean().duplicate().mul(this.logAlpha).neg();
+        NDArray hiuAlphasLoss = alphasLoss.sum();
+        try (GradientCollector collector = Engine.getInstance().newGradientCollector()) {
+            collector.backward(hiuAlphasLoss);
+            alphasOptimizer.update(this.logAlpha.getUid(), this.logAlpha, Helper.scoped(this.logAlpha.getGradient(), subManager).duplicate());
+        }
+        Helper.clipParameter(this.logAlpha, Math.log(SACParameter.MIN_ALPHA), Math.log(SACParameter.MAX_ALPHA), subManager);
+
+        // =========== Target Networks Update Step ===========
+
+        targetQfUpdater.step();
+
+        if (prioritizedMemory == null) {
+            return null;
         }
+        return EnsembleQFunctionModel.mean(predQs.sub(qBackup).abs());
     }
 }
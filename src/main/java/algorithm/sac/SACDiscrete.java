@@ -12,9 +12,10 @@ import ai.djl.training.optimizer.Optimizer;
 import ai.djl.training.tracker.Tracker;
 import ai.djl.translate.TranslateException;
 import ai.djl.util.Pair;
-import algorithm.BaseAlgorithm;
 import algorithm.BaseModel;
+import algorithm.BaseOffPolicyAlgorithm;
 import algorithm.CommonParameter;
+import algorithm.ModelOptimizer;
 import algorithm.ppo.model.BasePolicyModel;
 import algorithm.sac.model.DiscreteGaussianPolicyModel;
 import algorithm.sac.model.DiscreteQFunctionModel;
@@ -22,11 +23,9 @@ import env.action.core.impl.DiscreteAction;
 import env.common.Environment;
 import env.state.core.IState;
 import utils.Helper;
-import utils.MemoryBatch;
+import utils.TargetUpdater;
 import utils.datatype.PolicyPair;
 
-import java.util.Arrays;
-
 /**
  * SAC算法  Soft Actor-Critic algorithm
  * 针对离散型动作空间
@@ -34,23 +33,23 @@ import java.util.Arrays;
  * @author Caojunqi
  * @date 2021-10-26 11:26
  */
-public class SACDiscrete<S extends IState<S>> extends BaseAlgorithm<S, DiscreteAction> {
+public class SACDiscrete<S extends IState<S>> extends BaseOffPolicyAlgorithm<S, DiscreteAction> {
 
     /**
      * 策略模型
      */
     private BasePolicyModel<DiscreteAction> policyModel;
-    private Optimizer policyOptimizer;
+    private ModelOptimizer policyOptimizer;
     /**
      * Q函数模型_1
      */
     private BaseModel qf1;
-    private Optimizer qfOptimizer1;
+    private ModelOptimizer qfOptimizer1;
     /**
      * Q函数模型_2
      */
     private BaseModel qf2;
-    private Optimizer qfOptimizer2;
+    private ModelOptimizer qfOptimizer2;
     /**
      * 目标Q函数模型_1
      */
@@ -59,6 +58,11 @@ public class SACDiscrete<S extends IState<S>> extends BaseAlgorithm<S, DiscreteA
      * 目标Q函数模型_2
      */
     private BaseModel targetQf2;
+    /**
+     * 目标Q函数模型参数更新器
+     */
+    private TargetUpdater targetQfUpdater1;
+    private TargetUpdater targetQfUpdater2;
 
 
     private NDArray entropyScale;
@@ -67,20 +71,26 @@ public class SACDiscrete<S extends IState<S>> extends BaseAlgorithm<S, DiscreteA
     private Optimizer alphasOptimizer;
 
     public SACDiscrete(NDManager manager, Environment<S, DiscreteAction> env) {
-        super(manager);
+        this(manager, env, CommonParameter.PERSISTENT_REPLAY);
+    }
+
+    public SACDiscrete(NDManager manager, Environment<S, DiscreteAction> env, boolean persistentReplay) {
+        super(manager, persistentReplay);
         int stateDim = env.getStateSpaceDim();
         int actionDim = env.getActionSpaceDim();
         this.policyModel = DiscreteGaussianPolicyModel.newModel(manager, stateDim, actionDim);
-        this.policyOptimizer = Optimizer.adam().optLearningRateTracker(Tracker.fixed(SACParameter.POLICY_LR)).build();
+        this.policyOptimizer = ModelOptimizer.adam(policyModel, Tracker.fixed(SACParameter.POLICY_LR), SACParameter.FUSED_OPTIMIZER);
         this.qf1 = DiscreteQFunctionModel.newModel(manager, stateDim, actionDim);
-        this.qfOptimizer1 = Optimizer.adam().optLearningRateTracker(Tracker.fixed(SACParameter.QF_LR)).build();
+        this.qfOptimizer1 = ModelOptimizer.adam(qf1, Tracker.fixed(SACParameter.QF_LR), SACParameter.FUSED_OPTIMIZER);
         this.qf2 = DiscreteQFunctionModel.newModel(manager, stateDim, actionDim);
-        this.qfOptimizer2 = Optimizer.adam().optLearningRateTracker(Tracker.fixed(SACParameter.QF_LR)).build();
+        this.qfOptimizer2 = ModelOptimizer.adam(qf2, Tracker.fixed(SACParameter.QF_LR), SACParameter.FUSED_OPTIMIZER);
         this.targetQf1 = DiscreteQFunctionModel.newModel(manager, stateDim, actionDim);
         this.targetQf2 = DiscreteQFunctionModel.newModel(manager, stateDim, actionDim);
 
-        Helper.copyModel(qf1, targetQf1);
-        Helper.copyModel(qf2, targetQf2);
+        this.targetQfUpdater1 = new TargetUpdater(qf1, targetQf1, CommonParameter.SOFT_TARGET_TAU, CommonParameter.TARGET_UPDATE_INTERVAL);
+        this.targetQfUpdater2 = new TargetUpdater(qf2, targetQf2, CommonParameter.SOFT_TARGET_TAU, CommonParameter.TARGET_UPDATE_INTERVAL);
+        targetQfUpdater1.hardUpdate();
+        targetQfUpdater2.hardUpdate();
         this.entropyScale = manager.create(SACParameter.ENTROPY_SCALE);
         this.tgtEntro = manager.create(-actionDim);
         this.logAlpha = manager.zeros(new Shape(1));
@@ -90,131 +100,106 @@ public class SACDiscrete<S extends IState<S>> extends BaseAlgorithm<S, DiscreteA
 
     @Override
     public DiscreteAction selectAction(S state) {
-        NDManager subManager = manager.newSubManager();
-        return policyModel.policy(state.singleStateList(subManager), false, false, true).singletonOrThrow();
+        return policyAction(state, false);
     }
 
     @Override
     public DiscreteAction greedyAction(S state) {
-        NDManager subManager = manager.newSubManager();
-        return policyModel.policy(state.singleStateList(subManager), true, false, true).singletonOrThrow();
+        return policyAction(state, true);
+    }
+
+    @Override
+    public BasePolicyModel<DiscreteAction> getPolicyModel() {
+        return policyModel;
     }
 
     @Override
-    public void updateModel() {
-        try (NDManager subManager = manager.newSubManager()) {
-            MemoryBatch batch = memory.sample(subManager);
-            NDArray states = batch.getStates();
-            NDArray actions = batch.getActions();
-            NDArray nextStates = batch.getNextStates();
-            NDArray rewards = batch.getRewards();
-            NDArray masks = batch.getMasks();
-            NDArray terminations = masks.toType(DataType.FLOAT64, true);
-
-            int optimIterNum = (int) (states.getShape().get(0) + CommonParameter.INNER_BATCH_SIZE - 1) / CommonParameter.INNER_BATCH_SIZE;
-            for (int i = 0; i < CommonParameter.INNER_UPDATES; i++) {
-                int[] allIndex = manager.arange((int) states.getShape().get(0)).toIntArray();
-                Helper.shuffleArray(allIndex);
-                for (int j = 0; j < optimIterNum; j++) {
-                    int[] index = Arrays.copyOfRange(allIndex, j * CommonParameter.INNER_BATCH_SIZE, Math.min((j + 1) * CommonParameter.INNER_BATCH_SIZE, (int) states.getShape().get(0)));
-                    NDArray statesSubset = getSample(subManager, states, index);
-                    NDArray actionsSubset = getSample(subManager, actions, index);
-                    NDArray nextStatesSubset = getSample(subManager, nextStates, index);
-                    NDArray rewardsSubset = getSample(subManager, rewards, index);
-                    NDArray terminationsSubset = getSample(subManager, terminations, index);
-
-
-                    // Alphas
-                    NDArray alpha = this.entropyScale.mul(this.logAlpha.exp().duplicate());
-
-                    // Actions for batch observation
-                    PolicyPair<DiscreteAction> nextPolicyPair = this.policyModel.policy(new NDList(nextStatesSubset), false, true, false);
-                    NDArray nextDistribution = nextPolicyPair.getInfo().get(0).duplicate();
-                    NDArray nextLogDistribution = nextPolicyPair.getInfo().get(1).duplicate();
-
-                    // =========== Policy Evaluation Step ============
-
-                    NDArray nextTargetQ1 = this.targetQf1.getPredictor().predict(new NDList(nextStatesSubset)).singletonOrThrow().duplicate();
-                    NDArray nextTargetQ2 = this.targetQf2.getPredictor().predict(new NDList(nextStatesSubset)).singletonOrThrow().duplicate();
-                    NDArray nextTargetMinQf = nextDistribution.mul(nextTargetQ1.minimum(nextTargetQ2).sub(alpha.mul(nextLogDistribution))).duplicate();
-                    nextTargetMinQf = nextTargetMinQf.sum(new int[]{-1}, true);
-                    NDArray nextQValue = rewardsSubset.add(terminationsSubset.neg().add(1).mul(CommonParameter.GAMMA).mul(nextTargetMinQf));
-
-                    // Prediction Q(s,a)
-                    NDArray predQ1 = this.qf1.getPredictor().predict(new NDList(statesSubset)).singletonOrThrow();
-                    predQ1 = Helper.gather(predQ1, actionsSubset.toIntArray());
-                    // Critic loss: Mean Squared Bellman Error (MSBE)
-                    NDArray lossQf1 = predQ1.sub(nextQValue).pow(2).mean();
-                    try (GradientCollector collector = Engine.getInstance().newGradientCollector()) {
-                        collector.backward(lossQf1);
-                        for (Pair<String, Parameter> params : qf1.getModel().getBlock().getParameters()) {
-                            NDArray paramsArr = params.getValue().getArray();
-                            qfOptimizer1.update(params.getKey(), paramsArr, paramsArr.getGradient().duplicate());
-                        }
-                    }
-
-                    NDArray predQ2 = this.qf2.getPredictor().predict(new NDList(statesSubset)).singletonOrThrow();
-                    predQ2 = Helper.gather(predQ2, actionsSubset.toIntArray());
-                    NDArray lossQf2 = predQ2.sub(nextQValue).pow(2).mean();
-                    try (GradientCollector collector = Engine.getInstance().newGradientCollector()) {
-                        collector.backward(lossQf2);
-                        for (Pair<String, Parameter> params : qf2.getModel().getBlock().getParameters()) {
-                            NDArray paramsArr = params.getValue().getArray();
-                            qfOptimizer2.update(params.getKey(), paramsArr, paramsArr.getGradient().duplicate());
-                        }
-                    }
-
-                    // =========== Target Networks Update Step ===========
-
-                    Helper.softParamUpdateFromTo(this.qf1, this.targetQf1, CommonParameter.SOFT_TARGET_TAU);
-                    Helper.softParamUpdateFromTo(this.qf2, this.targetQf2, CommonParameter.SOFT_TARGET_TAU);
-
-                    // =========== Policy Improvement Step ============
-                    for (Pair<String, Parameter> params : qf1.getModel().getBlock().getParameters()) {
-                        params.getValue().getArray().setRequiresGradient(false);
-                    }
-                    for (Pair<String, Parameter> params : qf2.getModel().getBlock().getParameters()) {
-                        params.getValue().getArray().setRequiresGradient(false);
-                    }
-
-                    PolicyPair<DiscreteAction> newPolicyPair = this.policyModel.policy(new NDList(statesSubset), false, true, false);
-                    NDArray newDistribution = newPolicyPair.getInfo().get(0);
-                    NDArray newLogDistribution = newPolicyPair.getInfo().get(1);
-
-                    NDArray newQ1 = this.qf1.getPredictor().predict(new NDList(statesSubset)).singletonOrThrow();
-                    NDArray newQ2 = this.qf2.getPredictor().predict(new NDList(statesSubset)).singletonOrThrow();
-                    NDArray minNewQ = newQ1.minimum(newQ2);
-
-                    NDArray insideTerm = alpha.mul(newLogDistribution).sub(minNewQ);
-                    NDArray policyLoss = insideTerm.mul(newDistribution).sum(new int[]{1}).mean();
-                    newLogDistribution = newLogDistribution.mul(newDistribution).sum(new int[]{1});
-                    NDArray alphaLoss = this.logAlpha.mul(newLogDistribution.add(this.tgtEntro).duplicate()).mean();
-
-                    try (GradientCollector collector = Engine.getInstance().newGradientCollector()) {
-                        collector.backward(policyLoss);
-                        for (Pair<String, Parameter> params : policyModel.getModel().getBlock().getParameters()) {
-                            NDArray paramsArr = params.getValue().getArray();
-                            policyOptimizer.update(params.getKey(), paramsArr, paramsArr.getGradient().duplicate());
-                        }
-                    }
-                    for (Pair<String, Parameter> params : qf1.getModel().getBlock().getParameters()) {
-                        params.getValue().getArray().setRequiresGradient(true);
-                    }
-                    for (Pair<String, Parameter> params : qf2.getModel().getBlock().getParameters()) {
-                        params.getValue().getArray().setRequiresGradient(true);
-                    }
-
-                    // =========== Entropy Adjustment Step ===========
-
-                    try (GradientCollector collector = Engine.getInstance().newGradientCollector()) {
-                        collector.backward(alphaLoss);
-                        alphasOptimizer.update(this.logAlpha.getUid(), this.logAlpha, this.logAlpha.getGradient().duplicate());
-                    }
-                    this.logAlpha.clip(Math.log(SACParameter.MIN_ALPHA), Math.log(SACParameter.MAX_ALPHA));
-                }
-            }
-        } catch (TranslateException e) {
-            throw new IllegalStateException(e);
+    protected NDArray updateBatch(NDManager subManager, NDArray states, NDArray actions, NDArray nextStates,
+                                  NDArray rewards, NDArray terminations, NDArray weights) throws TranslateException {
+        // Alphas
+        // 以logAlpha等长期存在的NDArray为第一个操作数时，运算结果需交给subManager，否则会一直留在算法的NDManager中
+        NDArray alpha = Helper.scoped(this.logAlpha.exp(), subManager).duplicate().mul(this.entropyScale);
+
+        // Actions for batch observation
+        PolicyPair<DiscreteAction> nextPolicyPair = this.policyModel.policy(new NDList(nextStates), false, true, false);
+        NDArray nextDistribution = nextPolicyPair.getInfo().get(0).duplicate();
+        NDArray nextLogDistribution = nextPolicyPair.getInfo().get(1).duplicate();
+
+        // =========== Policy Evaluation Step ============
+
+        NDArray nextTargetQ1 = this.targetQf1.forward(new NDList(nextStates)).singletonOrThrow().duplicate();
+        NDArray nextTargetQ2 = this.targetQf2.forward(new NDList(nextStates)).singletonOrThrow().duplicate();
+        NDArray nextTargetMinQf = nextDistribution.mul(nextTargetQ1.minimum(nextTargetQ2).sub(alpha.mul(nextLogDistribution))).duplicate();
+        nextTargetMinQf = nextTargetMinQf.sum(new int[]{-1}, true);
+        NDArray nextQValue = rewards.add(terminations.neg().add(1).mul(bootstrapDiscount).mul(nextTargetMinQf));
+
+        // Prediction Q(s,a)
+        NDArray predQ1 = this.qf1.forward(new NDList(states)).singletonOrThrow();
+        predQ1 = Helper.gather(predQ1, actions.toIntArray());
+        // Critic loss: Mean Squared Bellman Error (MSBE)
+        NDArray lossQf1 = weightedMean(predQ1.sub(nextQValue).square(), weights);
+        try (GradientCollector collector = Engine.getInstance().newGradientCollector()) {
+            collector.backward(lossQf1);
+            qfOptimizer1.update();
+        }
+
+        NDArray predQ2 = this.qf2.forward(new NDList(states)).singletonOrThrow();
+        predQ2 = Helper.gather(predQ2, actions.toIntArray());
+        NDArray lossQf2 = weightedMean(predQ2.sub(nextQValue).square(), weights);
+
+        try (GradientCollector collector = Engine.getInstance().newGradientCollector()) {
+            collector.backward(lossQf2);
+            qfOptimizer2.update();
+        }
+
+        // =========== Target Networks Update Step ===========
+
+        targetQfUpdater1.step();
+        targetQfUpdater2.step();
+
+        // =========== Policy Improvement Step ============
+        for (Pair<String, Parameter> params : qf1.getModel().getBlock().getParameters()) {
+            params.getValue().getArray().setRequiresGradient(false);
+        }
+        for (Pair<String, Parameter> params : qf2.getModel().getBlock().getParameters()) {
+            params.getValue().getArray().setRequiresGradient(false);
+        }
+
+        PolicyPair<DiscreteAction> newPolicyPair = this.policyModel.policy(new NDList(states), false, true, false);
+        NDArray newDistribution = newPolicyPair.getInfo().get(0);
+        NDArray newLogDistribution = newPolicyPair.getInfo().get(1);
+
+        NDArray newQ1 = this.qf1.forward(new NDList(states)).singletonOrThrow();
+        NDArray newQ2 = this.qf2.forward(new NDList(states)).singletonOrThrow();
+        NDArray minNewQ = newQ1.minimum(newQ2);
+
+        NDArray insideTerm = alpha.mul(newLogDistribution).sub(minNewQ);
+        NDArray policyLoss = insideTerm.mul(newDistribution).sum(new int[]{1}).mean();
+        newLogDistribution = newLogDistribution.mul(newDistribution).sum(new int[]{1});
+        NDArray alphaLoss = newLogDistribution.add(this.tgtEntro).duplicate().mul(this.logAlpha).mean();
+
+        try (GradientCollector collector = Engine.getInstance().newGradientCollector()) {
+            collector.backward(policyLoss);
+            policyOptimizer.update();
+        }
+        for (Pair<String, Parameter> params : qf1.getModel().getBlock().getParameters()) {
+            params.getValue().getArray().setRequiresGradient(true);
+        }
+        for (Pair<String, Parameter> params : qf2.getModel().getBlock().getParameters()) {
+            params.getValue().getArray().setRequiresGradient(true);
+        }
+
+        // =========== Entropy Adjustment Step ===========
+
+        try (GradientCollector collector = Engine.getInstance().newGradientCollector()) {
+            collector.backward(alphaLoss);
+            alphasOptimizer.update(this.logAlpha.getUid(), this.logAlpha, Helper.scoped(this.logAlpha.getGradient(), subManager).duplicate());
+        }
+        Helper.clipParameter(this.logAlpha, Math.log(SACParameter.MIN_ALPHA), Math.log(SACParameter.MAX_ALPHA), subManager);
+
+        if (prioritizedMemory == null) {
+            return null;
         }
+        return predQ1.sub(nextQValue).abs().add(predQ2.sub(nextQValue).abs()).mul(0.5);
     }
 }
@@ -27,6 +27,14 @@ public final class SACParameter {
      * Q函数模型优化权重衰减系数
      */
     public final static float Q_WEIGHT_DECAY = 1.e-5f;
+    /**
+     * 集成Q函数中Q函数的个数，2即为Clipped Double-Q，可增大到10左右（REDQ）
+     */
+    public final static int QF_ENSEMBLE_SIZE = 2;
+    /**
+     * 是否在连续存储的模型参数上融合进行Adam更新
+     */
+    public final static boolean FUSED_OPTIMIZER = false;
     public final static float ENTROPY_SCALE = 1.f;
     public final static boolean AUTO_ALPHA = true;
     public final static float MAX_ALPHA = 10;
@@ -0,0 +1,108 @@
+package algorithm.sac.block;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDArrays;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.Activation;
+import ai.djl.nn.Parameter;
+import ai.djl.training.ParameterStore;
+import ai.djl.training.initializer.Initializer;
+import ai.djl.training.initializer.XavierInitializer;
+import ai.djl.util.PairList;
+import algorithm.BaseModelBlock;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * 由多个结构相同的Q函数组成的集成Q函数
+ * 各Q函数同一层的参数堆叠在一起，权重形状为(ensembleSize, inputSize, outputSize)，偏置形状为(ensembleSize, 1, outputSize)，
+ * 前向计算时每一层只需一次批量矩阵乘法即可得到所有Q函数的结果。
+ * 输入形状为(batch, stateDim + actionDim)，输出形状为(ensembleSize, batch, 1)。
+ *
+ * @author Caojunqi
+ * @date 2021-12-27 16:10
+ */
+public class EnsembleQFunction extends BaseModelBlock {
+    private int ensembleSize;
+    private int[] hiddenSizes;
+    private Parameter[] weights;
+    private Parameter[] biases;
+
+    public EnsembleQFunction(int ensembleSize, int[] hiddenSizes) {
+        super();
+        Validate.isTrue(ensembleSize > 0, "集成Q函数个数必须大于0！！");
+        this.ensembleSize = ensembleSize;
+        this.hiddenSizes = hiddenSizes;
+        int layerNum = hiddenSizes.length + 1;
+        this.weights = new Parameter[layerNum];
+        this.biases = new Parameter[layerNum];
+        for (int i = 0; i < layerNum; i++) {
+            weights[i] = addParameter(Parameter.builder().
+                    setType(Parameter.Type.WEIGHT).
+                    setName("weight_" + i).
+                    optInitializer(new StackedXavierInitializer()).
+                    optRequiresGrad(true).build());
+            biases[i] = addParameter(Parameter.builder().
+                    setType(Parameter.Type.BIAS).
+                    setName("bias_" + i).
+                    optInitializer(Initializer.ZEROS).
+                    optRequiresGrad(true).build());
+        }
+    }
+
+    @Override
+    protected void prepare(Shape[] inputShapes) {
+        long inputSize = inputShapes[0].get(inputShapes[0].dimension() - 1);
+        for (int i = 0; i < weights.length; i++) {
+            long outputSize = i < hiddenSizes.length ? hiddenSizes[i] : 1;
+            weights[i].setShape(new Shape(ensembleSize, inputSize, outputSize));
+            biases[i].setShape(new Shape(ensembleSize, 1, outputSize));
+            inputSize = outputSize;
+        }
+    }
+
+    @Override
+    protected NDList forwardInternal(ParameterStore parameterStore, NDList inputs, boolean training, PairList<String, Object> params) {
+        // (batch, inputSize)与(ensembleSize, inputSize, outputSize)相乘时自动广播为(ensembleSize, batch, outputSize)
+        NDArray hidden = inputs.singletonOrThrow();
+        for (int i = 0; i < weights.length; i++) {
+            hidden = hidden.matMul(weights[i].getArray()).add(biases[i].getArray());
+            if (i < hiddenSizes.length) {
+                hidden = Activation.relu(hidden);
+            }
+        }
+        return new NDList(hidden);
+    }
+
+    @Override
+    public Shape[] getOutputShapes(Shape[] inputShapes) {
+        return new Shape[]{new Shape(ensembleSize, 1)};
+    }
+
+    public int getEnsembleSize() {
+        return ensembleSize;
+    }
+
+    /**
+     * 对每个Q函数的权重分别按照{@link XavierInitializer}初始化，与单个Q函数中Linear层的初始化方式一致
+     */
+    static class StackedXavierInitializer implements Initializer {
+
+        @Override
+        public NDArray initialize(NDManager manager, Shape shape, DataType dataType) {
+            Initializer xavier = new XavierInitializer();
+            try (NDManager subManager = manager.newSubManager()) {
+                NDList members = new NDList((int) shape.get(0));
+                for (int i = 0; i < shape.get(0); i++) {
+                    // Linear层权重形状为(outputSize, inputSize)
+                    members.add(xavier.initialize(subManager, new Shape(shape.get(2), shape.get(1)), dataType).transpose());
+                }
+                NDArray stacked = NDArrays.stack(members);
+                stacked.attach(manager);
+                return stacked;
+            }
+        }
+    }
+}
@@ -13,8 +13,8 @@ import ai.djl.util.PairList;
  * @date 2021-10-12 15:25
  */
 public class GaussianPolicy extends MLP {
-    private static final double LOG_SIG_MAX = 2;
-    private static final double LOG_SIG_MIN = -6.907755;
+    public static final double LOG_SIG_MAX = 2;
+    public static final double LOG_SIG_MIN = -6.907755;
 
     private int actionDim;
 
@@ -28,8 +28,9 @@ public class GaussianPolicy extends MLP {
     protected NDList forwardInternal(ParameterStore parameterStore, NDList inputs, boolean training, PairList<String, Object> params) {
         NDArray meanAndLogStd = super.forwardInternal(parameterStore, inputs, training, params).singletonOrThrow();
         NDArray mean = meanAndLogStd.get(new NDIndex("..., :" + actionDim + ""));
-        NDArray logStd = meanAndLogStd.get(new NDIndex("..., " + actionDim + ":"));
-        NDArray std = logStd.clip(LOG_SIG_MIN, LOG_SIG_MAX).exp();
+        // 对数标准差本身也要截断，否则std被截断后，对数概率中的logStd项仍可无限增大或减小
+        NDArray logStd = meanAndLogStd.get(new NDIndex("..., " + actionDim + ":")).clip(LOG_SIG_MIN, LOG_SIG_MAX);
+        NDArray std = logStd.exp();
         return new NDList(mean, logStd, std);
     }
 }
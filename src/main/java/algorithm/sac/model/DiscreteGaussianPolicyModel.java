@@ -13,7 +13,7 @@ import algorithm.ppo.model.BasePolicyModel;
 import algorithm.sac.SACParameter;
 import algorithm.sac.block.DiscreteGaussianPolicy;
 import env.action.core.impl.DiscreteAction;
-import utils.ActionSampler;
+import utils.CategoricalSampler;
 import utils.datatype.PolicyPair;
 
 import java.util.ArrayList;
@@ -45,7 +45,8 @@ public class DiscreteGaussianPolicyModel extends BasePolicyModel<DiscreteAction>
     @Override
     public PolicyPair<DiscreteAction> policy(NDList states, boolean deterministic, boolean returnPolicyInfo, boolean noGrad) {
         try (NDManager subManager = manager.newSubManager()) {
-            NDArray distribution = predictor.predict(states).singletonOrThrow();
+            // 请求策略信息的都是训练时的调用，直接调用block完成前向计算
+            NDArray distribution = (returnPolicyInfo ? forward(states) : predictor.predict(states)).singletonOrThrow();
             if (noGrad) {
                 distribution = distribution.duplicate();
             }
@@ -54,13 +55,12 @@ public class DiscreteGaussianPolicyModel extends BasePolicyModel<DiscreteAction>
             if (deterministic) {
                 actionArray = distribution.argMax(-1).toType(DataType.INT32, false);
             } else {
-                actionArray = ActionSampler.sampleMultinomial(subManager, distribution, random);
+                actionArray = CategoricalSampler.sample(subManager, distribution, random);
             }
-            int sampleSize = (int) actionArray.getShape().get(0);
-            List<DiscreteAction> actions = new ArrayList<>();
-            for (int i = 0; i < sampleSize; i++) {
-                int actionData = actionArray.getInt(i);
-                actions.add(new DiscreteAction(actionData));
+            int[] actionData = actionArray.toIntArray();
+            List<DiscreteAction> actions = new ArrayList<>(actionData.length);
+            for (int action : actionData) {
+                actions.add(new DiscreteAction(action));
             }
 
             NDList info = null;
@@ -0,0 +1,66 @@
+package algorithm.sac.model;
+
+import ai.djl.Model;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.translate.NoopTranslator;
+import algorithm.ppo.model.BaseValueModel;
+import algorithm.sac.SACParameter;
+import algorithm.sac.block.EnsembleQFunction;
+
+/**
+ * 集成Q函数模型
+ * 一次前向计算即可得到所有Q函数的结果，形状为(ensembleSize, batch, 1)，
+ * 所有Q函数的损失相加后只需一次反向传播。
+ *
+ * @author Caojunqi
+ * @date 2021-12-27 16:10
+ */
+public class EnsembleQFunctionModel extends BaseValueModel {
+
+    private int ensembleSize;
+
+    private EnsembleQFunctionModel() {
+        // 私有化构造器
+    }
+
+    public static EnsembleQFunctionModel newModel(NDManager manager, int stateDim, int actionDim, int ensembleSize) {
+        Model model = Model.newInstance("ensemble_q_function_model");
+        EnsembleQFunction net = new EnsembleQFunction(ensembleSize, SACParameter.NETS_HIDDEN_SIZES);
+        net.initialize(manager, DataType.FLOAT32, new Shape(stateDim + actionDim));
+        model.setBlock(net);
+
+        EnsembleQFunctionModel ensembleQFunctionModel = new EnsembleQFunctionModel();
+        ensembleQFunctionModel.manager = manager;
+        ensembleQFunctionModel.model = model;
+        ensembleQFunctionModel.predictor = model.newPredictor(new NoopTranslator());
+        ensembleQFunctionModel.ensembleSize = ensembleSize;
+        return ensembleQFunctionModel;
+    }
+
+    /**
+     * 所有Q函数结果的最小值
+     *
+     * @param ensembleQ 集成Q函数的输出，形状为(ensembleSize, batch, 1)
+     * @return 形状为(batch, 1)
+     */
+    public static NDArray min(NDArray ensembleQ) {
+        return ensembleQ.min(new int[]{0});
+    }
+
+    /**
+     * 所有Q函数结果的均值
+     *
+     * @param ensembleQ 集成Q函数的输出，形状为(ensembleSize, batch, 1)
+     * @return 形状为(batch, 1)
+     */
+    public static NDArray mean(NDArray ensembleQ) {
+        return ensembleQ.mean(new int[]{0});
+    }
+
+    public int getEnsembleSize() {
+        return ensembleSize;
+    }
+}
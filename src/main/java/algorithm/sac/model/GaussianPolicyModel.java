@@ -4,17 +4,19 @@ import ai.djl.Model;
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDList;
 import ai.djl.ndarray.NDManager;
-import ai.djl.ndarray.index.NDIndex;
 import ai.djl.ndarray.types.DataType;
 import ai.djl.ndarray.types.Shape;
 import ai.djl.translate.NoopTranslator;
 import ai.djl.translate.TranslateException;
 import algorithm.BaseModelBlock;
+import algorithm.CommonParameter;
+import algorithm.HostMlp;
 import algorithm.ppo.model.BasePolicyModel;
 import algorithm.sac.SACParameter;
 import algorithm.sac.block.GaussianPolicy;
 import env.action.core.impl.BoxAction;
 import utils.ActionSampler;
+import utils.datatype.BoxActionView;
 import utils.datatype.PolicyPair;
 
 import java.util.ArrayList;
@@ -42,13 +44,22 @@ public class GaussianPolicyModel extends BasePolicyModel<BoxAction> {
         gaussianPolicyModel.manager = manager;
         gaussianPolicyModel.model = model;
         gaussianPolicyModel.predictor = model.newPredictor(new NoopTranslator());
+        if (CommonParameter.HOST_FORWARD_MAX_BATCH > 0) {
+            gaussianPolicyModel.hostMlp = HostMlp.mirror(net.getParameters(), HostMlp.Activation.RELU);
+        }
         return gaussianPolicyModel;
     }
 
     @Override
     public PolicyPair<BoxAction> policy(NDList states, boolean deterministic, boolean returnPolicyInfo, boolean noGrad) {
+        NDArray input = states.singletonOrThrow();
+        int batchSize = (int) input.getShape().get(0);
+        if (!returnPolicyInfo && useHostForward(batchSize)) {
+            return hostPolicy(input.toFloatArray(), batchSize, deterministic);
+        }
         try (NDManager subManager = manager.newSubManager()) {
-            NDList distribution = predictor.predict(states);
+            // 请求策略信息的都是训练时的调用，直接调用block完成前向计算
+            NDList distribution = returnPolicyInfo ? forward(states) : predictor.predict(states);
             NDArray mean = distribution.get(0);
             NDArray logStd = distribution.get(1);
             NDArray std = distribution.get(2);
@@ -74,18 +85,13 @@ public class GaussianPolicyModel extends BasePolicyModel<BoxAction> {
                 if (!deterministic) {
                     // 由于Action结果被tanh函数压缩到了(-1,1)，所以logProb的计算过程也要进行相应的调整
                     // 此处的公式参看论文"Soft Actor-Critic:Off-Policy Maximum Entropy DeepReinforcement Learning with a Stochastic Actor"的附录"C. Enforcing Action Bounds"
-                    logProb.subi(actionTanh.pow(2).neg().add(1).clip(0, 1).add(1.e-6).log());
+                    logProb.subi(actionTanh.square().neg().add(1).clip(0, 1).add(1.e-6).log());
                     logProb = logProb.sum(new int[]{-1}, true);
                 }
                 info = new NDList(actionTanh, mean, std, logStd, logProb);
             }
 
-            int actionSize = (int) actionTanh.getShape().get(0);
-            List<BoxAction> actions = new ArrayList<>();
-            for (int i = 0; i < actionSize; i++) {
-                float[] actionData = actionTanh.get(new NDIndex(i + ",:")).toFloatArray();
-                actions.add(new BoxAction(actionData));
-            }
+            List<BoxAction> actions = new BoxActionView(actionTanh);
 
             return PolicyPair.of(actions, info);
         } catch (TranslateException e) {
@@ -104,4 +110,27 @@ public class GaussianPolicyModel extends BasePolicyModel<BoxAction> {
         NDArray noise = manager.randomNormal(actionStd.getShape());
         return actionStd.mul(noise).add(actionMean);
     }
+
+    /**
+     * 在JVM中完成前向计算及动作采样
+     */
+    private PolicyPair<BoxAction> hostPolicy(float[] states, int batchSize, boolean deterministic) {
+        float[] meanAndLogStd = hostMlp.forward(states, batchSize);
+        int actionDim = hostMlp.getOutputSize() / 2;
+        List<BoxAction> actions = new ArrayList<>(batchSize);
+        for (int n = 0; n < batchSize; n++) {
+            int offset = n * actionDim * 2;
+            float[] actionData = new float[actionDim];
+            for (int i = 0; i < actionDim; i++) {
+                double action = meanAndLogStd[offset + i];
+                if (!deterministic) {
+                    double logStd = Math.min(Math.max(meanAndLogStd[offset + actionDim + i], GaussianPolicy.LOG_SIG_MIN), GaussianPolicy.LOG_SIG_MAX);
+                    action += Math.exp(logStd) * random.nextGaussian();
+                }
+                actionData[i] = (float) Math.tanh(action);
+            }
+            actions.add(new BoxAction(actionData));
+        }
+        return PolicyPair.of(actions, null);
+    }
 }
@@ -23,6 +23,10 @@ public final class TD3Parameter {
      * 策略模型优化权重衰减系数
      */
     public final static float POLICY_WEIGHT_DECAY = 1.e-5f;
+    /**
+     * 集成Q函数中Q函数的个数，2即为TD3原文中的Clipped Double-Q
+     */
+    public final static int QF_ENSEMBLE_SIZE = 2;
     /**
      * 动作扰乱因子方差
      */
@@ -31,4 +35,8 @@ public final class TD3Parameter {
      * 动作扰乱因子范围
      */
     public final static float ACTION_NOISE_CLIPPING_RANGE = 0.5f;
+    /**
+     * 是否在连续存储的模型参数上融合进行Adam更新
+     */
+    public final static boolean FUSED_OPTIMIZER = false;
 }
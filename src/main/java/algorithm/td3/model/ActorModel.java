@@ -4,7 +4,6 @@ import ai.djl.Model;
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDList;
 import ai.djl.ndarray.NDManager;
-import ai.djl.ndarray.index.NDIndex;
 import ai.djl.ndarray.types.DataType;
 import ai.djl.ndarray.types.Shape;
 import ai.djl.translate.NoopTranslator;
@@ -14,9 +13,9 @@ import algorithm.ppo.model.BasePolicyModel;
 import algorithm.td3.TD3Parameter;
 import algorithm.td3.block.Actor;
 import env.action.core.impl.BoxAction;
+import utils.datatype.BoxActionView;
 import utils.datatype.PolicyPair;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -45,7 +44,8 @@ public class ActorModel extends BasePolicyModel<BoxAction> {
     @Override
     public PolicyPair<BoxAction> policy(NDList states, boolean deterministic, boolean returnPolicyInfo, boolean noGrad) {
         try (NDManager subManager = manager.newSubManager()) {
-            NDList distribution = predictor.predict(states);
+            // 请求策略信息的都是训练时的调用，直接调用block完成前向计算
+            NDList distribution = returnPolicyInfo ? forward(states) : predictor.predict(states);
             NDArray mean = distribution.singletonOrThrow();
             if (noGrad) {
                 mean = mean.duplicate();
@@ -58,12 +58,7 @@ public class ActorModel extends BasePolicyModel<BoxAction> {
                 action = normalSampleActionArray(subManager, mean);
             }
 
-            int actionSize = (int) action.getShape().get(0);
-            List<BoxAction> actions = new ArrayList<>();
-            for (int i = 0; i < actionSize; i++) {
-                float[] actionData = action.get(new NDIndex(i + ",:")).toFloatArray();
-                actions.add(new BoxAction(actionData));
-            }
+            List<BoxAction> actions = new BoxActionView(action);
 
             NDList info = null;
             if (returnPolicyInfo) {
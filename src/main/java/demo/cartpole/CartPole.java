@@ -75,6 +75,10 @@ public class CartPole implements RlEnv {
 
     private NDManager manager;
     private ReplayBuffer replayBuffer;
+    /**
+     * 最近一个未放入经验回放缓存的Step
+     */
+    private Step untrackedStep;
     private Random random;
     private State state;
 
@@ -135,9 +139,18 @@ public class CartPole implements RlEnv {
         boolean done = (state.stateData[0] < -X_THRESHOLD || state.stateData[0] > X_THRESHOLD || state.stateData[2] < -THETA_THRESHOLD
                 || state.stateData[2] > THETA_THRESHOLD);
 
-        CartPoleStep step = new CartPoleStep(manager.newSubManager(), preState, state, action, 1.0f, state.count++ > MAX_EPISODE_LENGTH || done);
+        // Step及其动作归属于单独的子管理器，放入经验回放缓存的Step被替换时关闭，其余的在下一步时关闭
+        if (untrackedStep != null) {
+            untrackedStep.close();
+            untrackedStep = null;
+        }
+        NDManager stepManager = manager.newSubManager();
+        action.attach(stepManager);
+        CartPoleStep step = new CartPoleStep(stepManager, preState, state, action, 1.0f, state.count++ > MAX_EPISODE_LENGTH || done);
         if (training) {
             replayBuffer.addStep(step);
+        } else {
+            untrackedStep = step;
         }
         return step;
     }
@@ -69,6 +69,10 @@ public class MountainCar implements RlEnv {
 
     private NDManager manager;
     private ReplayBuffer replayBuffer;
+    /**
+     * 最近一个未放入经验回放缓存的Step
+     */
+    private Step untrackedStep;
     private Random random;
     private State state;
 
@@ -116,9 +120,18 @@ public class MountainCar implements RlEnv {
         }
         boolean done = state.stateData[0] >= GOAL_POSITION && state.stateData[1] >= GOAL_VELOCITY;
 
-        MountainCarStep step = new MountainCarStep(manager.newSubManager(), preState, state, action, -1.0f, state.count++ > MAX_EPISODE_LENGTH || done);
+        // Step及其动作归属于单独的子管理器，放入经验回放缓存的Step被替换时关闭，其余的在下一步时关闭
+        if (untrackedStep != null) {
+            untrackedStep.close();
+            untrackedStep = null;
+        }
+        NDManager stepManager = manager.newSubManager();
+        action.attach(stepManager);
+        MountainCarStep step = new MountainCarStep(stepManager, preState, state, action, -1.0f, state.count++ > MAX_EPISODE_LENGTH || done);
         if (training) {
             replayBuffer.addStep(step);
+        } else {
+            untrackedStep = step;
         }
         return step;
     }
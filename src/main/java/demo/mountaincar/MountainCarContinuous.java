@@ -61,6 +61,10 @@ public class MountainCarContinuous implements RlEnv {
 
     private NDManager manager;
     private ReplayBuffer replayBuffer;
+    /**
+     * 最近一个未放入经验回放缓存的Step
+     */
+    private Step untrackedStep;
     private Random random;
     private State state;
 
@@ -129,9 +133,18 @@ public class MountainCarContinuous implements RlEnv {
         this.state.stateData[0] = position;
         this.state.stateData[1] = velocity;
 
-        MountainCarContinuousStep step = new MountainCarContinuousStep(manager.newSubManager(), preState, state, action, reward, state.count++ > MAX_EPISODE_LENGTH || done);
+        // Step及其动作归属于单独的子管理器，放入经验回放缓存的Step被替换时关闭，其余的在下一步时关闭
+        if (untrackedStep != null) {
+            untrackedStep.close();
+            untrackedStep = null;
+        }
+        NDManager stepManager = manager.newSubManager();
+        action.attach(stepManager);
+        MountainCarContinuousStep step = new MountainCarContinuousStep(stepManager, preState, state, action, reward, state.count++ > MAX_EPISODE_LENGTH || done);
         if (training) {
             replayBuffer.addStep(step);
+        } else {
+            untrackedStep = step;
         }
         return step;
     }
@@ -31,6 +31,10 @@ public class Pendulum implements RlEnv {
 
     private NDManager manager;
     private ReplayBuffer replayBuffer;
+    /**
+     * 最近一个未放入经验回放缓存的Step
+     */
+    private Step untrackedStep;
     private Random random;
     private State state;
 
@@ -83,9 +87,18 @@ public class Pendulum implements RlEnv {
         this.state.stateData[0] = (float) newTh;
         this.state.stateData[1] = (float) newThdot;
 
-        PendulumStep step = new PendulumStep(manager.newSubManager(), preState, state, action, (float) -costs, state.count++ > MAX_EPISODE_LENGTH);
+        // Step及其动作归属于单独的子管理器，放入经验回放缓存的Step被替换时关闭，其余的在下一步时关闭
+        if (untrackedStep != null) {
+            untrackedStep.close();
+            untrackedStep = null;
+        }
+        NDManager stepManager = manager.newSubManager();
+        action.attach(stepManager);
+        PendulumStep step = new PendulumStep(stepManager, preState, state, action, (float) -costs, state.count++ > MAX_EPISODE_LENGTH);
         if (training) {
             replayBuffer.addStep(step);
+        } else {
+            untrackedStep = step;
         }
         return step;
     }
@@ -17,6 +17,19 @@ public interface IActionCollector {
      */
     void addAction(int index, IAction action);
 
+    /**
+     * 清空已收集的动作数据，底层存储保留以便复用
+     */
+    void reset();
+
+    /**
+     * 只保留指定行的动作数据，按顺序移到最前面
+     *
+     * @param rows  保留的行号，需严格递增
+     * @param count 保留的行数
+     */
+    void keepRows(int[] rows, int count);
+
     /**
      * 将数据收集结果构建成一个NDArray
      *
@@ -5,6 +5,7 @@ import ai.djl.ndarray.NDManager;
 import env.action.collector.IActionCollector;
 import env.action.core.IAction;
 import env.action.core.impl.BoxAction;
+import utils.column.FloatColumn;
 
 /**
  * 连续型动作数据收集器
@@ -14,19 +15,29 @@ import env.action.core.impl.BoxAction;
  */
 public class BoxActionCollector implements IActionCollector {
 
-    private float[][] actionDatas;
+    private final FloatColumn actionDatas;
 
     public BoxActionCollector(int batchSize) {
-        this.actionDatas = new float[batchSize][];
+        this.actionDatas = new FloatColumn(batchSize, false);
     }
 
     @Override
     public void addAction(int index, IAction action) {
-        this.actionDatas[index] = ((BoxAction) action).getActionData();
+        this.actionDatas.set(index, ((BoxAction) action).getActionData());
+    }
+
+    @Override
+    public void reset() {
+        actionDatas.clear();
+    }
+
+    @Override
+    public void keepRows(int[] rows, int count) {
+        actionDatas.keepRows(rows, count);
     }
 
     @Override
     public NDArray createNDArray(NDManager manager) {
-        return manager.create(actionDatas);
+        return actionDatas.toNDArray(manager);
     }
 }
@@ -5,6 +5,7 @@ import ai.djl.ndarray.NDManager;
 import env.action.collector.IActionCollector;
 import env.action.core.IAction;
 import env.action.core.impl.MultiDiscreteAction;
+import utils.column.IntColumn;
 
 /**
  * 多维离散型动作数据收集器
@@ -14,19 +15,29 @@ import env.action.core.impl.MultiDiscreteAction;
  */
 public class MultiDiscreteActionCollector implements IActionCollector {
 
-    private int[][] actionDatas;
+    private final IntColumn actionDatas;
 
     public MultiDiscreteActionCollector(int batchSize) {
-        this.actionDatas = new int[batchSize][];
+        this.actionDatas = new IntColumn(batchSize, false);
     }
 
     @Override
     public void addAction(int index, IAction action) {
-        this.actionDatas[index] = ((MultiDiscreteAction) action).getActionData();
+        this.actionDatas.set(index, ((MultiDiscreteAction) action).getActionData());
+    }
+
+    @Override
+    public void reset() {
+        actionDatas.clear();
+    }
+
+    @Override
+    public void keepRows(int[] rows, int count) {
+        actionDatas.keepRows(rows, count);
     }
 
     @Override
     public NDArray createNDArray(NDManager manager) {
-        return manager.create(actionDatas);
+        return actionDatas.toNDArray(manager);
     }
 }
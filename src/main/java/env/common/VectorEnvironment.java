@@ -0,0 +1,149 @@
+package env.common;
+
+import env.action.core.IAction;
+import env.state.collector.IStateCollector;
+import env.state.core.IState;
+import org.apache.commons.lang3.Validate;
+import utils.CollectorRegistry;
+import utils.datatype.Snapshot;
+import utils.datatype.VectorSnapshot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * 向量化环境，同时持有N个相互独立的子环境
+ * <p>
+ * 各子环境的当前状态按行写入一个状态收集器，即按列存放的结构，连续型状态就是一个长度为N*状态维度的float数组。
+ * 配合{@link algorithm.BaseAlgorithm#selectActions(IStateCollector)}，一次拷贝、一次前向计算即可为所有子环境选择动作。
+ * 每次调用{@link #stepAll(List)}时各子环境同时执行一步，结果按列存放在{@link VectorSnapshot}中，
+ * 某个子环境的幕结束后会立即自动重置，快照中的nextStates保留该幕的最终状态。
+ * <p>
+ * 与其他采样器一致，子环境reset、step返回的状态对象都会先拷贝再保存，子环境可以复用自己的状态对象。
+ * 快照在每次stepAll时复用，其中的数据只在下次stepAll之前有效。
+ * 各子环境应使用不同的随机种子，否则会产生完全相同的轨迹，见{@link #seed(long)}。
+ *
+ * @author Caojunqi
+ * @date 2021-12-23 10:20
+ */
+public class VectorEnvironment<S extends IState<S>, A extends IAction> {
+    /**
+     * 子环境
+     */
+    private final List<Environment<S, A>> envs;
+    /**
+     * 各子环境当前的状态
+     */
+    private final List<S> states;
+    /**
+     * 各子环境当前的状态数据，第i行为第i个子环境，首次重置时根据状态类型从{@link CollectorRegistry}获取
+     */
+    private IStateCollector stateBatch;
+    /**
+     * 每次step复用的快照
+     */
+    private final VectorSnapshot<S> snapshot;
+
+    public VectorEnvironment(List<? extends Environment<S, A>> envs) {
+        Validate.isTrue(!envs.isEmpty(), "向量化环境至少需要一个子环境！！");
+        this.envs = new ArrayList<>(envs);
+        this.states = new ArrayList<>(Collections.nCopies(envs.size(), null));
+        this.snapshot = new VectorSnapshot<>(envs.size());
+    }
+
+    /**
+     * 使用同一个工厂创建N个子环境
+     *
+     * @param envNum  子环境个数
+     * @param factory 子环境工厂
+     */
+    public static <S extends IState<S>, A extends IAction> VectorEnvironment<S, A> of(int envNum, Supplier<? extends Environment<S, A>> factory) {
+        Validate.isTrue(envNum > 0, "子环境个数必须大于0！！");
+        List<Environment<S, A>> envs = new ArrayList<>(envNum);
+        for (int i = 0; i < envNum; i++) {
+            envs.add(factory.get());
+        }
+        return new VectorEnvironment<>(envs);
+    }
+
+    /**
+     * 重置所有子环境，各子环境的初始状态见{@link #getStateBatch()}
+     */
+    public void resetAll() {
+        for (int i = 0; i < envs.size(); i++) {
+            setState(i, envs.get(i).reset().clone());
+        }
+    }
+
+    /**
+     * 所有子环境同时执行一步，幕结束的子环境自动重置
+     *
+     * @param actions 各子环境的动作，顺序与子环境一致
+     * @return 各子环境的执行结果，下次调用stepAll时复用
+     */
+    public VectorSnapshot<S> stepAll(List<A> actions) {
+        Validate.isTrue(actions.size() == envs.size(), "动作个数[" + actions.size() + "]与子环境个数[" + envs.size() + "]不一致！！");
+        Validate.isTrue(stateBatch != null, "向量化环境尚未重置！！");
+        for (int i = 0; i < envs.size(); i++) {
+            Environment<S, A> env = envs.get(i);
+            Snapshot<S> result = env.step(actions.get(i));
+            S nextState = result.getNextState().clone();
+            snapshot.set(i, states.get(i), nextState, result.getReward(), result.isDone());
+            setState(i, result.isDone() ? env.reset().clone() : nextState);
+        }
+        return snapshot;
+    }
+
+    private void setState(int index, S state) {
+        if (stateBatch == null) {
+            stateBatch = CollectorRegistry.acquireState(state.getCollectorClz(), envs.size());
+        }
+        states.set(index, state);
+        stateBatch.addState(index, state);
+    }
+
+    /**
+     * 各子环境当前的状态数据，第i行为第i个子环境，在下次step之前有效
+     */
+    public IStateCollector getStateBatch() {
+        Validate.isTrue(stateBatch != null, "向量化环境尚未重置！！");
+        return stateBatch;
+    }
+
+    /**
+     * 为各子环境设置不同的随机种子，第i个子环境的种子为seed+i
+     */
+    public void seed(long seed) {
+        for (int i = 0; i < envs.size(); i++) {
+            envs.get(i).seed(seed + i);
+        }
+    }
+
+    public void close() {
+        for (Environment<S, A> env : envs) {
+            env.close();
+        }
+        if (stateBatch != null) {
+            CollectorRegistry.release(stateBatch);
+            stateBatch = null;
+        }
+    }
+
+    public int size() {
+        return envs.size();
+    }
+
+    public Environment<S, A> getEnv(int index) {
+        return envs.get(index);
+    }
+
+    public int getStateSpaceDim() {
+        return envs.get(0).getStateSpaceDim();
+    }
+
+    public int getActionSpaceDim() {
+        return envs.get(0).getActionSpaceDim();
+    }
+}
@@ -17,6 +17,26 @@ public interface IStateCollector {
      */
     void addState(int index, IState state);
 
+    /**
+     * 读取指定行的状态数据
+     *
+     * @return 新建的状态对象，与收集器中的数据互不影响
+     */
+    IState getState(int index);
+
+    /**
+     * 清空已收集的状态数据，底层存储保留以便复用
+     */
+    void reset();
+
+    /**
+     * 只保留指定行的状态数据，按顺序移到最前面
+     *
+     * @param rows  保留的行号，需严格递增
+     * @param count 保留的行数
+     */
+    void keepRows(int[] rows, int count);
+
     /**
      * 将数据收集结果构建成一个NDArray
      *
@@ -5,6 +5,7 @@ import ai.djl.ndarray.NDManager;
 import env.state.collector.IStateCollector;
 import env.state.core.IState;
 import env.state.core.impl.BoxState;
+import utils.column.FloatColumn;
 
 /**
  * 连续型状态数据收集器
@@ -14,19 +15,34 @@ import env.state.core.impl.BoxState;
  */
 public class BoxStateCollector implements IStateCollector {
 
-    private float[][] stateDatas;
+    private final FloatColumn stateDatas;
 
     public BoxStateCollector(int batchSize) {
-        this.stateDatas = new float[batchSize][];
+        this.stateDatas = new FloatColumn(batchSize, false);
     }
 
     @Override
     public void addState(int index, IState state) {
-        this.stateDatas[index] = ((BoxState) state).getStateData();
+        this.stateDatas.set(index, ((BoxState) state).getStateData());
+    }
+
+    @Override
+    public IState getState(int index) {
+        return new BoxState(stateDatas.getRow(index));
+    }
+
+    @Override
+    public void reset() {
+        stateDatas.clear();
+    }
+
+    @Override
+    public void keepRows(int[] rows, int count) {
+        stateDatas.keepRows(rows, count);
     }
 
     @Override
     public NDArray createNDArray(NDManager manager) {
-        return manager.create(stateDatas);
+        return stateDatas.toNDArray(manager);
     }
 }
@@ -5,6 +5,7 @@ import ai.djl.ndarray.NDManager;
 import env.state.collector.IStateCollector;
 import env.state.core.IState;
 import env.state.core.impl.DiscreteState;
+import utils.column.IntColumn;
 
 /**
  * 连续型状态数据收集器
@@ -14,19 +15,34 @@ import env.state.core.impl.DiscreteState;
  */
 public class DiscreteStateCollector implements IStateCollector {
 
-    private int[] stateDatas;
+    private final IntColumn stateDatas;
 
     public DiscreteStateCollector(int batchSize) {
-        this.stateDatas = new int[batchSize];
+        this.stateDatas = new IntColumn(batchSize, true);
     }
 
     @Override
     public void addState(int index, IState state) {
-        this.stateDatas[index] = ((DiscreteState) state).getStateData();
+        this.stateDatas.set(index, ((DiscreteState) state).getStateData());
+    }
+
+    @Override
+    public IState getState(int index) {
+        return new DiscreteState(stateDatas.get(index));
+    }
+
+    @Override
+    public void reset() {
+        stateDatas.clear();
+    }
+
+    @Override
+    public void keepRows(int[] rows, int count) {
+        stateDatas.keepRows(rows, count);
     }
 
     @Override
     public NDArray createNDArray(NDManager manager) {
-        return manager.create(stateDatas);
+        return stateDatas.toNDArray(manager);
     }
 }
@@ -5,6 +5,7 @@ import ai.djl.ndarray.NDManager;
 import env.state.collector.IStateCollector;
 import env.state.core.IState;
 import env.state.core.impl.MultiDiscreteState;
+import utils.column.IntColumn;
 
 /**
  * 多维离散型状态数据收集器
@@ -14,19 +15,34 @@ import env.state.core.impl.MultiDiscreteState;
  */
 public class MultiDiscreteStateCollector implements IStateCollector {
 
-    private int[][] stateDatas;
+    private final IntColumn stateDatas;
 
     public MultiDiscreteStateCollector(int batchSize) {
-        this.stateDatas = new int[batchSize][];
+        this.stateDatas = new IntColumn(batchSize, false);
     }
 
     @Override
     public void addState(int index, IState state) {
-        this.stateDatas[index] = ((MultiDiscreteState) state).getStateData();
+        this.stateDatas.set(index, ((MultiDiscreteState) state).getStateData());
+    }
+
+    @Override
+    public IState getState(int index) {
+        return new MultiDiscreteState(stateDatas.getRow(index));
+    }
+
+    @Override
+    public void reset() {
+        stateDatas.clear();
+    }
+
+    @Override
+    public void keepRows(int[] rows, int count) {
+        stateDatas.keepRows(rows, count);
     }
 
     @Override
     public NDArray createNDArray(NDManager manager) {
-        return manager.create(stateDatas);
+        return stateDatas.toNDArray(manager);
     }
 }
@@ -1,7 +1,7 @@
 package utils;
 
 import ai.djl.ndarray.NDArray;
-import ai.djl.ndarray.NDManager;
+import algorithm.CommonParameter;
 import org.apache.commons.lang3.Validate;
 
 import java.util.Random;
@@ -36,50 +36,8 @@ public final class ActionSampler {
      * @return 选中的动作
      */
     public static int sampleMultinomial(NDArray distribution, Random random) {
-        // 剔除掉多余的维度
-        NDArray squeezeDistribution = distribution.squeeze();
-        int value = 0;
-        long size = squeezeDistribution.size();
-        float rnd = random.nextFloat();
-        for (int i = 0; i < size; i++) {
-            float cut = squeezeDistribution.getFloat(value);
-            if (rnd > cut) {
-                value++;
-            } else {
-                return value;
-            }
-            rnd -= cut;
-        }
-
-        throw new IllegalArgumentException("Invalid multinomial distribution");
-    }
-
-    /**
-     * 从离散型动作分布中随机抽取一个动作
-     *
-     * @param distribution 动作分布，其数据长度就是可选动作的数量，数据值表示该index的动作被选中的概率
-     * @param random       随机数生成器
-     * @return 选中的动作
-     */
-    public static NDArray sampleMultinomial(NDManager manager, NDArray distribution, Random random) {
-        int sampleSize = (int) distribution.getShape().get(0);
-        int actionSize = (int) distribution.getShape().get(1);
-        int[] actionData = new int[sampleSize];
-        for (int i = 0; i < sampleSize; i++) {
-            int value = 0;
-            float rnd = random.nextFloat();
-            for (int j = 0; j < actionSize; j++) {
-                float cut = distribution.getFloat(i, value);
-                if (rnd > cut) {
-                    value++;
-                } else {
-                    actionData[i] = value;
-                    break;
-                }
-                rnd -= cut;
-            }
-        }
-        return manager.create(actionData);
+        int actionSize = (int) distribution.size();
+        return CategoricalSampler.sample(distribution.toFloatArray(), 1, actionSize, random, CommonParameter.CATEGORICAL_SAMPLING)[0];
     }
 
     /**
@@ -115,8 +73,8 @@ public final class ActionSampler {
      * @return 似然度对数值
      */
     public static NDArray sampleLogProb(NDArray action, NDArray actionMean, NDArray actionStd, NDArray actionLogStd) {
-        NDArray logProb = action.sub(actionMean).div(actionStd.add(EPS)).pow(2).add(actionLogStd.mul(2)).add(Math.log(2 * Math.PI));
-        logProb.muli(-0.5);
+        NDArray logProb = action.sub(actionMean).div(actionStd.add(EPS)).square().add(Helper.mul(actionLogStd, 2)).add(Math.log(2 * Math.PI));
+        logProb = Helper.mul(logProb, -0.5);
         logProb = logProb.sum(new int[]{-1}, true);
         return logProb;
     }
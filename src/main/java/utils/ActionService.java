@@ -0,0 +1,32 @@
+package utils;
+
+import env.action.core.IAction;
+import env.state.core.IState;
+
+/**
+ * 动作选择服务
+ * 供多个环境线程同时调用，由实现类负责把各线程的请求合并成批次统一推理
+ *
+ * @author Caojunqi
+ * @date 2021-12-24 10:30
+ */
+public interface ActionService<S extends IState<S>, A extends IAction> {
+
+    /**
+     * 登记一个将要调用{@link #act}的环境线程
+     */
+    void register();
+
+    /**
+     * 注销一个环境线程，该线程之后不会再调用{@link #act}
+     */
+    void deregister();
+
+    /**
+     * 为指定环境状态选择动作，阻塞直到所在批次推理完成
+     *
+     * @param state 环境当前状态
+     * @return 接下来应采取的动作
+     */
+    A act(S state) throws InterruptedException;
+}
@@ -0,0 +1,193 @@
+package utils;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import algorithm.CommonParameter;
+
+import java.util.Random;
+
+/**
+ * 离散型动作分布采样器
+ * 动作分布的最后一维为各动作的概率，其余各维视为批次，每行独立采样一个动作，结果为INT32类型，形状为去掉最后一维后的形状。
+ * <p>
+ * 支持三种采样方式：
+ * <ul>
+ *     <li>{@link Mode#INVERSE_CDF}：将概率矩阵一次性拷贝到JVM，逐行按累积概率查找，消耗的随机数与逐元素读取的实现一致；</li>
+ *     <li>{@link Mode#ALIAS}：同样一次性拷贝，逐行构建别名表后采样，单次采样的代价与动作数量无关，适合动作空间很大的场景；</li>
+ *     <li>{@link Mode#GUMBEL}：在引擎上计算 argmax(log p + Gumbel噪声)，概率矩阵不离开引擎，使用引擎的随机数生成器。</li>
+ * </ul>
+ * 除GUMBEL外，采样结果都只需一次上传即可交给引擎。
+ *
+ * @author Caojunqi
+ * @date 2021-12-27 10:15
+ */
+public final class CategoricalSampler {
+
+    /**
+     * 采样方式
+     */
+    public enum Mode {
+        INVERSE_CDF,
+        ALIAS,
+        GUMBEL
+    }
+
+    private static final float EPS = 1e-20f;
+
+    private CategoricalSampler() {
+    }
+
+    /**
+     * 使用{@link CommonParameter#CATEGORICAL_SAMPLING}指定的方式采样
+     *
+     * @param manager      采样结果所属的NDManager
+     * @param distribution 动作分布
+     * @param random       随机数生成器，GUMBEL方式下不使用
+     * @return 各行选中的动作
+     */
+    public static NDArray sample(NDManager manager, NDArray distribution, Random random) {
+        return sample(manager, distribution, random, CommonParameter.CATEGORICAL_SAMPLING);
+    }
+
+    public static NDArray sample(NDManager manager, NDArray distribution, Random random, Mode mode) {
+        if (mode == Mode.GUMBEL) {
+            return gumbel(manager, distribution);
+        }
+        int actionSize = (int) distribution.getShape().get(distribution.getShape().dimension() - 1);
+        int rows = (int) (distribution.size() / actionSize);
+        float[] probs;
+        if (distribution.getDataType() == DataType.FLOAT32) {
+            probs = distribution.toFloatArray();
+        } else {
+            try (NDArray converted = distribution.toType(DataType.FLOAT32, true)) {
+                probs = converted.toFloatArray();
+            }
+        }
+        int[] actions = sample(probs, rows, actionSize, random, mode);
+        return manager.create(actions, distribution.getShape().slice(0, distribution.getShape().dimension() - 1));
+    }
+
+    /**
+     * 对按行存放的动作分布逐行采样
+     *
+     * @param probs      动作分布，按行存放，每行长度为actionSize
+     * @param rows       行数
+     * @param actionSize 可选动作的数量
+     * @param random     随机数生成器
+     * @param mode       采样方式
+     * @return 各行选中的动作
+     */
+    public static int[] sample(float[] probs, int rows, int actionSize, Random random, Mode mode) {
+        int[] actions = new int[rows];
+        switch (mode) {
+            case INVERSE_CDF:
+                for (int i = 0; i < rows; i++) {
+                    actions[i] = inverseCdf(probs, i * actionSize, actionSize, random);
+                }
+                break;
+            case ALIAS:
+                float[] threshold = new float[actionSize];
+                int[] alias = new int[actionSize];
+                int[] small = new int[actionSize];
+                int[] large = new int[actionSize];
+                for (int i = 0; i < rows; i++) {
+                    buildAlias(probs, i * actionSize, actionSize, threshold, alias, small, large);
+                    int column = random.nextInt(actionSize);
+                    actions[i] = random.nextFloat() < threshold[column] ? column : alias[column];
+                }
+                break;
+            case GUMBEL:
+                for (int i = 0; i < rows; i++) {
+                    actions[i] = hostGumbel(probs, i * actionSize, actionSize, random);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("不支持的采样方式[" + mode + "]！！");
+        }
+        return actions;
+    }
+
+    private static int inverseCdf(float[] probs, int offset, int actionSize, Random random) {
+        float rnd = random.nextFloat();
+        for (int j = 0; j < actionSize; j++) {
+            float cut = probs[offset + j];
+            if (rnd <= cut) {
+                return j;
+            }
+            rnd -= cut;
+        }
+        // 浮点舍入使累积概率略小于1时，取最后一个概率不为0的动作
+        for (int j = actionSize - 1; j >= 0; j--) {
+            if (probs[offset + j] > 0) {
+                return j;
+            }
+        }
+        throw new IllegalArgumentException("Invalid multinomial distribution");
+    }
+
+    /**
+     * Vose别名表构建，概率和不为1时按实际总和归一化
+     */
+    private static void buildAlias(float[] probs, int offset, int actionSize, float[] threshold, int[] alias, int[] small, int[] large) {
+        double sum = 0;
+        for (int j = 0; j < actionSize; j++) {
+            sum += probs[offset + j];
+        }
+        int smallNum = 0;
+        int largeNum = 0;
+        for (int j = 0; j < actionSize; j++) {
+            threshold[j] = (float) (probs[offset + j] * actionSize / sum);
+            alias[j] = j;
+            if (threshold[j] < 1) {
+                small[smallNum++] = j;
+            } else {
+                large[largeNum++] = j;
+            }
+        }
+        while (smallNum > 0 && largeNum > 0) {
+            int less = small[--smallNum];
+            int more = large[--largeNum];
+            alias[less] = more;
+            threshold[more] = threshold[more] + threshold[less] - 1;
+            if (threshold[more] < 1) {
+                small[smallNum++] = more;
+            } else {
+                large[largeNum++] = more;
+            }
+        }
+        while (largeNum > 0) {
+            threshold[large[--largeNum]] = 1;
+        }
+        while (smallNum > 0) {
+            threshold[small[--smallNum]] = 1;
+        }
+    }
+
+    private static int hostGumbel(float[] probs, int offset, int actionSize, Random random) {
+        int best = 0;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int j = 0; j < actionSize; j++) {
+            double u = Math.max(random.nextDouble(), EPS);
+            double score = Math.log(Math.max(probs[offset + j], EPS)) - Math.log(-Math.log(u));
+            if (score > bestScore) {
+                bestScore = score;
+                best = j;
+            }
+        }
+        return best;
+    }
+
+    private static NDArray gumbel(NDManager manager, NDArray distribution) {
+        try (NDManager subManager = manager.newSubManager()) {
+            NDArray clipped = distribution.maximum(EPS);
+            // 运算结果归属于第一个操作数的管理器，先将其移入临时管理器
+            clipped.attach(subManager);
+            NDArray uniform = subManager.randomUniform(EPS, 1f, distribution.getShape());
+            NDArray scores = clipped.log().sub(uniform.log().neg().log());
+            NDArray actions = scores.argMax(-1).toType(DataType.INT32, false);
+            actions.attach(manager);
+            return actions;
+        }
+    }
+}
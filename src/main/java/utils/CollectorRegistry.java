@@ -0,0 +1,121 @@
+package utils;
+
+import env.action.collector.IActionCollector;
+import env.action.collector.impl.BoxActionCollector;
+import env.action.collector.impl.DiscreteActionCollector;
+import env.action.collector.impl.MultiDiscreteActionCollector;
+import env.state.collector.IStateCollector;
+import env.state.collector.impl.BoxStateCollector;
+import env.state.collector.impl.DiscreteStateCollector;
+import env.state.collector.impl.MultiDiscreteStateCollector;
+import org.apache.commons.lang3.Validate;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * 数据收集器注册表
+ * 以收集器类型为键登记其构造方法，取代反射创建收集器。
+ * 释放的收集器清空后放回对应类型的对象池，下次获取时优先复用，底层数据列的容量得以保留。
+ * 新增状态或动作类型时，需在此登记对应的收集器。
+ *
+ * @author Caojunqi
+ * @date 2021-12-23 16:20
+ */
+public final class CollectorRegistry {
+
+    private static final Map<Class<?>, IntFunction<? extends IStateCollector>> STATE_FACTORIES = new HashMap<>();
+    private static final Map<Class<?>, IntFunction<? extends IActionCollector>> ACTION_FACTORIES = new HashMap<>();
+    /**
+     * 各类型收集器的对象池
+     */
+    private static final Map<Class<?>, Deque<Object>> POOLS = new HashMap<>();
+
+    static {
+        registerState(BoxStateCollector.class, BoxStateCollector::new);
+        registerState(DiscreteStateCollector.class, DiscreteStateCollector::new);
+        registerState(MultiDiscreteStateCollector.class, MultiDiscreteStateCollector::new);
+        registerAction(BoxActionCollector.class, BoxActionCollector::new);
+        registerAction(DiscreteActionCollector.class, DiscreteActionCollector::new);
+        registerAction(MultiDiscreteActionCollector.class, MultiDiscreteActionCollector::new);
+    }
+
+    private CollectorRegistry() {
+    }
+
+    /**
+     * 登记状态数据收集器
+     *
+     * @param collectorClz 收集器类型
+     * @param factory      收集器构造方法，参数为初始容量
+     */
+    public static synchronized <T extends IStateCollector> void registerState(Class<T> collectorClz, IntFunction<T> factory) {
+        STATE_FACTORIES.put(collectorClz, factory);
+    }
+
+    /**
+     * 登记动作数据收集器
+     *
+     * @param collectorClz 收集器类型
+     * @param factory      收集器构造方法，参数为初始容量
+     */
+    public static synchronized <T extends IActionCollector> void registerAction(Class<T> collectorClz, IntFunction<T> factory) {
+        ACTION_FACTORIES.put(collectorClz, factory);
+    }
+
+    /**
+     * 获取一个已清空的状态数据收集器
+     *
+     * @param collectorClz 收集器类型
+     * @param capacity     新建收集器时的初始容量
+     */
+    public static synchronized IStateCollector acquireState(Class<? extends IStateCollector> collectorClz, int capacity) {
+        Object pooled = poll(collectorClz);
+        if (pooled != null) {
+            return (IStateCollector) pooled;
+        }
+        IntFunction<? extends IStateCollector> factory = STATE_FACTORIES.get(collectorClz);
+        Validate.isTrue(factory != null, "状态数据收集器[" + collectorClz.getSimpleName() + "]未登记！！");
+        return factory.apply(capacity);
+    }
+
+    /**
+     * 获取一个已清空的动作数据收集器
+     *
+     * @param collectorClz 收集器类型
+     * @param capacity     新建收集器时的初始容量
+     */
+    public static synchronized IActionCollector acquireAction(Class<? extends IActionCollector> collectorClz, int capacity) {
+        Object pooled = poll(collectorClz);
+        if (pooled != null) {
+            return (IActionCollector) pooled;
+        }
+        IntFunction<? extends IActionCollector> factory = ACTION_FACTORIES.get(collectorClz);
+        Validate.isTrue(factory != null, "动作数据收集器[" + collectorClz.getSimpleName() + "]未登记！！");
+        return factory.apply(capacity);
+    }
+
+    /**
+     * 清空状态数据收集器并放回对象池
+     */
+    public static synchronized void release(IStateCollector collector) {
+        collector.reset();
+        POOLS.computeIfAbsent(collector.getClass(), k -> new ArrayDeque<>()).push(collector);
+    }
+
+    /**
+     * 清空动作数据收集器并放回对象池
+     */
+    public static synchronized void release(IActionCollector collector) {
+        collector.reset();
+        POOLS.computeIfAbsent(collector.getClass(), k -> new ArrayDeque<>()).push(collector);
+    }
+
+    private static Object poll(Class<?> collectorClz) {
+        Deque<Object> pool = POOLS.get(collectorClz);
+        return pool == null ? null : pool.poll();
+    }
+}
@@ -1,11 +1,12 @@
 package utils;
 
 import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
 import ai.djl.ndarray.types.Shape;
-import ai.djl.nn.Parameter;
-import ai.djl.nn.ParameterList;
-import ai.djl.util.Pair;
-import algorithm.BaseModel;
+import env.state.collector.IStateCollector;
+import env.state.core.IState;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -40,6 +41,68 @@ public final class Helper {
         return arr.broadcast(shape);
     }
 
+    /**
+     * 将多个环境状态拼成一个批次，用作神经网络输入
+     *
+     * @param manager 批次NDArray所属的NDManager
+     * @param states  环境状态集合
+     */
+    public static NDList batchStates(NDManager manager, List<? extends IState<?>> states) {
+        IStateCollector collector = CollectorRegistry.acquireState(states.get(0).getCollectorClz(), states.size());
+        try {
+            for (int i = 0; i < states.size(); i++) {
+                collector.addState(i, states.get(i));
+            }
+            return new NDList(collector.createNDArray(manager));
+        } finally {
+            CollectorRegistry.release(collector);
+        }
+    }
+
+    /**
+     * 将NDArray交给指定的NDManager管理
+     * 运算结果归属于第一个操作数的NDManager，以模型参数等长期存在的NDArray为第一个操作数时，
+     * 需把结果转交给短期的NDManager，否则要到模型关闭时才会释放
+     *
+     * @param array   NDArray
+     * @param manager 接管该NDArray的NDManager
+     * @return 原NDArray
+     */
+    public static NDArray scoped(NDArray array, NDManager manager) {
+        array.attach(manager);
+        return array;
+    }
+
+    /**
+     * 将需要求导的参数原地截断到[min, max]
+     * clip会返回新的NDArray而不修改原参数；直接对需要求导的叶子节点做原地赋值又会被PyTorch拒绝，
+     * 因此赋值期间暂时关闭其求导标记。应在梯度收集器之外、优化器更新之后调用。
+     *
+     * @param param   需要求导的参数
+     * @param min     下界
+     * @param max     上界
+     * @param manager 临时NDArray所属的NDManager
+     */
+    public static void clipParameter(NDArray param, double min, double max, NDManager manager) {
+        NDArray clipped = scoped(param.stopGradient(), manager).clip(min, max);
+        param.setRequiresGradient(false);
+        param.set(new NDIndex("..."), clipped);
+        param.setRequiresGradient(true);
+    }
+
+    /**
+     * 与常数相乘，用于需要求导的运算
+     * PyTorch引擎的mul(Number)会为常数创建一个标量NDArray，运算结束后立即关闭，其数据所在的堆外内存随后可能被回收，
+     * 而反向传播时仍要读取这个标量，读到的若是已回收的内存，梯度就会变成任意值甚至NaN。
+     * 此处的标量归属于array的NDManager，与运算结果一同释放。常数幂次则改用square等不需要标量NDArray的运算。
+     *
+     * @param array 参与求导的NDArray，其NDManager应在反向传播之后才关闭
+     * @param value 常数
+     */
+    public static NDArray mul(NDArray array, Number value) {
+        return array.mul(array.getManager().create(value));
+    }
+
     public static double betweenDouble(double min, double max) {
         // 参数检查
         if (min > max) {
@@ -63,31 +126,4 @@ public final class Helper {
             array[i] = list.get(i);
         }
     }
-
-    public static void copyModel(BaseModel fromModel, BaseModel toModel) {
-        ParameterList fromParameterList = fromModel.getModel().getBlock().getParameters();
-        ParameterList toParameterList = toModel.getModel().getBlock().getParameters();
-        for (Pair<String, Parameter> params : toParameterList) {
-            NDArray fromParam = fromParameterList.get(params.getKey()).getArray().duplicate();
-            params.getValue().getArray().set(fromParam.toFloatArray());
-        }
-    }
-
-    /**
-     * 使用 soft update的办法来更新模型参数
-     *
-     * @param source 提供新的参数值来更新目标模型的参数
-     * @param target 待更新的目标模型参数值
-     * @param tau    参数更新比例
-     */
-    public static void softParamUpdateFromTo(BaseModel source, BaseModel target, double tau) {
-        ParameterList sourceParameterList = source.getModel().getBlock().getParameters();
-        ParameterList targetParameterList = target.getModel().getBlock().getParameters();
-        for (Pair<String, Parameter> params : targetParameterList) {
-            NDArray targetParam = params.getValue().getArray().duplicate();
-            NDArray sourceParam = sourceParameterList.get(params.getKey()).getArray().duplicate();
-            NDArray newTargetParam = targetParam.mul(1.0 - tau).add(sourceParam.mul(tau));
-            params.getValue().getArray().set(newTargetParam.toFloatArray());
-        }
-    }
 }
@@ -0,0 +1,130 @@
+package utils;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import env.state.core.IState;
+import env.state.core.impl.BoxState;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Map;
+
+/**
+ * 单步推理上下文，每个线程复用一个
+ * <p>
+ * 上下文持有一个长期存在的子管理器作为推理期间所有NDArray的归属，并预先分配形状为[1, stateDim]的输入张量。
+ * 输入张量直接引用一块直接缓冲区的内存，推理前把{@link BoxState}的数据写入该缓冲区即可，无需创建新的NDArray。
+ * 推理期间由输入派生出的中间结果都归属于该子管理器，{@link #reset()}时除输入张量外全部释放，
+ * 因此稳定运行时每步推理不会净增任何本地内存，也不会创建新的NDManager。
+ * <p>
+ * 其他类型的状态仍通过{@link IState#singleStateList(NDManager)}创建输入，同样在reset时释放。
+ * <p>
+ * 逐个释放资源依赖{@link NDScope}对引擎内部资源表的读取，引擎版本不兼容而无法读取时，
+ * reset改为关闭整个子管理器并重新创建，输入张量在下次推理时基于同一块直接缓冲区重新创建。
+ *
+ * @author Caojunqi
+ * @date 2021-12-26 16:40
+ */
+public final class InferenceContext {
+
+    private final NDManager parent;
+    private NDManager arena;
+    /**
+     * 子管理器中已登记资源的表，引擎未提供按管理器批量释放而保留管理器本身的接口，无法读取时为null
+     */
+    private Map<String, AutoCloseable> resources;
+    /**
+     * 输入张量及其引用的直接缓冲区
+     */
+    private ByteBuffer inputBytes;
+    private FloatBuffer inputBuffer;
+    private NDArray input;
+    /**
+     * 推理次数，以及reset时释放的NDArray等资源数量
+     */
+    private long callNum;
+    private long releasedNum;
+
+    public InferenceContext(NDManager parent) {
+        this.parent = parent;
+        this.arena = parent.newSubManager();
+        this.resources = NDScope.resourcesOf(arena);
+        // 输入张量常驻于子管理器，不计入作用域的泄漏检查
+        NDScope.detach(arena);
+    }
+
+    /**
+     * 返回单个状态对应的神经网络输入，在下次{@link #reset()}前有效
+     */
+    public NDList stateList(IState<?> state) {
+        if (!(state instanceof BoxState)) {
+            return state.singleStateList(arena);
+        }
+        float[] stateData = ((BoxState) state).getStateData();
+        if (inputBuffer == null || inputBuffer.capacity() != stateData.length) {
+            if (input != null) {
+                input.close();
+                input = null;
+            }
+            inputBytes = ByteBuffer.allocateDirect(stateData.length * Float.BYTES).order(ByteOrder.nativeOrder());
+            inputBuffer = inputBytes.asFloatBuffer();
+        }
+        if (input == null) {
+            input = arena.create(inputBytes, new Shape(1, stateData.length), DataType.FLOAT32);
+        }
+        for (int i = 0; i < stateData.length; i++) {
+            inputBuffer.put(i, stateData[i]);
+        }
+        return new NDList(input);
+    }
+
+    /**
+     * 释放本次推理产生的全部NDArray，保留输入张量
+     */
+    public void reset() {
+        callNum++;
+        if (resources == null) {
+            arena.close();
+            arena = parent.newSubManager();
+            NDScope.detach(arena);
+            input = null;
+            return;
+        }
+        for (AutoCloseable resource : resources.values()) {
+            if (resource == input) {
+                continue;
+            }
+            try {
+                resource.close();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            releasedNum++;
+        }
+    }
+
+    /**
+     * 推理次数
+     */
+    public long getCallNum() {
+        return callNum;
+    }
+
+    /**
+     * 累计释放的资源数量
+     */
+    public long getReleasedNum() {
+        return releasedNum;
+    }
+
+    /**
+     * 当前仍归属于上下文的资源数量，稳定运行时在每次reset后保持不变
+     */
+    public int getLiveNum() {
+        return resources == null ? 0 : resources.size();
+    }
+}
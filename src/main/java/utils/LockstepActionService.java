@@ -0,0 +1,83 @@
+package utils;
+
+import algorithm.BaseAlgorithm;
+import env.action.core.IAction;
+import env.state.core.IState;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 同步批量的动作选择服务
+ * 所有已登记的环境线程都提交状态后，由最后一个到达的线程调用一次{@link BaseAlgorithm#selectActions(List)}，
+ * 其余线程等待该批次完成。环境线程注销时，若剩余线程均已提交，同样会触发推理。
+ *
+ * @author Caojunqi
+ * @date 2021-12-24 10:30
+ */
+public class LockstepActionService<S extends IState<S>, A extends IAction> implements ActionService<S, A> {
+
+    private final BaseAlgorithm<S, A> algorithm;
+    /**
+     * 已登记的环境线程数
+     */
+    private int parties;
+    /**
+     * 正在收集请求的批次
+     */
+    private Batch<S, A> current = new Batch<>();
+
+    public LockstepActionService(BaseAlgorithm<S, A> algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    @Override
+    public synchronized void register() {
+        parties++;
+    }
+
+    @Override
+    public synchronized void deregister() {
+        parties--;
+        if (parties > 0 && current.states.size() == parties) {
+            runBatch();
+        }
+    }
+
+    @Override
+    public synchronized A act(S state) throws InterruptedException {
+        Batch<S, A> batch = current;
+        int slot = batch.states.size();
+        batch.states.add(state);
+        if (batch.states.size() >= parties) {
+            runBatch();
+        }
+        while (batch.actions == null && batch.error == null) {
+            wait();
+        }
+        if (batch.error != null) {
+            throw new IllegalStateException(batch.error);
+        }
+        return batch.actions.get(slot);
+    }
+
+    private void runBatch() {
+        Batch<S, A> batch = current;
+        current = new Batch<>();
+        try {
+            batch.actions = algorithm.selectActions(batch.states);
+        } catch (RuntimeException e) {
+            batch.error = e;
+        }
+        notifyAll();
+    }
+
+    /**
+     * 一个批次的请求及推理结果
+     */
+    private static class Batch<S extends IState<S>, A extends IAction> {
+        private final List<S> states = new ArrayList<>();
+        private List<A> actions;
+        private RuntimeException error;
+    }
+}
@@ -0,0 +1,540 @@
+package utils;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import algorithm.CommonParameter;
+import env.action.core.IAction;
+import env.action.core.impl.BoxAction;
+import env.action.core.impl.DiscreteAction;
+import env.state.core.IState;
+import env.state.core.impl.BoxState;
+import org.apache.commons.lang3.Validate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 基于内存映射文件的经验回放缓存
+ * 适用于容量远超JVM堆大小的场景，样本数据全部存放在磁盘文件中，由操作系统的页缓存负责缓存，
+ * 堆内存占用与缓存容量无关。
+ * <p>
+ * 文件由一个固定长度的文件头、观测区和记录区组成。观测区是一个环形缓冲区，每个观测只存一份，
+ * 容量为capacity * {@link CommonParameter#REPLAY_OBSERVATION_RATIO}；
+ * 记录区的每条记录依次为 [stateRow, nextStateRow, action, mask, reward]，行号以int存储，
+ * 其余数据以本地字节序的float存储（离散动作以float存储动作编号）。文件按段映射，段在首次访问时才建立映射。
+ * 采样时按记录中的行号将state、nextState与记录的其余部分拷贝进一个复用的直接缓冲区，再一次性交给引擎。
+ * 新观测将要覆盖仍被引用的旧观测时，引用它们的最旧样本会被提前淘汰，为此每次sync时本轮记录按state的观测行号排序。
+ * <p>
+ * 仅支持{@link BoxState}，动作支持{@link BoxAction}和{@link DiscreteAction}。
+ * 由于样本直接写入文件，{@link #reset()}只会回退尚未{@link #sync()}的写入位置，
+ * 被这些样本及观测覆盖的旧样本无法恢复。
+ *
+ * @author Caojunqi
+ * @date 2021-12-22 10:40
+ */
+public class MappedMemory<S extends IState, A extends IAction> extends ReplayMemory<S, A> {
+
+    private static final int MAGIC = 0x524C4D4D;
+    private static final int VERSION = 2;
+    /**
+     * 文件头长度：magic, version, stateDim, actionDim, discreteAction, capacity, storedSize, nextIndex,
+     * observationCapacity, observationStoredSize, observationNextIndex
+     */
+    private static final int HEADER_BYTES = 128;
+    /**
+     * 记录中行号部分的字节数
+     */
+    private static final int ROW_BYTES = Integer.BYTES * 2;
+    /**
+     * 单个映射段的最大字节数
+     */
+    private static final long SEGMENT_BYTES = 1L << 28;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final int capacity;
+    private final int observationCapacity;
+
+    private int stateDim = -1;
+    private int actionDim = -1;
+    private boolean discreteAction;
+    /**
+     * 单个观测的字节数，记录的字节数
+     */
+    private int observationBytes;
+    private int recordBytes;
+    /**
+     * 观测区与记录区，首次写入对应数据时确定布局
+     */
+    private Section observations;
+    private Section records;
+    /**
+     * 复用的采样缓冲区
+     */
+    private ByteBuffer gatherBuffer;
+
+    private int nextIndex;
+    private int storedSize;
+    /**
+     * 已写入文件但尚未sync的样本数量
+     */
+    private int pendingSize;
+    private int observationNextIndex;
+    private int observationStoredSize;
+    /**
+     * 已写入文件但尚未sync的观测数量
+     */
+    private int pendingObservations;
+
+    public MappedMemory(NDManager manager, File file, int capacity) {
+        this(manager, file, capacity, false);
+    }
+
+    private MappedMemory(NDManager manager, File file, int capacity, boolean reopen) {
+        super(manager, capacity);
+        this.capacity = capacity;
+        try {
+            if (reopen) {
+                this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } else {
+                this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            }
+            this.header = map(0, HEADER_BYTES);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (reopen) {
+            Validate.isTrue(header.getInt(0) == MAGIC, "文件[" + file + "]不是内存映射经验回放缓存！！");
+            Validate.isTrue(header.getInt(4) == VERSION, "内存映射经验回放缓存版本不匹配！！");
+            this.observationCapacity = (int) header.getLong(44);
+            int stateDim = header.getInt(8);
+            if (stateDim >= 0) {
+                initObservations(stateDim);
+            }
+            int actionDim = header.getInt(12);
+            if (actionDim >= 0) {
+                initRecords(actionDim, header.getInt(16) == 1);
+            }
+            this.storedSize = (int) header.getLong(28);
+            this.nextIndex = (int) header.getLong(36);
+            this.observationStoredSize = (int) header.getLong(52);
+            this.observationNextIndex = (int) header.getLong(60);
+        } else {
+            this.observationCapacity = observationCapacity(capacity);
+            writeHeader();
+        }
+    }
+
+    /**
+     * 重新打开一个已有的数据文件，继续使用其中已sync的样本
+     * 文件按需映射，打开后即可采样，无需读取整个文件
+     *
+     * @param manager 用来管理NDArray的生成
+     * @param file    数据文件
+     * @return 经验回放缓存
+     */
+    public static <S extends IState, A extends IAction> MappedMemory<S, A> open(NDManager manager, File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.nativeOrder());
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    break;
+                }
+            }
+            Validate.isTrue(header.getInt(0) == MAGIC, "文件[" + file + "]不是内存映射经验回放缓存！！");
+            return new MappedMemory<>(manager, file, (int) header.getLong(20), true);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 将观测直接写入观测区，被覆盖的旧观测所对应的最旧样本随之淘汰
+     */
+    @Override
+    public int addObservation(S state) {
+        Validate.isTrue(state instanceof BoxState, "内存映射经验回放缓存仅支持BoxState！！");
+        float[] stateData = ((BoxState) state).getStateData();
+        if (observations == null) {
+            initObservations(stateData.length);
+            writeHeader();
+        }
+        Validate.isTrue(pendingObservations < observationCapacity, "本轮新增的观测数量超出内存映射经验回放缓存的观测容量！！");
+        int row = (int) (((long) observationNextIndex + pendingObservations) % observationCapacity);
+        if (observationStoredSize + pendingObservations >= observationCapacity) {
+            evictObservation(row);
+        }
+        putFloats(observations.segment(row), observations.offset(row), stateData);
+        pendingObservations++;
+        return row;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    S getObservation(int row) {
+        float[] stateData = new float[stateDim];
+        ByteBuffer buffer = observations.segment(row);
+        int offset = observations.offset(row);
+        for (int i = 0; i < stateDim; i++) {
+            stateData[i] = buffer.getFloat(offset + i * Float.BYTES);
+        }
+        return (S) new BoxState(stateData);
+    }
+
+    @Override
+    public void addTransition(int stateRow, A action, boolean done, int nextStateRow, float reward) {
+        if (records == null) {
+            Validate.isTrue(action instanceof BoxAction || action instanceof DiscreteAction, "内存映射经验回放缓存仅支持BoxAction和DiscreteAction！！");
+            boolean discrete = action instanceof DiscreteAction;
+            initRecords(discrete ? 1 : ((BoxAction) action).getActionData().length, discrete);
+            writeHeader();
+        }
+        Validate.isTrue(pendingSize < capacity, "本轮新增的样本数量超出内存映射经验回放缓存容量！！");
+        if (storedSize + pendingSize >= capacity) {
+            // 写入位置上是最旧的有效样本，将被覆盖
+            evictOldest();
+        }
+        int row = (int) (((long) nextIndex + pendingSize) % capacity);
+        ByteBuffer buffer = records.segment(row);
+        int offset = records.offset(row);
+        buffer.putInt(offset, stateRow);
+        buffer.putInt(offset + Integer.BYTES, nextStateRow);
+        offset += ROW_BYTES;
+        if (discreteAction) {
+            buffer.putFloat(offset, ((DiscreteAction) action).getActionData());
+            offset += Float.BYTES;
+        } else {
+            offset = putFloats(buffer, offset, ((BoxAction) action).getActionData());
+        }
+        buffer.putFloat(offset, done ? 1 : 0);
+        offset += Float.BYTES;
+        buffer.putFloat(offset, reward);
+        pendingSize++;
+    }
+
+    @Override
+    public int sync() {
+        int count = pendingSize;
+        if (count == 0) {
+            return 0;
+        }
+        beforeInvalidateRows();
+        sortPending();
+        nextIndex = (int) (((long) nextIndex + count) % capacity);
+        storedSize += count;
+        observationNextIndex = (int) (((long) observationNextIndex + pendingObservations) % observationCapacity);
+        observationStoredSize = (int) Math.min(observationCapacity, (long) observationStoredSize + pendingObservations);
+        pendingSize = 0;
+        pendingObservations = 0;
+        invalidateRows();
+        writeHeader();
+        return count;
+    }
+
+    @Override
+    public MemoryBatch sample(NDManager manager, int[] index) {
+        Validate.isTrue(storedSize > 0, "采样异常，当前经验回放缓存样本数量为0！！");
+        return gather(manager, index);
+    }
+
+    /**
+     * 返回本轮新写入、尚未{@link #sync()}的样本，与{@link #getSize()}一致
+     */
+    @Override
+    public MemoryBatch sample(NDManager manager) {
+        Validate.isTrue(pendingSize > 0, "采样异常，当前缓存样本数量为0！！");
+        int[] index = new int[pendingSize];
+        for (int i = 0; i < pendingSize; i++) {
+            index[i] = (int) (((long) nextIndex + i) % capacity);
+        }
+        return gather(manager, index);
+    }
+
+    @Override
+    public void reset() {
+        beforeInvalidateRows();
+        pendingSize = 0;
+        pendingObservations = 0;
+        invalidateRows();
+    }
+
+    @Override
+    public void clear() {
+        reset();
+        nextIndex = 0;
+        storedSize = 0;
+        observationNextIndex = 0;
+        observationStoredSize = 0;
+        writeHeader();
+    }
+
+    @Override
+    public int getSize() {
+        return pendingSize;
+    }
+
+    @Override
+    public int getStoredSize() {
+        return storedSize;
+    }
+
+    @Override
+    int getNextIndex() {
+        return nextIndex;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        try {
+            if (observations != null) {
+                observations.force();
+            }
+            if (records != null) {
+                records.force();
+            }
+            header.force();
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 即将覆盖观测区的第row行时，淘汰引用该观测的最旧样本
+     * 有效样本引用的观测从旧到新排列，只需检查最旧的样本
+     */
+    private void evictObservation(int row) {
+        while (storedSize > 0) {
+            int oldest = (int) (((long) nextIndex - storedSize + capacity) % capacity);
+            if (records.segment(oldest).getInt(records.offset(oldest)) != row) {
+                return;
+            }
+            evictOldest();
+        }
+    }
+
+    /**
+     * 淘汰最旧的有效样本，并立即更新文件头，重新打开文件时不会把已被覆盖的记录当作有效样本
+     */
+    private void evictOldest() {
+        storedSize--;
+        header.putLong(28, storedSize);
+    }
+
+    /**
+     * 将本轮写入的记录按state的观测行号稳定排序
+     */
+    private void sortPending() {
+        int count = pendingSize;
+        int[] keys = new int[count];
+        boolean ordered = true;
+        for (int i = 0; i < count; i++) {
+            int row = (int) (((long) nextIndex + i) % capacity);
+            int stateRow = records.segment(row).getInt(records.offset(row));
+            keys[i] = (int) (((long) stateRow - observationNextIndex + observationCapacity) % observationCapacity);
+            ordered &= i == 0 || keys[i] >= keys[i - 1];
+        }
+        if (ordered) {
+            return;
+        }
+        int[] offsets = new int[pendingObservations + 1];
+        for (int key : keys) {
+            offsets[key + 1]++;
+        }
+        for (int i = 0; i < pendingObservations; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        ByteBuffer sorted = ByteBuffer.allocate(count * recordBytes);
+        for (int i = 0; i < count; i++) {
+            int row = (int) (((long) nextIndex + i) % capacity);
+            ((Buffer) sorted).position(offsets[keys[i]]++ * recordBytes);
+            sorted.put(records.view(row, 0, recordBytes));
+        }
+        for (int i = 0; i < count; i++) {
+            int row = (int) (((long) nextIndex + i) % capacity);
+            ((Buffer) sorted).limit((i + 1) * recordBytes);
+            ((Buffer) sorted).position(i * recordBytes);
+            records.view(row, 0, recordBytes).put(sorted);
+        }
+    }
+
+    /**
+     * 按记录中的行号拷贝出state、nextState，与记录的其余部分一起按 [state, action, mask, nextState, reward]
+     * 的顺序放入复用的直接缓冲区，再一次性交给引擎
+     */
+    private MemoryBatch gather(NDManager manager, int[] index) {
+        int rowFloats = stateDim * 2 + actionDim + 2;
+        int bytes = index.length * rowFloats * Float.BYTES;
+        if (gatherBuffer == null || gatherBuffer.capacity() < bytes) {
+            gatherBuffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+        }
+        ((Buffer) gatherBuffer).clear();
+        int bodyBytes = (actionDim + 1) * Float.BYTES;
+        for (int row : index) {
+            ByteBuffer record = records.segment(row);
+            int offset = records.offset(row);
+            int stateRow = record.getInt(offset);
+            int nextStateRow = record.getInt(offset + Integer.BYTES);
+            gatherBuffer.put(observations.view(stateRow, 0, observationBytes));
+            gatherBuffer.put(records.view(row, ROW_BYTES, bodyBytes));
+            gatherBuffer.put(observations.view(nextStateRow, 0, observationBytes));
+            gatherBuffer.put(records.view(row, ROW_BYTES + bodyBytes, Float.BYTES));
+        }
+        ((Buffer) gatherBuffer).flip();
+        // 引擎直接引用直接缓冲区的内存，需拷贝一份后缓冲区才能复用
+        NDArray rows;
+        try (NDArray view = manager.create(gatherBuffer, new Shape(index.length, rowFloats), DataType.FLOAT32)) {
+            rows = view.duplicate();
+        }
+        int col = 0;
+        NDArray states = rows.get(columns(col, stateDim));
+        col += stateDim;
+        NDArray actions;
+        if (discreteAction) {
+            actions = rows.get(new NDIndex(":, {}", col)).toType(DataType.INT32, false);
+            col += 1;
+        } else {
+            actions = rows.get(columns(col, actionDim));
+            col += actionDim;
+        }
+        NDArray masks = rows.get(columns(col, 1)).toType(DataType.BOOLEAN, false);
+        col += 1;
+        NDArray nextStates = rows.get(columns(col, stateDim));
+        col += stateDim;
+        NDArray rewards = rows.get(columns(col, 1));
+        return new MemoryBatch(states, actions, masks, nextStates, rewards);
+    }
+
+    private void initObservations(int stateDim) {
+        this.stateDim = stateDim;
+        this.observationBytes = stateDim * Float.BYTES;
+        this.observations = new Section(HEADER_BYTES, observationCapacity, observationBytes);
+    }
+
+    private void initRecords(int actionDim, boolean discreteAction) {
+        Validate.isTrue(observations != null, "内存映射经验回放缓存尚未写入观测！！");
+        this.discreteAction = discreteAction;
+        this.actionDim = actionDim;
+        this.recordBytes = ROW_BYTES + (actionDim + 2) * Float.BYTES;
+        this.records = new Section(HEADER_BYTES + (long) observationCapacity * observationBytes, capacity, recordBytes);
+    }
+
+    private MappedByteBuffer map(long position, long size) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+
+    private void writeHeader() {
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putInt(8, stateDim);
+        header.putInt(12, actionDim);
+        header.putInt(16, discreteAction ? 1 : 0);
+        header.putLong(20, capacity);
+        header.putLong(28, storedSize);
+        header.putLong(36, nextIndex);
+        header.putLong(44, observationCapacity);
+        header.putLong(52, observationStoredSize);
+        header.putLong(60, observationNextIndex);
+    }
+
+    private static int putFloats(ByteBuffer buffer, int offset, float[] values) {
+        for (float value : values) {
+            buffer.putFloat(offset, value);
+            offset += Float.BYTES;
+        }
+        return offset;
+    }
+
+    private static NDIndex columns(int from, int length) {
+        return new NDIndex(":, {}:{}", from, from + length);
+    }
+
+    /**
+     * 文件中由定长行组成的一个区域，按段映射，段在首次访问时才建立映射
+     */
+    private final class Section {
+        private final long position;
+        private final int rows;
+        private final int rowBytes;
+        /**
+         * 每个映射段包含的行数
+         */
+        private final int segmentRows;
+        private final MappedByteBuffer[] segments;
+        /**
+         * 各映射段的复用视图，用于批量读取
+         */
+        private final ByteBuffer[] views;
+
+        Section(long position, int rows, int rowBytes) {
+            this.position = position;
+            this.rows = rows;
+            this.rowBytes = rowBytes;
+            this.segmentRows = (int) Math.max(1, Math.min(rows, SEGMENT_BYTES / rowBytes));
+            int segmentNum = (int) (((long) rows + segmentRows - 1) / segmentRows);
+            this.segments = new MappedByteBuffer[segmentNum];
+            this.views = new ByteBuffer[segmentNum];
+        }
+
+        /**
+         * 返回指定行所在的映射段，首次访问时建立映射
+         */
+        ByteBuffer segment(int row) {
+            int segmentIndex = row / segmentRows;
+            MappedByteBuffer segment = segments[segmentIndex];
+            if (segment == null) {
+                long start = position + (long) segmentIndex * segmentRows * rowBytes;
+                int segmentRowNum = (int) Math.min(segmentRows, (long) rows - (long) segmentIndex * segmentRows);
+                try {
+                    segment = map(start, (long) segmentRowNum * rowBytes);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                segments[segmentIndex] = segment;
+                views[segmentIndex] = segment.duplicate();
+            }
+            return segment;
+        }
+
+        /**
+         * 指定行在所在映射段中的偏移
+         */
+        int offset(int row) {
+            return (row % segmentRows) * rowBytes;
+        }
+
+        /**
+         * 指定行中一段字节的复用视图，position、limit已设置好，用于批量拷贝
+         */
+        ByteBuffer view(int row, int from, int length) {
+            segment(row);
+            ByteBuffer view = views[row / segmentRows];
+            int offset = offset(row) + from;
+            ((Buffer) view).clear();
+            ((Buffer) view).position(offset);
+            ((Buffer) view).limit(offset + length);
+            return view;
+        }
+
+        void force() {
+            for (MappedByteBuffer segment : segments) {
+                if (segment != null) {
+                    segment.force();
+                }
+            }
+        }
+    }
+}
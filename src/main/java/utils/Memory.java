@@ -1,19 +1,33 @@
 package utils;
 
+import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDManager;
 import env.action.collector.IActionCollector;
 import env.action.core.IAction;
 import env.state.collector.IStateCollector;
 import env.state.core.IState;
 import org.apache.commons.lang3.Validate;
+import utils.column.BooleanColumn;
+import utils.column.FloatColumn;
+import utils.column.IntColumn;
 import utils.datatype.Transition;
 
-import java.lang.reflect.Constructor;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * 样本数据缓存
+ * 样本数据按列存储，action写入动作数据收集器，mask、reward写入基础类型数据列，
+ * 每一列都是一段按固定步长排列的连续数组。收集样本时不产生任何对象，采样时直接将连续数据交给引擎。
+ * <p>
+ * 状态数据按轨迹去重存储：同一环境中上一个样本的nextState就是下一个样本的state，
+ * 因此每个观测只写入一次，每幕额外多存一个初始观测。各样本只记录state、nextState在观测列中的行号，
+ * 采样时观测列只交给引擎一次，再按行号抽取出states、nextStates。
+ * 轨迹按环境索引跟踪，要求同一环境的样本按时间顺序添加，且每幕以done为true的样本结束；
+ * 不满足该顺序的调用方可通过{@link #addObservation}和按行号的{@link #addTransition(int, IAction, boolean, int, float)}自行管理观测行号。
+ * <p>
+ * 按环境索引添加的样本在其所属的幕结束后才参与{@link #sample}，采样结果中同一环境的样本按添加顺序连续排列，
+ * 因此多个环境交替添加样本时，每一幕在批次中仍是连续的。{@link #resetFinished()}只清空已结束的幕，
+ * 尚未结束的幕连同其观测保留在缓存中，下次收集时继续添加。
  *
  * @author Caojunqi
  * @date 2021-09-10 11:40
@@ -21,88 +35,409 @@ import java.util.List;
 public class Memory<S extends IState, A extends IAction> {
 
     /**
-     * 样本数据
+     * 各数据列的初始容量
      */
-    private List<Transition<S, A>> transitions;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * 各数据收集器在收到第一条数据时根据数据类型从{@link CollectorRegistry}获取，之后一直复用
+     */
+    private IStateCollector observationCollector;
+    private IActionCollector actionCollector;
+    /**
+     * 各样本的state、nextState在观测列中的行号
+     */
+    private final IntColumn stateRows;
+    private final IntColumn nextStateRows;
+    /**
+     * 各样本所属的环境索引，按观测行号添加的样本为-1
+     */
+    private final IntColumn envIndices;
+    private final BooleanColumn masks;
+    private final FloatColumn rewards;
+    /**
+     * 当前缓存的样本数量
+     */
+    private int size;
+    /**
+     * 当前缓存的观测数量
+     */
+    private int observationSize;
+    /**
+     * 各环境当前轨迹中最新观测的行号，-1表示该环境的下一个样本属于新的一幕
+     */
+    private int[] trajectoryRows = new int[0];
+    /**
+     * 各环境尚未结束的幕中第一个样本的序号，-1表示该环境没有未结束的幕
+     */
+    private int[] trajectoryStarts = new int[0];
+    /**
+     * 观测行号的版本，暂存区清空后递增，之前返回的观测行号全部失效
+     */
+    private int generation;
+    /**
+     * 观测行号失效前的回调，可在其中读出仍需保留的观测
+     */
+    private Runnable invalidationListener;
 
     public Memory() {
-        this.transitions = new ArrayList<>();
+        this.stateRows = new IntColumn(INITIAL_CAPACITY, true);
+        this.nextStateRows = new IntColumn(INITIAL_CAPACITY, true);
+        this.envIndices = new IntColumn(INITIAL_CAPACITY, true);
+        this.masks = new BooleanColumn(INITIAL_CAPACITY, false);
+        this.rewards = new FloatColumn(INITIAL_CAPACITY, false);
     }
 
+    /**
+     * 添加一个样本，各数据会被立即拷贝进对应的数据列，调用方无需对state、nextState做clone
+     */
     public void addTransition(S state, A action, boolean done, S nextState, float reward) {
-        Transition<S, A> transition = new Transition<>(state, action, done, nextState, reward);
-        addTransition(transition);
+        addTransition(0, state, action, done, nextState, reward);
     }
 
     public void addTransition(Transition<S, A> transition) {
-        transitions.add(transition);
+        addTransition(transition.getState(), transition.getAction(), transition.isMasked(), transition.getNextState(), transition.getReward());
+    }
+
+    /**
+     * 添加指定环境产生的一个样本
+     * 该环境的上一个样本未结束时，本样本的state就是上一个样本的nextState，直接复用其观测行号
+     *
+     * @param envIndex 环境索引
+     */
+    public void addTransition(int envIndex, S state, A action, boolean done, S nextState, float reward) {
+        if (envIndex >= trajectoryRows.length) {
+            int oldLength = trajectoryRows.length;
+            trajectoryRows = Arrays.copyOf(trajectoryRows, envIndex + 1);
+            trajectoryStarts = Arrays.copyOf(trajectoryStarts, envIndex + 1);
+            Arrays.fill(trajectoryRows, oldLength, trajectoryRows.length, -1);
+            Arrays.fill(trajectoryStarts, oldLength, trajectoryStarts.length, -1);
+        }
+        int stateRow = trajectoryRows[envIndex];
+        if (stateRow < 0) {
+            stateRow = addObservation(state);
+        }
+        int nextStateRow = addObservation(nextState);
+        trajectoryRows[envIndex] = done ? -1 : nextStateRow;
+        int index = size;
+        addTransition(stateRow, action, done, nextStateRow, reward);
+        if (size > index) {
+            // 子类可能将样本写入其他存储，只有写入本缓存的样本才需要记录所属的幕
+            envIndices.set(index, envIndex);
+            if (done) {
+                trajectoryStarts[envIndex] = -1;
+            } else if (trajectoryStarts[envIndex] < 0) {
+                trajectoryStarts[envIndex] = index;
+            }
+        }
+    }
+
+    /**
+     * 写入一个观测
+     *
+     * @return 观测行号，暂存区清空之前有效
+     */
+    public int addObservation(S state) {
+        if (observationCollector == null) {
+            observationCollector = CollectorRegistry.acquireState(((IState<?>) state).getCollectorClz(), INITIAL_CAPACITY);
+        }
+        int row = observationSize++;
+        observationCollector.addState(row, state);
+        return row;
+    }
+
+    /**
+     * 按观测行号添加一个样本
+     *
+     * @param stateRow     state的观测行号，由{@link #addObservation}返回
+     * @param nextStateRow nextState的观测行号，由{@link #addObservation}返回
+     */
+    public void addTransition(int stateRow, A action, boolean done, int nextStateRow, float reward) {
+        Validate.isTrue(stateRow < observationSize && nextStateRow < observationSize, "观测行号越界！！");
+        if (actionCollector == null) {
+            actionCollector = CollectorRegistry.acquireAction(action.getCollectorClz(), INITIAL_CAPACITY);
+        }
+        stateRows.set(size, stateRow);
+        nextStateRows.set(size, nextStateRow);
+        envIndices.set(size, -1);
+        actionCollector.addAction(size, action);
+        masks.set(size, done);
+        rewards.set(size, reward);
+        size++;
     }
 
     public void reset() {
-        this.transitions.clear();
+        beforeInvalidateRows();
+        if (observationCollector != null) {
+            observationCollector.reset();
+        }
+        if (actionCollector != null) {
+            actionCollector.reset();
+        }
+        clearColumns();
     }
 
     /**
-     * 将缓存的样本数据随机打乱，用作采样数据
+     * 清空已结束的幕，各环境尚未结束的幕连同其观测保留在缓存中，之后可继续添加该幕的样本
+     * 没有未结束的幕时等同于{@link #reset()}
+     */
+    public void resetFinished() {
+        beforeInvalidateRows();
+        int[] kept = new int[size];
+        int keptNum = 0;
+        for (int i = 0; i < size; i++) {
+            if (!isFinished(i)) {
+                kept[keptNum++] = i;
+            }
+        }
+        if (keptNum == 0) {
+            reset();
+            return;
+        }
+        // 保留未结束样本引用的观测，各环境当前轨迹的最新观测即其最后一个样本的nextState
+        int[] observationMap = new int[observationSize];
+        Arrays.fill(observationMap, -1);
+        int[] keptStateRows = new int[keptNum];
+        int[] keptNextStateRows = new int[keptNum];
+        for (int i = 0; i < keptNum; i++) {
+            keptStateRows[i] = stateRows.get(kept[i]);
+            keptNextStateRows[i] = nextStateRows.get(kept[i]);
+            observationMap[keptStateRows[i]] = 0;
+            observationMap[keptNextStateRows[i]] = 0;
+        }
+        int[] keptObservations = new int[observationSize];
+        int keptObservationNum = 0;
+        for (int row = 0; row < observationSize; row++) {
+            if (observationMap[row] == 0) {
+                observationMap[row] = keptObservationNum;
+                keptObservations[keptObservationNum++] = row;
+            }
+        }
+        observationCollector.keepRows(keptObservations, keptObservationNum);
+        actionCollector.keepRows(kept, keptNum);
+        stateRows.keepRows(kept, keptNum);
+        nextStateRows.keepRows(kept, keptNum);
+        envIndices.keepRows(kept, keptNum);
+        masks.keepRows(kept, keptNum);
+        rewards.keepRows(kept, keptNum);
+        for (int i = 0; i < keptNum; i++) {
+            stateRows.set(i, observationMap[keptStateRows[i]]);
+            nextStateRows.set(i, observationMap[keptNextStateRows[i]]);
+        }
+        for (int env = 0; env < trajectoryStarts.length; env++) {
+            if (trajectoryStarts[env] >= 0) {
+                trajectoryStarts[env] = Arrays.binarySearch(kept, 0, keptNum, trajectoryStarts[env]);
+            }
+            if (trajectoryRows[env] >= 0) {
+                trajectoryRows[env] = observationMap[trajectoryRows[env]];
+            }
+        }
+        size = keptNum;
+        observationSize = keptObservationNum;
+        // 观测行号已重新编号，之前返回的行号失效
+        generation++;
+    }
+
+    /**
+     * 将缓存中已结束的样本构建成一个批次，每一列只做一次连续拷贝
+     * 多个环境交替添加样本时，按环境重新排列，使每一幕在批次中连续
      *
      * @param manager 用来管理NDArray的生成
      * @return 采样结果
      */
     public MemoryBatch sample(NDManager manager) {
-        List<Transition<S, A>> tmpList = new ArrayList<>(transitions);
-//        Collections.shuffle(tmpList);
-        int batchSize = tmpList.size();
-        Validate.isTrue(batchSize > 0, "采样异常，当前缓存样本数量为0！！");
-
-        IStateCollector stateCollector = null;
-        IActionCollector actionCollector = null;
-        boolean[][] masks = new boolean[batchSize][];
-        IStateCollector nextStateCollector = null;
-        float[][] rewards = new float[batchSize][];
-
-        for (int i = 0; i < batchSize; i++) {
-            Transition<S, A> transition = tmpList.get(i);
-            if (stateCollector == null) {
-                try {
-                    Class<?> collectorClz = transition.getState().getCollectorClz();
-                    Constructor<?> constructor = collectorClz.getConstructor(int.class);
-                    stateCollector = (IStateCollector) constructor.newInstance(batchSize);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-            }
-            if (actionCollector == null) {
-                try {
-                    Class<?> collectorClz = transition.getAction().getCollectorClz();
-                    Constructor<?> constructor = collectorClz.getConstructor(int.class);
-                    actionCollector = (IActionCollector) constructor.newInstance(batchSize);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
+        int[] order = sampleOrder();
+        if (order != null) {
+            return sampleInOrder(manager, order);
+        }
+        Validate.isTrue(size > 0, "采样异常，当前缓存样本数量为0！！");
+        NDArray states;
+        NDArray nextStates;
+        try (NDArray observations = createObservations(manager);
+             NDArray stateIndex = stateRows.toNDArray(manager);
+             NDArray nextStateIndex = nextStateRows.toNDArray(manager)) {
+            states = MinibatchGather.gatherRows(observations, stateIndex);
+            nextStates = MinibatchGather.gatherRows(observations, nextStateIndex);
+        }
+        return new MemoryBatch(states,
+                createActions(manager),
+                createMasks(manager),
+                nextStates,
+                createRewards(manager));
+    }
+
+    /**
+     * 按指定顺序抽取样本
+     */
+    private MemoryBatch sampleInOrder(NDManager manager, int[] order) {
+        Validate.isTrue(order.length > 0, "采样异常，当前缓存中已结束的样本数量为0！！");
+        int[] stateIndexData = new int[order.length];
+        int[] nextStateIndexData = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            stateIndexData[i] = stateRows.get(order[i]);
+            nextStateIndexData[i] = nextStateRows.get(order[i]);
+        }
+        try (NDArray observations = createObservations(manager);
+             NDArray stateIndex = manager.create(stateIndexData);
+             NDArray nextStateIndex = manager.create(nextStateIndexData);
+             NDArray index = manager.create(order);
+             NDArray actions = createActions(manager);
+             NDArray masks = createMasks(manager);
+             NDArray rewards = createRewards(manager)) {
+            return new MemoryBatch(MinibatchGather.gatherRows(observations, stateIndex),
+                    MinibatchGather.gatherRows(actions, index),
+                    MinibatchGather.gatherRows(masks, index),
+                    MinibatchGather.gatherRows(observations, nextStateIndex),
+                    MinibatchGather.gatherRows(rewards, index));
+        }
+    }
+
+    /**
+     * 计算参与采样的样本顺序：先是按观测行号添加的样本，再按环境索引依次排列各环境已结束的样本
+     *
+     * @return 样本序号，顺序与添加顺序一致且没有未结束的样本时返回null
+     */
+    private int[] sampleOrder() {
+        int envNum = trajectoryStarts.length;
+        int[] counts = new int[envNum + 2];
+        int finishedNum = 0;
+        boolean ordered = true;
+        int lastEnv = -1;
+        for (int i = 0; i < size; i++) {
+            int env = envIndices.get(i);
+            if (!isFinished(i)) {
+                ordered = false;
+                continue;
             }
-            if (nextStateCollector == null) {
-                try {
-                    Class<?> collectorClz = transition.getNextState().getCollectorClz();
-                    Constructor<?> constructor = collectorClz.getConstructor(int.class);
-                    nextStateCollector = (IStateCollector) constructor.newInstance(batchSize);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
+            ordered &= env >= lastEnv;
+            lastEnv = env;
+            counts[env + 2]++;
+            finishedNum++;
+        }
+        if (ordered) {
+            return null;
+        }
+        for (int env = 1; env < counts.length; env++) {
+            counts[env] += counts[env - 1];
+        }
+        int[] order = new int[finishedNum];
+        for (int i = 0; i < size; i++) {
+            if (isFinished(i)) {
+                order[counts[envIndices.get(i) + 1]++] = i;
             }
-            stateCollector.addState(i, transition.getState());
-            actionCollector.addAction(i, transition.getAction());
-            masks[i] = new boolean[]{transition.isMasked()};
-            nextStateCollector.addState(i, transition.getNextState());
-            rewards[i] = new float[]{transition.getReward()};
         }
-        return new MemoryBatch(stateCollector.createNDArray(manager),
-                actionCollector.createNDArray(manager),
-                manager.create(masks),
-                nextStateCollector.createNDArray(manager),
-                manager.create(rewards));
+        return order;
+    }
+
+    /**
+     * 第index个样本所属的幕是否已结束，按观测行号添加的样本视为已结束
+     */
+    private boolean isFinished(int index) {
+        int env = envIndices.get(index);
+        return env < 0 || trajectoryStarts[env] < 0 || index < trajectoryStarts[env];
     }
 
     public int getSize() {
-        return transitions.size();
+        return size;
+    }
+
+    /**
+     * 将数据收集器归还给{@link CollectorRegistry}，之后可由其他缓存复用
+     * 归还后缓存中的样本全部清空，再次添加样本时重新获取收集器
+     */
+    public void releaseCollectors() {
+        beforeInvalidateRows();
+        if (observationCollector != null) {
+            CollectorRegistry.release(observationCollector);
+            observationCollector = null;
+        }
+        if (actionCollector != null) {
+            CollectorRegistry.release(actionCollector);
+            actionCollector = null;
+        }
+        clearColumns();
+    }
+
+    /**
+     * @return 观测行号的版本，版本变化后之前返回的观测行号全部失效
+     */
+    int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * 设置观测行号失效前的回调，回调执行时之前返回的观测行号仍然有效
+     */
+    void setInvalidationListener(Runnable listener) {
+        this.invalidationListener = listener;
+    }
+
+    /**
+     * 观测行号即将失效，通知回调读出仍需保留的观测
+     */
+    void beforeInvalidateRows() {
+        if (invalidationListener != null) {
+            invalidationListener.run();
+        }
+    }
+
+    /**
+     * 按观测行号读出一个观测
+     *
+     * @param row 由{@link #addObservation}返回的观测行号
+     * @return 新建的观测对象
+     */
+    @SuppressWarnings("unchecked")
+    S getObservation(int row) {
+        Validate.isTrue(row < observationSize, "观测行号越界！！");
+        return (S) observationCollector.getState(row);
+    }
+
+    /**
+     * 使之前返回的观测行号全部失效，各环境的下一个样本都从新的观测开始
+     */
+    void invalidateRows() {
+        generation++;
+        Arrays.fill(trajectoryRows, -1);
+    }
+
+    int getObservationSize() {
+        return observationSize;
+    }
+
+    int getStateRow(int index) {
+        return stateRows.get(index);
+    }
+
+    int getNextStateRow(int index) {
+        return nextStateRows.get(index);
+    }
+
+    NDArray createObservations(NDManager manager) {
+        return observationCollector.createNDArray(manager);
+    }
+
+    NDArray createActions(NDManager manager) {
+        return actionCollector.createNDArray(manager);
+    }
+
+    NDArray createMasks(NDManager manager) {
+        return masks.toNDArray(manager);
+    }
+
+    NDArray createRewards(NDManager manager) {
+        return rewards.toNDArray(manager);
+    }
+
+    private void clearColumns() {
+        stateRows.clear();
+        nextStateRows.clear();
+        envIndices.clear();
+        masks.clear();
+        rewards.clear();
+        size = 0;
+        observationSize = 0;
+        Arrays.fill(trajectoryStarts, -1);
+        invalidateRows();
     }
 }
@@ -14,6 +14,7 @@ import utils.datatype.Transition;
  * @date 2021-09-11 11:16
  */
 public final class MemoryBatch extends NDList {
+    private static final long serialVersionUID = -1L;
 
     public MemoryBatch(NDArray... arrays) {
         super(arrays);
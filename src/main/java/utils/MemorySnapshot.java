@@ -0,0 +1,379 @@
+package utils;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import org.apache.commons.lang3.Validate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 经验回放缓存的二进制快照
+ * 用于长时间训练重启后快速恢复{@link ReplayMemory}中的样本，避免重新与环境交互填充缓存。
+ * <p>
+ * 缓存由两个环形缓冲区组成：观测缓冲区（1列）和样本缓冲区（[stateRow, action, mask, nextStateRow, reward]共5列），
+ * 快照中每个观测同样只存一份。
+ * 文件格式：固定长度的文件头，之后按列依次存放各列数据，每列按所属缓冲区的容量预留行，行号与缓存中的位置一致。
+ * 文件头依次为 magic, version, 字节序, 缓冲区数，每个缓冲区的 capacity, 已写入行数, storedSize, nextIndex，
+ * 之后为列数，以及每列所属的缓冲区、数据类型名称和单行形状。
+ * <p>
+ * 每次调用{@link #write(ReplayMemory)}只会写入上次快照之后新追加的观测和样本：
+ * 新数据在调用线程上一次性拷贝出来，文件写入在后台单线程中完成，数据落盘后才更新文件头。
+ * 恢复时将各列直接映射进内存，每列一次性交给引擎。
+ * 通过{@link #resume(File, ReplayMemory)}恢复时不会清空原文件，之后继续增量写入恢复后新追加的数据，
+ * 因此首次写入之前崩溃也不会丢失已恢复的快照。
+ * <p>
+ * 后台写入线程为守护线程，快照在JVM退出时会等待尚未完成的写入；也可由使用方主动{@link #close()}。
+ * <p>
+ * {@link MappedMemory}的数据文件本身即可重新打开，见{@link MappedMemory#open(NDManager, File)}。
+ *
+ * @author Caojunqi
+ * @date 2021-12-22 16:10
+ */
+public final class MemorySnapshot implements AutoCloseable {
+
+    private static final int MAGIC = 0x524C534E;
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 1024;
+    /**
+     * 缓冲区数量：观测、样本
+     */
+    private static final int RING_NUM = 2;
+    private static final int OBSERVATION_RING = 0;
+    private static final int TRANSITION_RING = 1;
+    /**
+     * 文件头中各缓冲区信息的起始位置及长度
+     */
+    private static final int RING_POS = 16;
+    private static final int RING_BYTES = 16;
+    private static final int COLUMN_POS = RING_POS + RING_NUM * RING_BYTES;
+    /**
+     * 文件头中数据类型名称的固定长度
+     */
+    private static final int DTYPE_NAME_BYTES = 16;
+    /**
+     * 文件头中单行形状的最大维度数
+     */
+    private static final int MAX_ROW_DIMS = 4;
+
+    private final FileChannel channel;
+    private final ExecutorService executor;
+    /**
+     * 上次快照时各缓冲区累计追加过的行数
+     */
+    private final long[] snapshotTotals = new long[RING_NUM];
+    /**
+     * 各列在文件中的起始位置、单行字节数及所属缓冲区，首次写入时确定
+     */
+    private long[] sectionOffsets;
+    private int[] rowBytes;
+    private int[] columnRings;
+    /**
+     * JVM退出时等待后台写入完成
+     */
+    private final Thread shutdownHook;
+
+    public MemorySnapshot(File file) {
+        this(file, true);
+    }
+
+    private MemorySnapshot(File file, boolean truncate) {
+        try {
+            if (truncate) {
+                this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            } else {
+                this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "memory-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.shutdownHook = new Thread(this::awaitWrites, "memory-snapshot-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * 从快照文件恢复样本，并返回继续向该文件写入的快照
+     * 文件不会被清空，之后只写入恢复之后新追加的数据
+     *
+     * @param file   快照文件
+     * @param memory 经验回放缓存，容量需与快照一致
+     * @return 快照
+     */
+    public static MemorySnapshot resume(File file, ReplayMemory<?, ?> memory) {
+        restore(file, memory);
+        MemorySnapshot snapshot = new MemorySnapshot(file, false);
+        // 缓存的各列由快照文件构建，布局与文件一致，文件头无需重写
+        snapshot.initLayout(memory);
+        snapshot.snapshotTotals[OBSERVATION_RING] = memory.getObservationAppendedTotal();
+        snapshot.snapshotTotals[TRANSITION_RING] = memory.getAppendedTotal();
+        return snapshot;
+    }
+
+    /**
+     * 将上次快照之后新追加的观测和样本写入快照文件
+     * 需与{@link ReplayMemory#sync()}在同一线程调用
+     *
+     * @param memory 经验回放缓存
+     * @return 后台写入任务
+     */
+    public Future<?> write(ReplayMemory<?, ?> memory) {
+        Validate.isTrue(!(memory instanceof MappedMemory), "内存映射经验回放缓存无需快照，可直接重新打开数据文件！！");
+        if (memory.getResidents() == null || memory.getAppendedTotal() == snapshotTotals[TRANSITION_RING]) {
+            return executor.submit(() -> {
+            });
+        }
+        ByteBuffer header = null;
+        if (sectionOffsets == null) {
+            header = initLayout(memory);
+        }
+        NDArray[] columns = columns(memory);
+        int[] capacities = {memory.getObservationCapacity(), memory.getCapacity()};
+        int[] nextIndexes = {memory.getObservationNextIndex(), memory.getNextIndex()};
+        long[] totals = {memory.getObservationAppendedTotal(), memory.getAppendedTotal()};
+        int[] storedSizes = {(int) Math.min(capacities[OBSERVATION_RING], totals[OBSERVATION_RING]), memory.getStoredSize()};
+        // 在调用线程上拷贝出新数据，避免后台写入时被后续的sync覆盖
+        int[] starts = new int[RING_NUM];
+        int[] heads = new int[RING_NUM];
+        ByteBuffer[] headRows = new ByteBuffer[columns.length];
+        ByteBuffer[] tailRows = new ByteBuffer[columns.length];
+        for (int ring = 0; ring < RING_NUM; ring++) {
+            int capacity = capacities[ring];
+            int count = (int) Math.min(capacity, totals[ring] - snapshotTotals[ring]);
+            starts[ring] = (int) (((long) nextIndexes[ring] - count + capacity) % capacity);
+            heads[ring] = Math.min(count, capacity - starts[ring]);
+            for (int i = 0; i < columns.length; i++) {
+                if (columnRings[i] == ring && count > 0) {
+                    headRows[i] = copyRows(columns[i], starts[ring], heads[ring]);
+                    tailRows[i] = count > heads[ring] ? copyRows(columns[i], 0, count - heads[ring]) : null;
+                }
+            }
+            snapshotTotals[ring] = totals[ring];
+        }
+        ByteBuffer layoutHeader = header;
+        return executor.submit(() -> {
+            try {
+                if (layoutHeader != null) {
+                    writeFully(layoutHeader, 0);
+                }
+                for (int i = 0; i < columns.length; i++) {
+                    if (headRows[i] != null) {
+                        writeFully(headRows[i], sectionOffsets[i] + (long) starts[columnRings[i]] * rowBytes[i]);
+                    }
+                    if (tailRows[i] != null) {
+                        writeFully(tailRows[i], sectionOffsets[i]);
+                    }
+                }
+                channel.force(false);
+                for (int ring = 0; ring < RING_NUM; ring++) {
+                    ByteBuffer counters = ByteBuffer.allocate(12).order(ByteOrder.nativeOrder());
+                    counters.putInt((int) Math.min(capacities[ring], totals[ring])).putInt(storedSizes[ring]).putInt(nextIndexes[ring]);
+                    ((Buffer) counters).flip();
+                    writeFully(counters, RING_POS + ring * RING_BYTES + 4);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    /**
+     * 等待所有后台写入完成并关闭文件
+     */
+    @Override
+    public void close() {
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // JVM正在退出，由shutdownHook等待写入完成
+        }
+        awaitWrites();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void awaitWrites() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 从快照文件恢复样本，缓存中原有的样本会被替换
+     *
+     * @param file   快照文件
+     * @param memory 经验回放缓存，容量需与快照一致
+     */
+    public static void restore(File file, ReplayMemory<?, ?> memory) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             NDManager manager = NDManager.newBaseManager()) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            header.order(ByteOrder.nativeOrder());
+            Validate.isTrue(header.getInt(0) == MAGIC, "文件[" + file + "]不是经验回放缓存快照！！");
+            Validate.isTrue(header.getInt(4) == VERSION, "经验回放缓存快照版本不匹配！！");
+            Validate.isTrue(header.getInt(8) == (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 0 : 1), "经验回放缓存快照字节序与本机不一致！！");
+            Validate.isTrue(header.getInt(12) == RING_NUM, "经验回放缓存快照格式不匹配！！");
+            int[] capacities = new int[RING_NUM];
+            int[] rows = new int[RING_NUM];
+            int[] storedSizes = new int[RING_NUM];
+            int[] nextIndexes = new int[RING_NUM];
+            for (int ring = 0; ring < RING_NUM; ring++) {
+                int pos = RING_POS + ring * RING_BYTES;
+                capacities[ring] = header.getInt(pos);
+                rows[ring] = header.getInt(pos + 4);
+                storedSizes[ring] = header.getInt(pos + 8);
+                nextIndexes[ring] = header.getInt(pos + 12);
+            }
+            int capacity = capacities[TRANSITION_RING];
+            Validate.isTrue(capacity == memory.getCapacity() && capacities[OBSERVATION_RING] == memory.getObservationCapacity(),
+                    "经验回放缓存容量[" + memory.getCapacity() + "]与快照容量[" + capacity + "]不一致！！");
+
+            int columnNum = header.getInt(COLUMN_POS);
+            NDArray observations = null;
+            NDList columns = new NDList(columnNum - 1);
+            long offset = HEADER_BYTES;
+            int pos = COLUMN_POS + 4;
+            for (int i = 0; i < columnNum; i++) {
+                int ring = header.getInt(pos);
+                pos += 4;
+                byte[] nameBytes = new byte[DTYPE_NAME_BYTES];
+                for (int j = 0; j < DTYPE_NAME_BYTES; j++) {
+                    nameBytes[j] = header.get(pos + j);
+                }
+                DataType dataType = DataType.valueOf(new String(nameBytes, StandardCharsets.US_ASCII).trim());
+                pos += DTYPE_NAME_BYTES;
+                int rowDim = header.getInt(pos);
+                pos += 4;
+                long[] dims = new long[rowDim + 1];
+                dims[0] = rows[ring];
+                long rowSize = 1;
+                for (int j = 0; j < MAX_ROW_DIMS; j++) {
+                    if (j < rowDim) {
+                        dims[j + 1] = header.getLong(pos);
+                        rowSize *= dims[j + 1];
+                    }
+                    pos += 8;
+                }
+                Shape shape = new Shape(dims);
+                long rowBytes = rowSize * dataType.getNumOfBytes();
+                NDArray column;
+                if (rows[ring] > 0) {
+                    MappedByteBuffer section = channel.map(FileChannel.MapMode.READ_ONLY, offset, rows[ring] * rowBytes);
+                    section.order(ByteOrder.nativeOrder());
+                    // 引擎直接引用映射内存，拷贝一份后文件即可关闭
+                    try (NDArray view = manager.create(section, shape, dataType)) {
+                        column = view.duplicate();
+                    }
+                } else {
+                    column = manager.zeros(shape, dataType);
+                }
+                if (ring == OBSERVATION_RING) {
+                    observations = column;
+                } else {
+                    columns.add(column);
+                }
+                offset += capacities[ring] * rowBytes;
+            }
+            Validate.isTrue(observations != null && !columns.isEmpty(), "经验回放缓存快照格式不匹配！！");
+            memory.load(observations, nextIndexes[OBSERVATION_RING], columns, storedSizes[TRANSITION_RING], nextIndexes[TRANSITION_RING]);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return 观测列及各样本列，观测列在前
+     */
+    private static NDArray[] columns(ReplayMemory<?, ?> memory) {
+        NDArray[] residents = memory.getResidents();
+        NDArray[] columns = new NDArray[residents.length + 1];
+        columns[0] = memory.getObservations();
+        System.arraycopy(residents, 0, columns, 1, residents.length);
+        return columns;
+    }
+
+    private ByteBuffer initLayout(ReplayMemory<?, ?> memory) {
+        NDArray[] columns = columns(memory);
+        int columnNum = columns.length;
+        Validate.isTrue(COLUMN_POS + 4 + columnNum * (4 + DTYPE_NAME_BYTES + 4 + MAX_ROW_DIMS * 8) <= HEADER_BYTES, "经验回放缓存列数过多，无法写入快照文件头！！");
+        int[] capacities = {memory.getObservationCapacity(), memory.getCapacity()};
+        sectionOffsets = new long[columnNum];
+        rowBytes = new int[columnNum];
+        columnRings = new int[columnNum];
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.nativeOrder());
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 0 : 1);
+        header.putInt(RING_NUM);
+        for (int ring = 0; ring < RING_NUM; ring++) {
+            header.putInt(capacities[ring]);
+            // 已写入行数, storedSize, nextIndex在数据落盘后再写入
+            header.putInt(0);
+            header.putInt(0);
+            header.putInt(0);
+        }
+        header.putInt(columnNum);
+        long offset = HEADER_BYTES;
+        for (int i = 0; i < columnNum; i++) {
+            NDArray column = columns[i];
+            columnRings[i] = i == 0 ? OBSERVATION_RING : TRANSITION_RING;
+            Shape rowShape = column.getShape().slice(1);
+            Validate.isTrue(rowShape.dimension() <= MAX_ROW_DIMS, "经验回放缓存数据维度过高，无法写入快照！！");
+            byte[] name = column.getDataType().name().getBytes(StandardCharsets.US_ASCII);
+            byte[] nameBytes = new byte[DTYPE_NAME_BYTES];
+            for (int j = 0; j < DTYPE_NAME_BYTES; j++) {
+                nameBytes[j] = j < name.length ? name[j] : (byte) ' ';
+            }
+            header.putInt(columnRings[i]);
+            header.put(nameBytes);
+            header.putInt(rowShape.dimension());
+            for (int j = 0; j < MAX_ROW_DIMS; j++) {
+                header.putLong(j < rowShape.dimension() ? rowShape.get(j) : 0);
+            }
+            rowBytes[i] = (int) (rowShape.size() * column.getDataType().getNumOfBytes());
+            sectionOffsets[i] = offset;
+            offset += (long) capacities[columnRings[i]] * rowBytes[i];
+        }
+        ((Buffer) header).clear();
+        return header;
+    }
+
+    private static ByteBuffer copyRows(NDArray column, int from, int count) {
+        try (NDArray view = column.get(new NDIndex(from + ":" + (from + count)))) {
+            return view.toByteBuffer();
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package utils;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.ndarray.types.Shape;
+
+/**
+ * 小批量样本抽取工具
+ * 每个小批量只创建一次索引张量，之后每个字段（状态、动作、收益、优势等）都只需一次引擎调用即可沿第0维抽取出对应的行，
+ * 替代逐行调用get/set的拷贝方式。
+ *
+ * @author Caojunqi
+ * @date 2021-12-23 14:30
+ */
+public final class MinibatchGather {
+
+    private final NDManager manager;
+    private final NDArray index;
+
+    /**
+     * @param manager 抽取结果所属的NDManager
+     * @param index   本批次样本的行索引
+     */
+    public MinibatchGather(NDManager manager, int[] index) {
+        this.manager = manager;
+        this.index = manager.create(index);
+    }
+
+    /**
+     * 按本批次的行索引抽取数据
+     *
+     * @param array 待抽取的数据，第0维为样本维
+     * @return 抽取结果，第0维长度等于索引长度
+     */
+    public NDArray gather(NDArray array) {
+        NDArray sample = gatherRows(array, index);
+        sample.attach(manager);
+        return sample;
+    }
+
+    /**
+     * 沿第0维按索引抽取数据
+     * 抽取结果属于array所在的NDManager
+     *
+     * @param array 待抽取的数据
+     * @param index 一维行索引
+     */
+    public static NDArray gatherRows(NDArray array, NDArray index) {
+        Shape shape = array.getShape();
+        if (shape.dimension() == 1) {
+            return array.get(new NDIndex().addPickDim(index));
+        }
+        long[] indexShape = new long[shape.dimension()];
+        indexShape[0] = index.size();
+        for (int i = 1; i < indexShape.length; i++) {
+            indexShape[i] = 1;
+        }
+        NDArray pick = index.reshape(new Shape(indexShape)).broadcast(Shape.update(shape, 0, index.size()));
+        return array.get(new NDIndex().addPickDim(pick));
+    }
+}
@@ -0,0 +1,233 @@
+package utils;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import org.apache.commons.lang3.Validate;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 小批量样本预取迭代器
+ * 在后台线程上依次准备各小批量样本（生成索引、抽取数据、类型转换），训练线程对第k批做反向传播时，
+ * 第k+1批已在准备中。预取队列长度为2，即最多提前准备两批。
+ * <p>
+ * 每批样本都创建在独立的子NDManager中，使用完毕后需关闭{@link Minibatch}。
+ *
+ * @author Caojunqi
+ * @date 2021-12-24 14:40
+ */
+public final class MinibatchPrefetcher implements Iterator<MinibatchPrefetcher.Minibatch>, AutoCloseable {
+
+    /**
+     * 预取队列长度
+     */
+    private static final int QUEUE_SIZE = 2;
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "minibatch-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final int batchNum;
+    private final Future<?> task;
+    private int consumed;
+    private volatile boolean closed;
+
+    /**
+     * @param manager 各批样本的子NDManager都由此创建
+     * @param batchNum 小批量数量
+     * @param loader   小批量样本的加载方式，只在后台线程上按批次顺序调用
+     */
+    public MinibatchPrefetcher(NDManager manager, int batchNum, BatchLoader loader) {
+        this.batchNum = batchNum;
+        this.task = EXECUTOR.submit(() -> {
+            for (int i = 0; i < batchNum && !closed; i++) {
+                NDManager batchManager = manager.newSubManager();
+                Object item;
+                try {
+                    item = loader.load(batchManager, i);
+                } catch (Throwable e) {
+                    batchManager.close();
+                    item = e;
+                }
+                if (!put(item) || item instanceof Throwable) {
+                    return null;
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 将数据按第0维随机打乱后划分为小批量，共进行epochs轮完整遍历
+     *
+     * @param manager   各批样本的子NDManager都由此创建
+     * @param fields    待划分的数据，第0维长度一致
+     * @param batchSize 小批量大小，每轮最后一批可能不足
+     * @param epochs    遍历轮数
+     * @param seed      打乱顺序使用的随机种子
+     */
+    public static MinibatchPrefetcher shuffled(NDManager manager, NDList fields, int batchSize, int epochs, long seed) {
+        int sampleNum = (int) fields.head().getShape().get(0);
+        int batchPerEpoch = (sampleNum + batchSize - 1) / batchSize;
+        Random random = new Random(seed);
+        int[] permutation = new int[sampleNum];
+        return new MinibatchPrefetcher(manager, epochs * batchPerEpoch, (batchManager, batch) -> {
+            int j = batch % batchPerEpoch;
+            if (j == 0) {
+                shuffle(permutation, random);
+            }
+            int from = j * batchSize;
+            int[] index = new int[Math.min(batchSize, sampleNum - from)];
+            System.arraycopy(permutation, from, index, 0, index.length);
+            MinibatchGather gather = new MinibatchGather(batchManager, index);
+            NDArray[] arrays = new NDArray[fields.size()];
+            for (int i = 0; i < arrays.length; i++) {
+                arrays[i] = gather.gather(fields.get(i));
+            }
+            return new Minibatch(batchManager, index, arrays);
+        });
+    }
+
+    @Override
+    public boolean hasNext() {
+        return consumed < batchNum;
+    }
+
+    @Override
+    public Minibatch next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Object item;
+        try {
+            item = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        if (item instanceof Throwable) {
+            consumed = batchNum;
+            throw new IllegalStateException("小批量样本预取失败！！", (Throwable) item);
+        }
+        consumed++;
+        return (Minibatch) item;
+    }
+
+    /**
+     * 停止预取，并释放尚未取走的小批量样本
+     */
+    @Override
+    public void close() {
+        closed = true;
+        drain();
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        drain();
+    }
+
+    private boolean put(Object item) throws InterruptedException {
+        while (!closed) {
+            if (queue.offer(item, 10, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        if (item instanceof Minibatch) {
+            ((Minibatch) item).close();
+        }
+        return false;
+    }
+
+    private void drain() {
+        Object item;
+        while ((item = queue.poll()) != null) {
+            if (item instanceof Minibatch) {
+                ((Minibatch) item).close();
+            }
+        }
+    }
+
+    private static void shuffle(int[] permutation, Random random) {
+        for (int i = 0; i < permutation.length; i++) {
+            permutation[i] = i;
+        }
+        for (int i = permutation.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = permutation[i];
+            permutation[i] = permutation[j];
+            permutation[j] = tmp;
+        }
+    }
+
+    /**
+     * 小批量样本的加载方式
+     */
+    @FunctionalInterface
+    public interface BatchLoader {
+        /**
+         * 加载第batch批样本
+         *
+         * @param batchManager 本批样本所属的NDManager
+         * @param batch        批次序号
+         */
+        Minibatch load(NDManager batchManager, int batch) throws Exception;
+    }
+
+    /**
+     * 一批预取好的样本，关闭时释放其中所有NDArray
+     */
+    public static final class Minibatch extends NDList implements AutoCloseable {
+        private static final long serialVersionUID = -1L;
+
+        private final NDManager manager;
+        /**
+         * 本批样本的行索引
+         */
+        private final int[] index;
+
+        public Minibatch(NDManager manager, int[] index, NDArray... arrays) {
+            super(arrays);
+            Validate.isTrue(arrays.length > 0, "小批量样本不能为空！！");
+            this.manager = manager;
+            this.index = index;
+        }
+
+        public NDManager getManager() {
+            return manager;
+        }
+
+        public int[] getIndex() {
+            return index;
+        }
+
+        /**
+         * 为本批样本打开一个作用域，样本移入作用域的管理器，本批次的计算结果都应归属于它
+         */
+        public NDScope openScope() {
+            NDScope scope = NDScope.open("minibatch", manager);
+            attach(scope.getManager());
+            return scope;
+        }
+
+        @Override
+        public void close() {
+            manager.close();
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package utils;
+
+import ai.djl.ndarray.BaseNDManager;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import algorithm.CommonParameter;
+
+import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 具有明确生命周期的NDArray作用域，如单步、单个小批量、单轮迭代
+ * <p>
+ * 作用域持有父管理器的一个子管理器，作用域内创建的NDArray都应归属于它，{@link #close()}时一并释放，
+ * 并按作用域名称累计释放的NDArray数量和字节数。
+ * 作用域按线程嵌套，{@link #nested(String, NDManager)}在当前线程最内层作用域下打开新的作用域，
+ * 嵌套作用域释放的NDArray同时计入外层作用域，因此外层作用域的统计包含其期间释放的全部NDArray。
+ * <p>
+ * 关闭时若父管理器及其各级子管理器中的NDArray比打开时多，说明作用域期间有NDArray被挂到了寿命更长的管理器上，
+ * 这些NDArray要等父管理器关闭才会释放，长时间运行时本地内存会持续增长，此时输出一条泄漏警告。
+ * 统计时跳过其他仍打开的作用域，以及通过{@link #detach(NDManager)}登记的自行管理生命周期的管理器。
+ * <p>
+ * 默认只比较NDArray数量，开销为一次子管理器的创建与关闭以及两次对父管理器的遍历。
+ * 开启{@link CommonParameter#ND_SCOPE_TRACE}后，打开时额外记录调用位置以及父管理器中已有的NDArray，
+ * 泄漏警告中会给出作用域的打开位置及泄漏的NDArray形状。
+ * 引擎没有提供NDArray创建时的回调，因此无法记录每个NDArray各自的创建位置。
+ * <p>
+ * 父管理器需只在打开作用域的线程上使用，否则其他线程的正常分配也会被记为泄漏；
+ * 首次运行时的一次性初始化（如优化器状态）同样会在第一次关闭时被报告。
+ *
+ * @author Caojunqi
+ * @date 2021-12-28 10:30
+ */
+public final class NDScope implements AutoCloseable {
+    /**
+     * NDManager中已登记资源的表，引擎未提供查询管理器中存活资源的接口，只能通过反射读取，引擎版本不兼容时为null
+     */
+    private static final Field RESOURCES;
+    /**
+     * 泄漏警告中最多列出的资源个数
+     */
+    private static final int MAX_REPORTED_RESOURCES = 10;
+    /**
+     * 各名称作用域的累计统计
+     */
+    private static final Map<String, ScopeStats> STATS = new ConcurrentHashMap<>();
+    /**
+     * 泄漏统计时跳过的管理器：仍打开的作用域以及自行管理生命周期的管理器，管理器被回收后自动移除
+     */
+    private static final Set<NDManager> EXCLUDED = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    /**
+     * 各线程当前打开的作用域，栈顶为最内层
+     */
+    private static final ThreadLocal<Deque<NDScope>> OPEN_SCOPES = ThreadLocal.withInitial(ArrayDeque::new);
+
+    static {
+        Field field;
+        try {
+            field = BaseNDManager.class.getDeclaredField("resources");
+            field.setAccessible(true);
+            if (!Map.class.isAssignableFrom(field.getType())) {
+                field = null;
+            }
+        } catch (NoSuchFieldException | RuntimeException e) {
+            field = null;
+        }
+        RESOURCES = field;
+        if (RESOURCES == null) {
+            System.out.println("NDScope：无法读取NDManager中已登记的资源，作用域统计与泄漏检查不可用");
+        }
+    }
+
+    private final String name;
+    private final NDManager parent;
+    private final NDManager manager;
+    /**
+     * 打开时父管理器及其各级子管理器中的NDArray数量
+     */
+    private final int parentLiveNum;
+    /**
+     * 打开位置及打开时父管理器中已有的NDArray，仅在开启追踪时记录
+     */
+    private final Throwable openSite;
+    private final Set<String> parentKeys;
+    /**
+     * 嵌套作用域已释放的NDArray数量及字节数
+     */
+    private long nestedReleasedNum;
+    private long nestedReleasedBytes;
+    private boolean closed;
+
+    private NDScope(String name, NDManager parent) {
+        this.name = name;
+        this.parent = parent;
+        if (CommonParameter.ND_SCOPE_TRACE && RESOURCES != null) {
+            Map<String, NDArray> arrays = new HashMap<>();
+            this.parentLiveNum = countArrays(parent, arrays);
+            this.openSite = new Throwable("NDScope[" + name + "]打开位置");
+            this.parentKeys = arrays.keySet();
+        } else {
+            this.parentLiveNum = countArrays(parent, null);
+            this.openSite = null;
+            this.parentKeys = null;
+        }
+        this.manager = parent.newSubManager();
+        this.manager.setName(name);
+        EXCLUDED.add(manager);
+        OPEN_SCOPES.get().push(this);
+    }
+
+    /**
+     * 打开一个作用域
+     *
+     * @param name   作用域名称，统计数据按名称汇总
+     * @param parent 父管理器，作用域期间不应有新的NDArray留在其中
+     * @return 作用域
+     */
+    public static NDScope open(String name, NDManager parent) {
+        return new NDScope(name, parent);
+    }
+
+    /**
+     * 在当前线程最内层作用域下打开一个作用域，当前线程没有打开的作用域时以fallback为父管理器
+     */
+    public static NDScope nested(String name, NDManager fallback) {
+        return new NDScope(name, current(fallback));
+    }
+
+    /**
+     * 返回当前线程最内层作用域的管理器
+     *
+     * @param fallback 当前线程没有打开的作用域时返回的管理器
+     */
+    private static NDManager current(NDManager fallback) {
+        NDScope scope = OPEN_SCOPES.get().peek();
+        return scope == null ? fallback : scope.manager;
+    }
+
+    /**
+     * 登记自行管理生命周期的长期管理器，泄漏检查不统计其中的NDArray
+     */
+    public static void detach(NDManager manager) {
+        EXCLUDED.add(manager);
+    }
+
+    /**
+     * 作用域内NDArray应归属的管理器
+     */
+    public NDManager getManager() {
+        return manager;
+    }
+
+    /**
+     * 当前归属于作用域的NDArray数量，包括子管理器中的
+     */
+    public long getLiveNum() {
+        return count(manager, false);
+    }
+
+    /**
+     * 当前归属于作用域的NDArray字节数，包括子管理器中的
+     */
+    public long getLiveBytes() {
+        return count(manager, true);
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        Deque<NDScope> openScopes = OPEN_SCOPES.get();
+        openScopes.remove(this);
+        long releasedNum = getLiveNum() + nestedReleasedNum;
+        long releasedBytes = getLiveBytes() + nestedReleasedBytes;
+        ScopeStats stats = STATS.computeIfAbsent(name, k -> new ScopeStats());
+        stats.closeNum.increment();
+        stats.releasedNum.add(releasedNum);
+        stats.releasedBytes.add(releasedBytes);
+        NDScope outer = openScopes.peek();
+        if (outer != null) {
+            outer.nestedReleasedNum += releasedNum;
+            outer.nestedReleasedBytes += releasedBytes;
+        }
+        manager.close();
+        EXCLUDED.remove(manager);
+
+        Map<String, NDArray> arrays = openSite == null ? null : new HashMap<>();
+        int leakedNum = countArrays(parent, arrays) - parentLiveNum;
+        if (leakedNum > 0) {
+            stats.leakedNum.add(leakedNum);
+            if (openSite == null) {
+                System.out.println("NDScope[" + name + "]期间父管理器[" + describe(parent) + "]新增" + leakedNum
+                        + "个NDArray，开启CommonParameter.ND_SCOPE_TRACE可查看详情");
+            } else {
+                System.out.println("NDScope[" + name + "]期间父管理器[" + describe(parent) + "]新增" + leakedNum
+                        + "个NDArray：" + describeLeaked(arrays));
+                openSite.printStackTrace(System.out);
+            }
+        }
+    }
+
+    /**
+     * 返回各名称作用域的累计统计，按名称排序
+     */
+    public static Map<String, ScopeStats> getStats() {
+        return Collections.unmodifiableMap(new TreeMap<>(STATS));
+    }
+
+    /**
+     * 返回管理器中已登记资源的表，表为引擎内部使用的表，只应读取或关闭其中的资源
+     *
+     * @return 资源表，引擎版本不兼容或管理器不是{@link BaseNDManager}时返回null
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, AutoCloseable> resourcesOf(NDManager manager) {
+        if (RESOURCES == null || !(manager instanceof BaseNDManager)) {
+            return null;
+        }
+        try {
+            return (Map<String, AutoCloseable>) RESOURCES.get(manager);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static long count(NDManager manager, boolean bytes) {
+        Map<String, AutoCloseable> resources = resourcesOf(manager);
+        if (resources == null) {
+            return 0;
+        }
+        long total = 0;
+        for (AutoCloseable resource : resources.values()) {
+            if (resource instanceof NDArray) {
+                NDArray array = (NDArray) resource;
+                total += bytes ? array.getShape().size() * array.getDataType().getNumOfBytes() : 1;
+            } else if (resource instanceof BaseNDManager) {
+                total += count((NDManager) resource, bytes);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 统计管理器及其各级子管理器中的NDArray数量，跳过{@link #EXCLUDED}中的管理器
+     *
+     * @param arrays 不为null时收集统计到的NDArray
+     */
+    private static int countArrays(NDManager manager, Map<String, NDArray> arrays) {
+        Map<String, AutoCloseable> resources = resourcesOf(manager);
+        if (resources == null) {
+            return 0;
+        }
+        int total = 0;
+        for (Map.Entry<String, AutoCloseable> entry : resources.entrySet()) {
+            AutoCloseable resource = entry.getValue();
+            if (resource instanceof NDArray) {
+                total++;
+                if (arrays != null) {
+                    arrays.put(entry.getKey(), (NDArray) resource);
+                }
+            } else if (resource instanceof BaseNDManager && !EXCLUDED.contains(resource)) {
+                total += countArrays((NDManager) resource, arrays);
+            }
+        }
+        return total;
+    }
+
+    private String describeLeaked(Map<String, NDArray> arrays) {
+        StringBuilder builder = new StringBuilder();
+        int reported = 0;
+        for (Map.Entry<String, NDArray> entry : arrays.entrySet()) {
+            if (parentKeys.contains(entry.getKey())) {
+                continue;
+            }
+            if (reported == MAX_REPORTED_RESOURCES) {
+                builder.append(" ...");
+                break;
+            }
+            NDArray array = entry.getValue();
+            builder.append(" NDArray").append(array.getShape()).append(array.getDataType())
+                    .append('@').append(describe(array.getManager()));
+            reported++;
+        }
+        return builder.toString();
+    }
+
+    private static String describe(NDManager manager) {
+        return manager.getName() != null ? manager.getName() : manager.toString();
+    }
+
+    /**
+     * 同名作用域的累计统计
+     */
+    public static final class ScopeStats {
+        private final LongAdder closeNum = new LongAdder();
+        private final LongAdder releasedNum = new LongAdder();
+        private final LongAdder releasedBytes = new LongAdder();
+        private final LongAdder leakedNum = new LongAdder();
+
+        /**
+         * 关闭次数
+         */
+        public long getCloseNum() {
+            return closeNum.sum();
+        }
+
+        /**
+         * 关闭时释放的NDArray总数，包括其中嵌套的作用域释放的
+         */
+        public long getReleasedNum() {
+            return releasedNum.sum();
+        }
+
+        /**
+         * 关闭时释放的NDArray总字节数，包括其中嵌套的作用域释放的
+         */
+        public long getReleasedBytes() {
+            return releasedBytes.sum();
+        }
+
+        /**
+         * 关闭后仍留在父管理器中的NDArray总数
+         */
+        public long getLeakedNum() {
+            return leakedNum.sum();
+        }
+
+        @Override
+        public String toString() {
+            return "ScopeStats{closeNum=" + getCloseNum() + ", releasedNum=" + getReleasedNum()
+                    + ", releasedBytes=" + getReleasedBytes() + ", leakedNum=" + getLeakedNum() + '}';
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package utils;
+
+import env.action.core.IAction;
+import env.state.core.IState;
+import org.apache.commons.lang3.Validate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * N步回报累加器
+ * 位于环境交互与样本缓存之间，为每个环境维护一个长度为N的待处理步骤环形队列，
+ * 队列满时输出一个N步样本 (s_t, a_t, Σγ^k·r_{t+k}, s_{t+N})，该样本的自举项需乘以γ^N。
+ * 幕结束时，队列中剩余的步骤全部以终止状态输出，回报只累加到幕结束为止，不再自举。
+ * <p>
+ * 每个观测只向样本缓存写入一次：各步的state沿用上一步nextState的观测行号，N步样本按行号引用s_t与s_{t+N}。
+ * 队列只记录观测行号，不持有state对象；样本缓存的暂存区清空前，队列中尚未输出的步骤才从缓存中读出各自的state，
+ * 行号失效后再重新写入。
+ *
+ * @author Caojunqi
+ * @date 2021-12-23 10:15
+ */
+public class NStepAccumulator<S extends IState<S>, A extends IAction> {
+
+    private final int n;
+    /**
+     * γ的各次幂，discounts[k] = γ^k
+     */
+    private final float[] discounts;
+    private final Memory<S, A> memory;
+    /**
+     * 各环境的待处理步骤队列，按环境索引存放
+     */
+    private final List<Ring> rings = new ArrayList<>();
+
+    public NStepAccumulator(int n, float gamma, Memory<S, A> memory) {
+        Validate.isTrue(n > 0, "N步回报的步数必须大于0！！");
+        this.n = n;
+        this.discounts = new float[n];
+        this.discounts[0] = 1;
+        for (int i = 1; i < n; i++) {
+            this.discounts[i] = discounts[i - 1] * gamma;
+        }
+        this.memory = memory;
+        memory.setInvalidationListener(this::retainStates);
+    }
+
+    /**
+     * N步样本目标Q值中自举项的折扣
+     *
+     * @param gamma 折扣因子
+     * @param n     N步回报的步数
+     * @return γ^N
+     */
+    public static double bootstrapDiscount(double gamma, int n) {
+        return Math.pow(gamma, n);
+    }
+
+    /**
+     * 添加一步交互数据，满足条件时向样本缓存输出N步样本
+     *
+     * @param envIndex 环境索引
+     */
+    public void add(int envIndex, S state, A action, boolean done, S nextState, float reward) {
+        Ring ring = ring(envIndex);
+        ring.refresh();
+        int stateRow = ring.lastRow >= 0 ? ring.lastRow : memory.addObservation(state);
+        int nextStateRow = memory.addObservation(nextState);
+        ring.push(stateRow, action, reward);
+        if (done) {
+            while (ring.count > 0) {
+                ring.emit(nextStateRow, true);
+            }
+            ring.lastRow = -1;
+        } else {
+            ring.lastRow = nextStateRow;
+            if (ring.count == n) {
+                ring.emit(nextStateRow, false);
+            }
+        }
+    }
+
+    /**
+     * 丢弃所有环境中尚未输出的步骤
+     */
+    public void reset() {
+        for (Ring ring : rings) {
+            if (ring != null) {
+                ring.clear();
+            }
+        }
+    }
+
+    /**
+     * 观测行号失效前，读出各队列中尚未输出的步骤的state
+     */
+    private void retainStates() {
+        for (Ring ring : rings) {
+            if (ring != null) {
+                ring.retain();
+            }
+        }
+    }
+
+    private Ring ring(int envIndex) {
+        while (envIndex >= rings.size()) {
+            rings.add(null);
+        }
+        Ring ring = rings.get(envIndex);
+        if (ring == null) {
+            ring = new Ring();
+            rings.set(envIndex, ring);
+        }
+        return ring;
+    }
+
+    /**
+     * 单个环境的待处理步骤队列
+     */
+    private final class Ring {
+        /**
+         * 各步的state，仅在观测行号失效前读出，用于之后重新写入
+         */
+        private final Object[] states = new Object[n];
+        private final int[] stateRows = new int[n];
+        private final Object[] actions = new Object[n];
+        private final float[] rewards = new float[n];
+        private int head;
+        private int count;
+        /**
+         * 上一步nextState的观测行号，-1表示下一步属于新的一幕
+         */
+        private int lastRow = -1;
+        /**
+         * 各观测行号所属的版本
+         */
+        private int generation = memory.getGeneration();
+
+        void push(int stateRow, A action, float reward) {
+            int tail = (head + count) % n;
+            stateRows[tail] = stateRow;
+            actions[tail] = action;
+            rewards[tail] = reward;
+            count++;
+        }
+
+        /**
+         * 观测行号即将失效，从样本缓存中读出队列中各步的state
+         */
+        void retain() {
+            if (generation != memory.getGeneration()) {
+                return;
+            }
+            for (int k = 0; k < count; k++) {
+                int index = (head + k) % n;
+                if (states[index] == null) {
+                    states[index] = memory.getObservation(stateRows[index]);
+                }
+            }
+        }
+
+        /**
+         * 样本缓存的暂存区清空后，重新写入队列中各步的state
+         */
+        @SuppressWarnings("unchecked")
+        void refresh() {
+            int current = memory.getGeneration();
+            if (generation == current) {
+                return;
+            }
+            for (int k = 0; k < count; k++) {
+                int index = (head + k) % n;
+                Validate.isTrue(states[index] != null, "观测行号失效前未读出待处理步骤的state！！");
+                stateRows[index] = memory.addObservation((S) states[index]);
+                states[index] = null;
+            }
+            lastRow = -1;
+            generation = current;
+        }
+
+        /**
+         * 输出最早的一步，回报累加到队列中最新的一步为止
+         */
+        @SuppressWarnings("unchecked")
+        void emit(int nextStateRow, boolean done) {
+            float nStepReward = 0;
+            for (int k = 0; k < count; k++) {
+                nStepReward += discounts[k] * rewards[(head + k) % n];
+            }
+            memory.addTransition(stateRows[head], (A) actions[head], done, nextStateRow, nStepReward);
+            states[head] = null;
+            actions[head] = null;
+            head = (head + 1) % n;
+            count--;
+        }
+
+        void clear() {
+            Arrays.fill(states, null);
+            Arrays.fill(actions, null);
+            head = 0;
+            count = 0;
+            lastRow = -1;
+        }
+    }
+}
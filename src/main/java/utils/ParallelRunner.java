@@ -0,0 +1,272 @@
+package utils;
+
+import ai.djl.ndarray.NDManager;
+import algorithm.BaseAlgorithm;
+import algorithm.CommonParameter;
+import algorithm.ppo.model.BasePolicyModel;
+import env.action.core.IAction;
+import env.common.Environment;
+import env.state.core.IState;
+import org.apache.commons.lang3.Validate;
+import utils.datatype.Snapshot;
+import utils.datatype.Transition;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 多线程并行采样的RL算法执行器
+ * <p>
+ * 启动{@link CommonParameter#THREAD_NUM}个采样线程，每个线程持有独立的环境和一份策略模型副本，
+ * 以整幕为单位把样本放入共享队列；学习器线程从队列中取出样本、更新模型，再发布新的模型参数。
+ * 采样线程在每幕开始时检查并加载最新发布的参数，因此一幕内使用的策略版本不变。
+ * 样本所用策略落后学习器超过{@link CommonParameter#MAX_POLICY_LAG}个版本时会被丢弃。
+ * <p>
+ * 第i个采样线程的环境及策略模型副本的随机种子均为 SEED + i + 1，学习器测试模型所用环境的种子为SEED。
+ *
+ * @author Caojunqi
+ * @date 2021-12-23 15:30
+ */
+public class ParallelRunner<S extends IState<S>, A extends IAction> {
+    private final BaseAlgorithm<S, A> algorithm;
+    /**
+     * 学习器测试模型所用的环境
+     */
+    private final Environment<S, A> testEnv;
+    private final Supplier<? extends Environment<S, A>> envFactory;
+    private final Function<NDManager, ? extends BasePolicyModel<A>> replicaFactory;
+    /**
+     * 采样线程产生的整幕样本
+     */
+    private final BlockingQueue<Episode<S, A>> episodes = new ArrayBlockingQueue<>(CommonParameter.ROLLOUT_QUEUE_CAPACITY);
+    /**
+     * 最新发布的策略参数
+     */
+    private final AtomicReference<PolicyWeights> publishedWeights = new AtomicReference<>();
+    private final List<Thread> workers = new ArrayList<>();
+    /**
+     * 学习器当前的策略版本，每次更新模型后加1
+     */
+    private int version;
+
+    /**
+     * @param envFactory     环境工厂，为每个采样线程及学习器各创建一个环境
+     * @param replicaFactory 策略模型副本工厂，结构需与算法的策略模型一致，参数会被学习器发布的参数覆盖
+     * @param algorithm      学习器所用算法
+     */
+    public ParallelRunner(Supplier<? extends Environment<S, A>> envFactory,
+                          Function<NDManager, ? extends BasePolicyModel<A>> replicaFactory,
+                          BaseAlgorithm<S, A> algorithm) {
+        Validate.isTrue(CommonParameter.THREAD_NUM > 0, "采样线程数必须大于0！！");
+        this.envFactory = envFactory;
+        this.replicaFactory = replicaFactory;
+        this.algorithm = algorithm;
+        this.testEnv = envFactory.get();
+        this.testEnv.seed(CommonParameter.SEED);
+    }
+
+    public void mainLoop() {
+        start();
+        try {
+            for (int i = 0; i < CommonParameter.MAX_ITER_NUM; i++) {
+                collectSamples();
+                algorithm.updateModel();
+                version++;
+                publishWeights();
+                testModel();
+                System.out.println("完成===" + i);
+            }
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * 发布初始参数并启动所有采样线程
+     */
+    private void start() {
+        publishWeights();
+        for (int i = 0; i < CommonParameter.THREAD_NUM; i++) {
+            int workerIndex = i;
+            Thread worker = new Thread(() -> rollout(workerIndex), "rollout-worker-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * 停止所有采样线程，丢弃尚未消费的样本
+     */
+    private void stop() {
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.clear();
+        episodes.clear();
+    }
+
+    private void publishWeights() {
+        // 只拷贝参数，不改变学习器模型参数的存储方式
+        float[] data = algorithm.getPolicyModel().copyParameters();
+        publishedWeights.set(new PolicyWeights(version, data));
+    }
+
+    /**
+     * 从共享队列中取出样本，直到满足本次更新所需的样本数
+     */
+    private void collectSamples() {
+        algorithm.resetMemory();
+        int sampleNum = 0;
+        int episodesNum = 0;
+        int droppedNum = 0;
+        float totalReward = 0;
+        float minEpisodeReward = Float.POSITIVE_INFINITY;
+        float maxEpisodeReward = Float.NEGATIVE_INFINITY;
+        while (sampleNum < CommonParameter.MIN_BATCH_SIZE) {
+            Episode<S, A> episode = takeEpisode();
+            if (version - episode.version > CommonParameter.MAX_POLICY_LAG) {
+                droppedNum++;
+                continue;
+            }
+            for (Transition<S, A> transition : episode.transitions) {
+                algorithm.collect(episode.workerIndex, transition.getState(), transition.getAction(), transition.isMasked(),
+                        transition.getNextState(), transition.getReward());
+            }
+            totalReward += episode.reward;
+            minEpisodeReward = Math.min(minEpisodeReward, episode.reward);
+            maxEpisodeReward = Math.max(maxEpisodeReward, episode.reward);
+
+            sampleNum += episode.transitions.size();
+            episodesNum += 1;
+
+            System.out.println("episode[" + episodesNum + "], worker[" + episode.workerIndex + "], reward[" + episode.reward + "]");
+        }
+
+        System.out.println("AverageEpisodeReward [" + (totalReward / episodesNum) + "] MaxEpisodeReward [" + maxEpisodeReward
+                + "] MinEpisodeReward [" + minEpisodeReward + "] DroppedEpisodes [" + droppedNum + "]");
+    }
+
+    private Episode<S, A> takeEpisode() {
+        try {
+            while (true) {
+                Episode<S, A> episode = episodes.poll(1, TimeUnit.SECONDS);
+                if (episode != null) {
+                    return episode;
+                }
+                for (Thread worker : workers) {
+                    Validate.isTrue(worker.isAlive(), "采样线程[" + worker.getName() + "]已异常退出！！");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 采用贪婪策略，收集一幕样本数据，检测模型可靠性
+     */
+    private void testModel() {
+        S state = testEnv.reset();
+        boolean done = false;
+        float episodeReward = 0;
+
+        while (!done) {
+            testEnv.render();
+            A action = algorithm.greedyAction(state);
+            Snapshot<S> snapshot = testEnv.step(action);
+            episodeReward += snapshot.getReward();
+            done = snapshot.isDone();
+            state = snapshot.getNextState();
+        }
+
+        System.out.println("TestModel=====EpisodeReward [" + episodeReward + "]");
+    }
+
+    /**
+     * 采样线程主循环，使用本线程的策略模型副本与环境交互，直到被中断
+     */
+    private void rollout(int workerIndex) {
+        Environment<S, A> env = envFactory.get();
+        env.seed(CommonParameter.SEED + workerIndex + 1);
+        try (NDManager workerManager = NDManager.newBaseManager()) {
+            BasePolicyModel<A> replica = replicaFactory.apply(workerManager);
+            replica.seed(CommonParameter.SEED + workerIndex + 1);
+            int replicaVersion = -1;
+            while (!Thread.currentThread().isInterrupted()) {
+                PolicyWeights weights = publishedWeights.get();
+                if (weights.version != replicaVersion) {
+                    replica.flattenParameters().load(weights.data);
+                    replica.syncHostForward();
+                    replicaVersion = weights.version;
+                }
+
+                List<Transition<S, A>> transitions = new ArrayList<>();
+                S state = env.reset().clone();
+                boolean done = false;
+                float episodeReward = 0;
+                while (!done) {
+                    A action;
+                    try (NDManager subManager = workerManager.newSubManager()) {
+                        action = replica.policy(state.singleStateList(subManager), false, false, true).singletonOrThrow();
+                    }
+                    Snapshot<S> snapshot = env.step(action);
+                    S nextState = snapshot.getNextState().clone();
+                    done = snapshot.isDone();
+                    transitions.add(new Transition<>(state, action, done, nextState, snapshot.getReward()));
+                    episodeReward += snapshot.getReward();
+                    state = nextState;
+                }
+                episodes.put(new Episode<>(workerIndex, replicaVersion, transitions, episodeReward));
+            }
+        } catch (InterruptedException e) {
+            // 执行器停止
+        } finally {
+            env.close();
+        }
+    }
+
+    /**
+     * 学习器发布的一个版本的策略参数
+     */
+    private static class PolicyWeights {
+        private final int version;
+        private final float[] data;
+
+        private PolicyWeights(int version, float[] data) {
+            this.version = version;
+            this.data = data;
+        }
+    }
+
+    /**
+     * 采样线程使用同一个策略版本采集的一整幕样本
+     */
+    private static class Episode<S extends IState<S>, A extends IAction> {
+        private final int workerIndex;
+        private final int version;
+        private final List<Transition<S, A>> transitions;
+        private final float reward;
+
+        private Episode(int workerIndex, int version, List<Transition<S, A>> transitions, float reward) {
+            this.workerIndex = workerIndex;
+            this.version = version;
+            this.transitions = transitions;
+            this.reward = reward;
+        }
+    }
+}
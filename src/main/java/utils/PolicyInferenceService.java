@@ -0,0 +1,226 @@
+package utils;
+
+import ai.djl.ndarray.NDManager;
+import algorithm.CommonParameter;
+import algorithm.ppo.model.BasePolicyModel;
+import env.action.core.IAction;
+import env.state.core.IState;
+import org.apache.commons.lang3.Validate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 动态批量的策略推理服务
+ * <p>
+ * 多个线程通过{@link #submit}提交单个状态，服务线程收到一个请求后，继续收集后续请求，
+ * 直到批次达到最大请求数或等待超过最长时间，然后对整个批次只调用一次{@link BasePolicyModel#policy}，
+ * 再逐个完成各请求的Future。以少量延迟换取推理吞吐量，适合大量环境同时交互的场景。
+ * <p>
+ * 服务会统计批次大小分布和每次组批后剩余的队列长度分布，用于调整最大批次和最长等待时间。
+ * 推理只在服务线程上进行，策略模型更新期间不应有请求在处理中。
+ *
+ * @author Caojunqi
+ * @date 2021-12-24 15:20
+ */
+public class PolicyInferenceService<S extends IState<S>, A extends IAction> implements ActionService<S, A>, AutoCloseable {
+
+    private final BasePolicyModel<A> policyModel;
+    private final NDManager manager;
+    private final boolean deterministic;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final BlockingQueue<Request<S, A>> requests = new LinkedBlockingQueue<>();
+    private final Thread worker;
+    private volatile boolean running = true;
+    /**
+     * 批次大小分布，下标即批次大小
+     */
+    private final AtomicLongArray batchSizeHistogram;
+    /**
+     * 组批后剩余队列长度分布，下标0对应长度0，下标i对应长度[2^(i-1), 2^i)
+     */
+    private final AtomicLongArray queueDepthHistogram = new AtomicLongArray(32);
+
+    public PolicyInferenceService(NDManager manager, BasePolicyModel<A> policyModel, boolean deterministic) {
+        this(manager, policyModel, deterministic, CommonParameter.INFERENCE_MAX_BATCH_SIZE, CommonParameter.INFERENCE_MAX_WAIT_MICROS);
+    }
+
+    /**
+     * @param manager       推理所用NDArray的父管理器
+     * @param policyModel   策略模型
+     * @param deterministic 是否选择确定性策略
+     * @param maxBatchSize  单个批次的最大请求数
+     * @param maxWaitMicros 收到批次第一个请求后等待更多请求的最长时间，单位微秒
+     */
+    public PolicyInferenceService(NDManager manager, BasePolicyModel<A> policyModel, boolean deterministic,
+                                  int maxBatchSize, long maxWaitMicros) {
+        Validate.isTrue(maxBatchSize > 0, "最大批次必须大于0！！");
+        Validate.isTrue(maxWaitMicros >= 0, "最长等待时间不能小于0！！");
+        this.manager = manager;
+        this.policyModel = policyModel;
+        this.deterministic = deterministic;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+        this.batchSizeHistogram = new AtomicLongArray(maxBatchSize + 1);
+        this.worker = new Thread(this::serve, "policy-inference");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * 提交一个状态，返回其动作的Future
+     * 检查服务状态与入队在同一把锁内完成，关闭之后不会再有请求入队，关闭时清空的队列中不会遗漏请求
+     */
+    public synchronized CompletableFuture<A> submit(S state) {
+        Validate.isTrue(running, "策略推理服务已关闭！！");
+        Request<S, A> request = new Request<>(state);
+        requests.add(request);
+        return request.future;
+    }
+
+    @Override
+    public void register() {
+        // 动态组批不依赖调用方数量
+    }
+
+    @Override
+    public void deregister() {
+        // 动态组批不依赖调用方数量
+    }
+
+    @Override
+    public A act(S state) throws InterruptedException {
+        try {
+            return submit(state).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * 当前排队中的请求数
+     */
+    public int getQueueDepth() {
+        return requests.size();
+    }
+
+    /**
+     * 返回批次大小分布的拷贝，下标即批次大小
+     */
+    public long[] getBatchSizeHistogram() {
+        return toArray(batchSizeHistogram);
+    }
+
+    /**
+     * 返回组批后剩余队列长度分布的拷贝，下标0对应长度0，下标i对应长度[2^(i-1), 2^i)
+     */
+    public long[] getQueueDepthHistogram() {
+        return toArray(queueDepthHistogram);
+    }
+
+    /**
+     * 停止服务线程，尚未处理的请求会被取消
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            running = false;
+        }
+        worker.interrupt();
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Request<S, A> request;
+        while ((request = requests.poll()) != null) {
+            request.future.completeExceptionally(new CancellationException("策略推理服务已关闭"));
+        }
+    }
+
+    private void serve() {
+        List<Request<S, A>> batch = new ArrayList<>(maxBatchSize);
+        try {
+            while (running) {
+                Request<S, A> first = requests.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxWaitNanos;
+                while (batch.size() < maxBatchSize) {
+                    Request<S, A> next = requests.poll();
+                    if (next == null) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        next = requests.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                    }
+                    batch.add(next);
+                }
+                batchSizeHistogram.incrementAndGet(batch.size());
+                queueDepthHistogram.incrementAndGet(depthBucket(requests.size()));
+                runBatch(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // 服务关闭
+        }
+        for (Request<S, A> request : batch) {
+            request.future.completeExceptionally(new CancellationException("策略推理服务已关闭"));
+        }
+    }
+
+    private void runBatch(List<Request<S, A>> batch) {
+        List<S> states = new ArrayList<>(batch.size());
+        for (Request<S, A> request : batch) {
+            states.add(request.state);
+        }
+        try (NDManager subManager = manager.newSubManager()) {
+            List<A> actions = policyModel.policy(Helper.batchStates(subManager, states), deterministic, false, true).getActions();
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).future.complete(actions.get(i));
+            }
+        } catch (RuntimeException e) {
+            for (Request<S, A> request : batch) {
+                request.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static int depthBucket(int depth) {
+        return 32 - Integer.numberOfLeadingZeros(depth);
+    }
+
+    private static long[] toArray(AtomicLongArray histogram) {
+        long[] result = new long[histogram.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = histogram.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * 一次动作请求
+     */
+    private static class Request<S extends IState<S>, A extends IAction> {
+        private final S state;
+        private final CompletableFuture<A> future = new CompletableFuture<>();
+
+        private Request(S state) {
+            this.state = state;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package utils;
+
+import ai.djl.ndarray.NDManager;
+import algorithm.CommonParameter;
+import env.action.core.IAction;
+import env.state.core.IState;
+import org.apache.commons.lang3.Validate;
+import utils.datatype.PrioritizedSample;
+
+import java.util.Random;
+
+/**
+ * 优先经验回放缓存  Prioritized Experience Replay
+ * 每个样本的采样概率正比于 (|δ| + ε)^α，δ为该样本最近一次计算出的TD误差。
+ * 新样本以当前最大优先级加入，保证至少被采样一次。
+ * 采样偏差通过重要性采样权重 (N * P(i))^-β 进行修正，β随采样次数逐渐增大到1。
+ * 求和树的叶子节点与常驻张量中的样本位置一一对应。
+ *
+ * @author Caojunqi
+ * @date 2021-12-20 15:35
+ */
+public class PrioritizedMemory<S extends IState, A extends IAction> extends ReplayMemory<S, A> {
+    /**
+     * 计算重要性采样权重时的最小优先级，即TD误差为0时的优先级
+     */
+    private static final double MIN_PRIORITY = Math.pow(CommonParameter.PRIORITY_EPS, CommonParameter.PRIORITY_ALPHA);
+
+    private final SumTree sumTree;
+    private final Random random;
+    /**
+     * 当前最大优先级（已做α次幂）
+     */
+    private double maxPriority;
+    /**
+     * 当前重要性采样系数β
+     */
+    private float beta;
+
+    public PrioritizedMemory(NDManager manager, int capacity) {
+        super(manager, capacity);
+        this.sumTree = new SumTree(Math.min(capacity, CommonParameter.MIN_BATCH_SIZE));
+        this.random = new Random(CommonParameter.SEED);
+        this.maxPriority = 1.0;
+        this.beta = CommonParameter.PRIORITY_BETA;
+    }
+
+    @Override
+    protected synchronized void appended(int start, int count) {
+        for (int i = 0; i < count; i++) {
+            sumTree.set((start + i) % getCapacity(), maxPriority);
+        }
+    }
+
+    /**
+     * 提前淘汰的样本优先级置0，不再被采样
+     */
+    @Override
+    protected synchronized void evicted(int start, int count) {
+        for (int i = 0; i < count; i++) {
+            sumTree.set((start + i) % getCapacity(), 0);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        super.clear();
+        sumTree.clear();
+        maxPriority = 1.0;
+    }
+
+    /**
+     * 按优先级分层采样一批样本索引
+     * 将优先级总和均分为batchSize段，每段内均匀取一个值，再通过求和树定位样本
+     *
+     * @param batchSize 采样数量
+     * @return 样本索引及重要性采样权重
+     */
+    public synchronized PrioritizedSample samplePrioritized(int batchSize) {
+        int size = getStoredSize();
+        Validate.isTrue(size > 0, "采样异常，当前经验回放缓存样本数量为0！！");
+        double total = sumTree.total();
+        double segment = total / batchSize;
+        int[] index = new int[batchSize];
+        float[] weights = new float[batchSize];
+        float maxWeight = 0;
+        for (int i = 0; i < batchSize; i++) {
+            index[i] = sumTree.find(segment * (i + random.nextDouble()));
+            // 浮点误差可能使采样落在优先级为0的叶子上，此时按最小优先级计算，避免权重变为Inf或NaN
+            double prob = Math.max(sumTree.get(index[i]), MIN_PRIORITY) / total;
+            weights[i] = (float) Math.pow(size * prob, -beta);
+            maxWeight = Math.max(maxWeight, weights[i]);
+        }
+        for (int i = 0; i < batchSize; i++) {
+            weights[i] /= maxWeight;
+        }
+        beta = Math.min(1.0f, beta + CommonParameter.PRIORITY_BETA_INCREMENT);
+        return new PrioritizedSample(index, weights);
+    }
+
+    /**
+     * 根据新的TD误差更新样本优先级
+     *
+     * @param index    样本索引
+     * @param tdErrors 对应样本的TD误差
+     */
+    public synchronized void updatePriorities(int[] index, float[] tdErrors) {
+        Validate.isTrue(index.length == tdErrors.length, "样本索引与TD误差数量不一致！！");
+        for (int i = 0; i < index.length; i++) {
+            double priority = Math.pow(Math.abs(tdErrors[i]) + CommonParameter.PRIORITY_EPS, CommonParameter.PRIORITY_ALPHA);
+            sumTree.set(index[i], priority);
+            maxPriority = Math.max(maxPriority, priority);
+        }
+    }
+}
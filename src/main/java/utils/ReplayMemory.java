@@ -0,0 +1,432 @@
+package utils;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.ndarray.types.Shape;
+import algorithm.CommonParameter;
+import env.action.core.IAction;
+import env.state.core.IState;
+import org.apache.commons.lang3.Validate;
+
+import java.util.Random;
+
+/**
+ * 持久化的经验回放缓存
+ * 样本数据以环形缓冲区的形式常驻在引擎端张量中，最多保留capacity个样本，超出后覆盖最旧的样本。
+ * 新收集的样本先写入父类的列式暂存区，调用{@link #sync()}时只把这部分新样本追加进常驻张量；
+ * 小批量采样直接在常驻张量上按索引抽取，不会重新构建整个缓存。
+ * <p>
+ * 观测单独存放在一个常驻的观测环形缓冲区中，每个观测只存一份，样本只保存state、nextState的观测行号，
+ * 采样时先抽取样本，再按行号从观测缓冲区中抽取states、nextStates。
+ * 观测缓冲区的容量为capacity * {@link CommonParameter#REPLAY_OBSERVATION_RATIO}，
+ * 新观测将要覆盖仍被引用的旧观测时，引用它们的最旧样本会被提前淘汰。
+ * 为此每次追加的样本按state的观测行号排序，使常驻样本从旧到新引用的观测也从旧到新，淘汰时只需二分查找。
+ * <p>
+ * {@link #reset()}只清空尚未追加的暂存样本，已追加的样本需调用{@link #clear()}清空。
+ *
+ * @author Caojunqi
+ * @date 2021-12-21 10:05
+ */
+public class ReplayMemory<S extends IState, A extends IAction> extends Memory<S, A> implements AutoCloseable {
+
+    /**
+     * 常驻张量所属的NDManager
+     */
+    private final NDManager replayManager;
+    /**
+     * 最大样本容量
+     */
+    private final int capacity;
+    /**
+     * 最大观测容量
+     */
+    private final int observationCapacity;
+    private final Random random;
+    /**
+     * 常驻的样本列，依次为 [stateRow, action, mask, nextStateRow, reward]，行号指向{@link #observations}
+     */
+    private NDArray[] residents;
+    /**
+     * 常驻的观测
+     */
+    private NDArray observations;
+    /**
+     * 下一个样本的写入位置
+     */
+    private int nextIndex;
+    /**
+     * 常驻张量中有效的样本数量，有效样本为nextIndex之前的storedSize个样本
+     */
+    private int storedSize;
+    /**
+     * 累计追加过的样本数量，用于判断快照之后新增了哪些样本
+     */
+    private long appendedTotal;
+    /**
+     * 下一个观测的写入位置
+     */
+    private int observationNextIndex;
+    /**
+     * 观测缓冲区中已写入的观测数量
+     */
+    private int observationStoredSize;
+    /**
+     * 累计追加过的观测数量
+     */
+    private long observationAppendedTotal;
+
+    public ReplayMemory(NDManager manager, int capacity) {
+        Validate.isTrue(capacity > 0, "经验回放缓存容量必须大于0！！");
+        this.replayManager = manager.newSubManager();
+        // 缓存随训练过程增长，由自身管理生命周期，不计入作用域的泄漏检查
+        NDScope.detach(replayManager);
+        this.capacity = capacity;
+        this.observationCapacity = observationCapacity(capacity);
+        this.random = new Random(CommonParameter.SEED);
+    }
+
+    /**
+     * 根据样本容量计算观测容量
+     */
+    static int observationCapacity(int capacity) {
+        return (int) Math.max(2, Math.min(Integer.MAX_VALUE, (long) Math.ceil(capacity * (double) CommonParameter.REPLAY_OBSERVATION_RATIO)));
+    }
+
+    /**
+     * 将暂存区中的新样本追加进常驻张量，并清空暂存区
+     *
+     * @return 本次追加的样本数量
+     */
+    public int sync() {
+        int newSize = getSize();
+        if (newSize == 0) {
+            return 0;
+        }
+        int observationSize = getObservationSize();
+        int[] order = sortByStateRow(newSize, observationSize);
+        // 排序后第i个及之后的样本引用的最大观测行号
+        int[] lastRows = new int[newSize + 1];
+        lastRows[newSize] = -1;
+        for (int i = newSize - 1; i >= 0; i--) {
+            lastRows[i] = Math.max(lastRows[i + 1], getNextStateRow(order[i]));
+        }
+        // 新样本超出容量时，只保留最新的部分；引用的观测超出观测容量时，继续丢弃最旧的样本
+        int first = Math.max(0, newSize - capacity);
+        while (first < newSize && lastRows[first] + 1 - getStateRow(order[first]) > observationCapacity) {
+            first++;
+        }
+        if (first == newSize) {
+            reset();
+            return newSize;
+        }
+        int observationFirst = getStateRow(order[first]);
+        int count = newSize - first;
+        int observationCount = lastRows[first] + 1 - observationFirst;
+        int[] stateRows = new int[count];
+        int[] nextStateRows = new int[count];
+        int[] kept = new int[count];
+        boolean ordered = true;
+        for (int i = 0; i < count; i++) {
+            kept[i] = order[first + i];
+            ordered &= kept[i] == first + i;
+            stateRows[i] = residentRow(getStateRow(kept[i]), observationFirst);
+            nextStateRows[i] = residentRow(getNextStateRow(kept[i]), observationFirst);
+        }
+        try (NDManager stagingManager = replayManager.newSubManager()) {
+            NDArray stagingObservations = createObservations(stagingManager);
+            NDArray[] staging = {
+                    stagingManager.create(stateRows),
+                    createActions(stagingManager),
+                    createMasks(stagingManager),
+                    stagingManager.create(nextStateRows),
+                    createRewards(stagingManager)
+            };
+            if (ordered) {
+                NDIndex range = new NDIndex(first + ":" + newSize);
+                for (int i : new int[]{1, 2, 4}) {
+                    staging[i] = staging[i].get(range);
+                }
+            } else {
+                NDArray index = stagingManager.create(kept);
+                for (int i : new int[]{1, 2, 4}) {
+                    staging[i] = MinibatchGather.gatherRows(staging[i], index);
+                }
+            }
+            if (residents == null) {
+                allocate(stagingObservations, staging);
+            }
+            evictObservations(observationCount);
+            storedSize = Math.min(storedSize, capacity - count);
+
+            int head = Math.min(observationCount, observationCapacity - observationNextIndex);
+            writeRows(observations, stagingObservations, observationFirst, observationNextIndex, head);
+            if (observationCount > head) {
+                writeRows(observations, stagingObservations, observationFirst + head, 0, observationCount - head);
+            }
+            head = Math.min(count, capacity - nextIndex);
+            for (int i = 0; i < residents.length; i++) {
+                writeRows(residents[i], staging[i], 0, nextIndex, head);
+                if (count > head) {
+                    writeRows(residents[i], staging[i], head, 0, count - head);
+                }
+            }
+            appended(nextIndex, count);
+            nextIndex = (nextIndex + count) % capacity;
+            storedSize += count;
+            appendedTotal += count;
+            observationNextIndex = (observationNextIndex + observationCount) % observationCapacity;
+            observationStoredSize = Math.min(observationCapacity, observationStoredSize + observationCount);
+            observationAppendedTotal += observationCount;
+        }
+        reset();
+        return newSize;
+    }
+
+    /**
+     * 均匀地有放回采样一批样本索引
+     *
+     * @param batchSize 采样数量
+     * @return 样本在常驻张量中的索引
+     */
+    public int[] sampleIndex(int batchSize) {
+        int size = getStoredSize();
+        Validate.isTrue(size > 0, "采样异常，当前经验回放缓存样本数量为0！！");
+        long oldest = (long) getNextIndex() - size + getCapacity();
+        int[] index = new int[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            index[i] = (int) ((oldest + random.nextInt(size)) % getCapacity());
+        }
+        return index;
+    }
+
+    /**
+     * 按索引从常驻张量中抽取一批样本，states、nextStates再按抽出的观测行号从观测缓冲区中抽取
+     *
+     * @param manager 采样结果所属的NDManager
+     * @param index   样本索引
+     * @return 采样结果
+     */
+    public MemoryBatch sample(NDManager manager, int[] index) {
+        Validate.isTrue(residents != null, "采样异常，当前经验回放缓存样本数量为0！！");
+        MinibatchGather gather = new MinibatchGather(manager, index);
+        NDArray stateRows = gather.gather(residents[0]);
+        NDArray nextStateRows = gather.gather(residents[3]);
+        return new MemoryBatch(Helper.scoped(MinibatchGather.gatherRows(observations, stateRows), manager),
+                gather.gather(residents[1]),
+                gather.gather(residents[2]),
+                Helper.scoped(MinibatchGather.gatherRows(observations, nextStateRows), manager),
+                gather.gather(residents[4]));
+    }
+
+    /**
+     * 返回所有已追加的样本，按从旧到新的顺序
+     */
+    @Override
+    public MemoryBatch sample(NDManager manager) {
+        Validate.isTrue(storedSize > 0, "采样异常，当前经验回放缓存样本数量为0！！");
+        int[] index = new int[storedSize];
+        for (int i = 0; i < storedSize; i++) {
+            index[i] = (nextIndex - storedSize + i + capacity) % capacity;
+        }
+        return sample(manager, index);
+    }
+
+    /**
+     * 清空所有样本，常驻张量保留以便复用
+     */
+    public void clear() {
+        reset();
+        nextIndex = 0;
+        storedSize = 0;
+        appendedTotal = 0;
+        observationNextIndex = 0;
+        observationStoredSize = 0;
+        observationAppendedTotal = 0;
+    }
+
+    public int getStoredSize() {
+        return storedSize;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public void close() {
+        replayManager.close();
+        releaseCollectors();
+    }
+
+    int getNextIndex() {
+        return nextIndex;
+    }
+
+    long getAppendedTotal() {
+        return appendedTotal;
+    }
+
+    /**
+     * @return 常驻的样本列，尚未追加过样本时为null
+     */
+    NDArray[] getResidents() {
+        return residents;
+    }
+
+    /**
+     * @return 常驻的观测，尚未追加过样本时为null
+     */
+    NDArray getObservations() {
+        return observations;
+    }
+
+    int getObservationCapacity() {
+        return observationCapacity;
+    }
+
+    int getObservationNextIndex() {
+        return observationNextIndex;
+    }
+
+    long getObservationAppendedTotal() {
+        return observationAppendedTotal;
+    }
+
+    /**
+     * 使用快照中的数据替换当前缓存的全部样本
+     * 观测与样本列都从第0行开始写入，行号与快照时的位置一致
+     *
+     * @param observations         观测数据
+     * @param observationNextIndex 下一个观测的写入位置
+     * @param columns              各样本列数据，第0维长度相同
+     * @param storedSize           有效样本数量
+     * @param nextIndex            下一个样本的写入位置
+     */
+    void load(NDArray observations, int observationNextIndex, NDList columns, int storedSize, int nextIndex) {
+        int observationRows = (int) observations.getShape().get(0);
+        int rows = (int) columns.get(0).getShape().get(0);
+        Validate.isTrue(rows <= capacity && storedSize <= rows && nextIndex < capacity
+                        && observationRows <= observationCapacity && observationNextIndex < observationCapacity,
+                "快照样本数量超出经验回放缓存容量！！");
+        reset();
+        if (residents == null) {
+            allocate(observations, columns.toArray(new NDArray[0]));
+        }
+        if (observationRows > 0) {
+            this.observations.set(new NDIndex("0:" + observationRows), observations);
+        }
+        if (rows > 0) {
+            NDIndex range = new NDIndex("0:" + rows);
+            for (int i = 0; i < residents.length; i++) {
+                residents[i].set(range, columns.get(i));
+            }
+        }
+        this.storedSize = storedSize;
+        this.nextIndex = nextIndex;
+        this.appendedTotal = rows;
+        this.observationNextIndex = observationNextIndex;
+        this.observationStoredSize = observationRows;
+        this.observationAppendedTotal = observationRows;
+        appended((nextIndex - storedSize + capacity) % capacity, storedSize);
+    }
+
+    /**
+     * 样本追加完成后的回调
+     *
+     * @param start 首个样本的写入位置
+     * @param count 样本数量，写入位置超出容量后从0继续
+     */
+    protected void appended(int start, int count) {
+    }
+
+    /**
+     * 最旧的样本因观测被覆盖而提前淘汰后的回调
+     *
+     * @param start 首个被淘汰样本的位置
+     * @param count 样本数量，位置超出容量后从0继续
+     */
+    protected void evicted(int start, int count) {
+    }
+
+    /**
+     * 按state的观测行号对暂存样本做稳定的计数排序
+     *
+     * @return 排序后的暂存样本下标
+     */
+    private int[] sortByStateRow(int size, int observationSize) {
+        int[] offsets = new int[observationSize + 1];
+        for (int i = 0; i < size; i++) {
+            offsets[getStateRow(i) + 1]++;
+        }
+        for (int i = 0; i < observationSize; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[offsets[getStateRow(i)]++] = i;
+        }
+        return order;
+    }
+
+    /**
+     * 暂存区中的观测行号在观测缓冲区中对应的行号
+     */
+    private int residentRow(int stagingRow, int observationFirst) {
+        return (int) (((long) observationNextIndex + stagingRow - observationFirst) % observationCapacity);
+    }
+
+    /**
+     * 即将写入observationCount个观测时，淘汰引用了将被覆盖观测的最旧样本
+     * 常驻样本引用的观测从旧到新排列，二分查找第一个不受影响的样本
+     */
+    private void evictObservations(int observationCount) {
+        if (storedSize == 0 || observationStoredSize + observationCount <= observationCapacity) {
+            return;
+        }
+        int oldest = (nextIndex - storedSize + capacity) % capacity;
+        int low = 0;
+        int high = storedSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (observationAge(residentStateRow((oldest + mid) % capacity)) >= observationCapacity - observationCount) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if (low > 0) {
+            evicted(oldest, low);
+            storedSize -= low;
+        }
+    }
+
+    /**
+     * 观测的新旧程度，最新写入的观测为0
+     */
+    private int observationAge(int row) {
+        return (observationNextIndex - 1 - row + observationCapacity) % observationCapacity;
+    }
+
+    private int residentStateRow(int index) {
+        try (NDArray row = residents[0].get(index)) {
+            return row.toIntArray()[0];
+        }
+    }
+
+    private void allocate(NDArray observations, NDArray[] columns) {
+        this.observations = replayManager.zeros(Shape.update(observations.getShape(), 0, observationCapacity), observations.getDataType());
+        residents = new NDArray[columns.length];
+        for (int i = 0; i < residents.length; i++) {
+            NDArray array = columns[i];
+            residents[i] = replayManager.zeros(Shape.update(array.getShape(), 0, capacity), array.getDataType());
+        }
+    }
+
+    private static void writeRows(NDArray target, NDArray source, int from, int to, int count) {
+        NDIndex src = new NDIndex(from + ":" + (from + count));
+        NDIndex dst = new NDIndex(to + ":" + (to + count));
+        target.set(dst, source.get(src));
+    }
+}
@@ -0,0 +1,191 @@
+package utils;
+
+import algorithm.BaseAlgorithm;
+import algorithm.CommonParameter;
+import env.action.core.IAction;
+import env.common.Environment;
+import env.state.core.IState;
+import org.apache.commons.lang3.Validate;
+import utils.datatype.Snapshot;
+import utils.datatype.Transition;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 每个环境一个线程的RL算法执行器
+ * <p>
+ * 每个环境在自己的线程上执行与{@link Runner}相同的逐幕交互循环，但动作不再直接调用{@link BaseAlgorithm#selectAction}，
+ * 而是向共享的{@link ActionService}请求，由其把所有正在交互的环境的请求合并成一次批量推理。
+ * 环境线程由构造时传入的{@link ThreadFactory}创建，环境数量很多时可传入轻量线程的工厂
+ * （例如Java 21中的 Thread.ofVirtual().factory()），默认使用守护平台线程。
+ * <p>
+ * 各线程完成的整幕样本在所有线程结束后，按完成顺序交给算法，因此样本缓存中的轨迹是连续的。
+ * 累计样本数达到{@link CommonParameter#MIN_BATCH_SIZE}后各线程不再开始新的一幕，已开始的幕会完整执行。
+ * 第i个环境的随机种子为 SEED + i + 1。
+ *
+ * @author Caojunqi
+ * @date 2021-12-24 10:30
+ */
+public class RolloutExecutor<S extends IState<S>, A extends IAction> {
+    private final List<Environment<S, A>> envs;
+    private final BaseAlgorithm<S, A> algorithm;
+    private final ActionService<S, A> actionService;
+    private final ThreadFactory threadFactory;
+
+    public RolloutExecutor(List<? extends Environment<S, A>> envs, BaseAlgorithm<S, A> algorithm) {
+        this(envs, algorithm, new LockstepActionService<>(algorithm), r -> {
+            Thread thread = new Thread(r, "rollout-env");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param envs          环境集合，每个环境使用一个线程
+     * @param algorithm     算法
+     * @param actionService 各环境线程共享的动作选择服务
+     * @param threadFactory 环境线程工厂
+     */
+    public RolloutExecutor(List<? extends Environment<S, A>> envs, BaseAlgorithm<S, A> algorithm,
+                           ActionService<S, A> actionService, ThreadFactory threadFactory) {
+        Validate.isTrue(!envs.isEmpty(), "至少需要一个环境！！");
+        this.envs = new ArrayList<>(envs);
+        this.algorithm = algorithm;
+        this.actionService = actionService;
+        this.threadFactory = threadFactory;
+        for (int i = 0; i < this.envs.size(); i++) {
+            this.envs.get(i).seed(CommonParameter.SEED + i + 1);
+        }
+    }
+
+    public void mainLoop() {
+        for (int i = 0; i < CommonParameter.MAX_ITER_NUM; i++) {
+            collectSamples();
+            algorithm.updateModel();
+            testModel();
+            System.out.println("完成===" + i);
+        }
+    }
+
+    /**
+     * 所有环境并发交互，收集样本数据
+     */
+    public void collectSamples() {
+        algorithm.resetMemory();
+        AtomicInteger sampleNum = new AtomicInteger();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Episode<S, A>> episodes = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>(envs.size());
+        for (int i = 0; i < envs.size(); i++) {
+            int envIndex = i;
+            // 启动线程前登记，保证第一批请求等待所有环境
+            actionService.register();
+            threads.add(threadFactory.newThread(() -> {
+                try {
+                    while (sampleNum.get() < CommonParameter.MIN_BATCH_SIZE && error.get() == null) {
+                        Episode<S, A> episode = runEpisode(envIndex);
+                        synchronized (episodes) {
+                            episodes.add(episode);
+                        }
+                        sampleNum.addAndGet(episode.transitions.size());
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                } finally {
+                    actionService.deregister();
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        if (error.get() != null) {
+            throw new IllegalStateException(error.get());
+        }
+
+        float totalReward = 0;
+        float minEpisodeReward = Float.POSITIVE_INFINITY;
+        float maxEpisodeReward = Float.NEGATIVE_INFINITY;
+        for (Episode<S, A> episode : episodes) {
+            for (Transition<S, A> transition : episode.transitions) {
+                algorithm.collect(episode.envIndex, transition.getState(), transition.getAction(), transition.isMasked(),
+                        transition.getNextState(), transition.getReward());
+            }
+            totalReward += episode.reward;
+            minEpisodeReward = Math.min(minEpisodeReward, episode.reward);
+            maxEpisodeReward = Math.max(maxEpisodeReward, episode.reward);
+        }
+
+        System.out.println("Episodes [" + episodes.size() + "] Samples [" + sampleNum.get() + "] AverageEpisodeReward [" + (totalReward / episodes.size())
+                + "] MaxEpisodeReward [" + maxEpisodeReward + "] MinEpisodeReward [" + minEpisodeReward + "]");
+    }
+
+    /**
+     * 在当前线程上与指定环境交互一幕
+     */
+    private Episode<S, A> runEpisode(int envIndex) throws InterruptedException {
+        Environment<S, A> env = envs.get(envIndex);
+        List<Transition<S, A>> transitions = new ArrayList<>();
+        S state = env.reset().clone();
+        boolean done = false;
+        float episodeReward = 0;
+        while (!done) {
+            A action = actionService.act(state);
+            Snapshot<S> snapshot = env.step(action);
+            S nextState = snapshot.getNextState().clone();
+            done = snapshot.isDone();
+            transitions.add(new Transition<>(state, action, done, nextState, snapshot.getReward()));
+            episodeReward += snapshot.getReward();
+            state = nextState;
+        }
+        return new Episode<>(envIndex, transitions, episodeReward);
+    }
+
+    /**
+     * 采用贪婪策略，使用第一个环境收集一幕样本数据，检测模型可靠性
+     */
+    private void testModel() {
+        Environment<S, A> env = envs.get(0);
+        S state = env.reset();
+        boolean done = false;
+        float episodeReward = 0;
+
+        while (!done) {
+            env.render();
+            A action = algorithm.greedyAction(state);
+            Snapshot<S> snapshot = env.step(action);
+            episodeReward += snapshot.getReward();
+            done = snapshot.isDone();
+            state = snapshot.getNextState();
+        }
+
+        System.out.println("TestModel=====EpisodeReward [" + episodeReward + "]");
+    }
+
+    /**
+     * 一个环境交互得到的一整幕样本
+     */
+    private static class Episode<S extends IState<S>, A extends IAction> {
+        private final int envIndex;
+        private final List<Transition<S, A>> transitions;
+        private final float reward;
+
+        private Episode(int envIndex, List<Transition<S, A>> transitions, float reward) {
+            this.envIndex = envIndex;
+            this.transitions = transitions;
+            this.reward = reward;
+        }
+    }
+}
@@ -4,11 +4,24 @@ import algorithm.BaseAlgorithm;
 import algorithm.CommonParameter;
 import env.action.core.IAction;
 import env.common.Environment;
+import env.common.VectorEnvironment;
+import env.state.collector.IStateCollector;
 import env.state.core.IState;
+import org.apache.commons.lang3.Validate;
 import utils.datatype.Snapshot;
+import utils.datatype.VectorSnapshot;
+
+import java.util.List;
 
 /**
  * RL算法执行器
+ * <p>
+ * 使用{@link VectorEnvironment}构造时，同时与所有子环境交互，每一步只进行一次前向计算选择全部动作。
+ * 各子环境的样本按环境索引直接写入样本缓存，幕结束后才参与更新；子环境在多次收集之间不重置，
+ * 收集结束时尚未结束的幕保留在样本缓存中，下次收集时继续，见{@link utils.Memory#resetFinished()}。
+ * <p>
+ * 每轮迭代包在一个{@link NDScope}中，其中与环境交互的每一步再各包一个作用域，
+ * 迭代及每一步期间残留在寿命更长的NDManager中的NDArray会在作用域结束时报告，各作用域的统计在训练结束时输出。
  *
  * @author Caojunqi
  * @date 2021-09-09 21:59
@@ -16,25 +29,85 @@ import utils.datatype.Snapshot;
 public class Runner<S extends IState<S>, A extends IAction> {
     private final Environment<S, A> env;
     private final BaseAlgorithm<S, A> algorithm;
+    /**
+     * 向量化环境，单环境运行时为null
+     */
+    private final VectorEnvironment<S, A> vectorEnv;
+    /**
+     * 向量化环境中各子环境当前幕的累计收益及步数，跨多次收集累计，首次收集前为null
+     */
+    private float[] episodeRewards;
+    private int[] episodeSteps;
 
     public Runner(Environment<S, A> env, BaseAlgorithm<S, A> algorithm) {
         this.env = env;
         this.algorithm = algorithm;
+        this.vectorEnv = null;
+    }
+
+    /**
+     * @param vectorEnv 向量化环境
+     * @param testEnv   模型测试使用的环境，子环境的幕跨多次收集延续，因此不能是vectorEnv的子环境
+     */
+    public Runner(VectorEnvironment<S, A> vectorEnv, Environment<S, A> testEnv, BaseAlgorithm<S, A> algorithm) {
+        for (int i = 0; i < vectorEnv.size(); i++) {
+            Validate.isTrue(vectorEnv.getEnv(i) != testEnv, "测试环境不能是向量化环境的子环境！！");
+        }
+        this.env = testEnv;
+        this.algorithm = algorithm;
+        this.vectorEnv = vectorEnv;
     }
 
     public void mainLoop() {
         for (int i = 0; i < CommonParameter.MAX_ITER_NUM; i++) {
-            collectSamples();
-            algorithm.updateModel();
-            testModel();
+            // 每轮迭代结束时检查是否有NDArray残留在算法的NDManager中
+            NDScope scope = NDScope.open("iteration", algorithm.getManager());
+            try {
+                collectSamples();
+                algorithm.updateModel();
+                testModel();
+            } finally {
+                scope.close();
+            }
             System.out.println("完成===" + i);
         }
+        NDScope.getStats().forEach((name, stats) -> System.out.println("NDScope[" + name + "] " + stats));
+    }
+
+    /**
+     * 在单步作用域中选择动作，选择动作时创建的NDArray都归属于该作用域
+     *
+     * @param greedy 是否采用贪婪策略
+     */
+    private A stepAction(S state, boolean greedy) {
+        NDScope scope = NDScope.nested("step", algorithm.getManager());
+        try {
+            return greedy ? algorithm.greedyAction(state) : algorithm.selectAction(state);
+        } finally {
+            scope.close();
+        }
+    }
+
+    /**
+     * 在单步作用域中为所有子环境选择动作
+     */
+    private List<A> stepActions(IStateCollector states) {
+        NDScope scope = NDScope.nested("step", algorithm.getManager());
+        try {
+            return algorithm.selectActions(states);
+        } finally {
+            scope.close();
+        }
     }
 
     /**
      * 收集样本数据
      */
     private void collectSamples() {
+        if (vectorEnv != null) {
+            collectVectorSamples();
+            return;
+        }
         algorithm.resetMemory();
         int sampleNum = 0;
         int episodesNum = 0;
@@ -49,9 +122,9 @@ public class Runner<S extends IState<S>, A extends IAction> {
 
             while (!done) {
                 env.render();
-                A action = algorithm.selectAction(state);
+                A action = stepAction(state, false);
                 Snapshot<S> snapshot = env.step(action);
-                algorithm.collect(state, action, snapshot.isDone(), snapshot.getNextState().clone(), snapshot.getReward());
+                algorithm.collect(state, action, snapshot.isDone(), snapshot.getNextState(), snapshot.getReward());
 
                 done = snapshot.isDone();
                 state = snapshot.getNextState().clone();
@@ -73,21 +146,61 @@ public class Runner<S extends IState<S>, A extends IAction> {
         System.out.println("AverageEpisodeReward [" + (totalReward / episodesNum) + "] MaxEpisodeReward [" + maxEpisodeReward + "] MinEpisodeReward [" + minEpisodeReward + "]");
     }
 
+    /**
+     * 同时与所有子环境交互收集样本数据
+     */
+    private void collectVectorSamples() {
+        int envNum = vectorEnv.size();
+        if (episodeRewards == null) {
+            vectorEnv.resetAll();
+            episodeRewards = new float[envNum];
+            episodeSteps = new int[envNum];
+        }
+        // 上次收集时尚未结束的幕保留在样本缓存中，本次继续收集
+        algorithm.resetFinishedMemory();
+        int sampleNum = 0;
+        int episodesNum = 0;
+        float totalReward = 0;
+        float minEpisodeReward = Float.POSITIVE_INFINITY;
+        float maxEpisodeReward = Float.NEGATIVE_INFINITY;
+        while (sampleNum < CommonParameter.MIN_BATCH_SIZE) {
+            List<A> actions = stepActions(vectorEnv.getStateBatch());
+            VectorSnapshot<S> snapshot = vectorEnv.stepAll(actions);
+            for (int i = 0; i < envNum; i++) {
+                boolean done = snapshot.getDones()[i];
+                float reward = snapshot.getRewards()[i];
+                algorithm.collect(i, snapshot.getStates().get(i), actions.get(i), done, snapshot.getNextStates().get(i), reward);
+                episodeRewards[i] += reward;
+                episodeSteps[i]++;
+                if (!done) {
+                    continue;
+                }
+                sampleNum += episodeSteps[i];
+                episodesNum += 1;
+                totalReward += episodeRewards[i];
+                minEpisodeReward = Math.min(minEpisodeReward, episodeRewards[i]);
+                maxEpisodeReward = Math.max(maxEpisodeReward, episodeRewards[i]);
+                System.out.println("episode[" + episodesNum + "], reward[" + episodeRewards[i] + "]");
+                episodeRewards[i] = 0;
+                episodeSteps[i] = 0;
+            }
+        }
+
+        System.out.println("AverageEpisodeReward [" + (totalReward / episodesNum) + "] MaxEpisodeReward [" + maxEpisodeReward + "] MinEpisodeReward [" + minEpisodeReward + "]");
+    }
+
     /**
      * 采用贪婪策略，收集一幕样本数据，检测模型可靠性
      */
     private void testModel() {
-        algorithm.resetMemory();
-
         S state = env.reset();
         boolean done = false;
         float episodeReward = 0;
 
         while (!done) {
             env.render();
-            A action = algorithm.greedyAction(state);
+            A action = stepAction(state, true);
             Snapshot<S> snapshot = env.step(action);
-            algorithm.collect(state, action, snapshot.isDone(), snapshot.getNextState(), snapshot.getReward());
 
             episodeReward += snapshot.getReward();
 
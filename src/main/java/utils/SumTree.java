@@ -0,0 +1,114 @@
+package utils;
+
+import org.apache.commons.lang3.Validate;
+
+import java.util.Arrays;
+
+/**
+ * 基于数组实现的求和树
+ * 叶子节点存放各样本的优先级，内部节点存放子树优先级之和，
+ * 修改单个优先级和按前缀和查找样本的时间复杂度均为O(log n)。
+ * 叶子容量始终为2的幂，容量不足时翻倍扩容。
+ *
+ * @author Caojunqi
+ * @date 2021-12-20 15:20
+ */
+public final class SumTree {
+
+    /**
+     * 叶子节点容量
+     */
+    private int capacity;
+    /**
+     * 树节点，下标1为根节点，叶子节点位于[capacity, 2 * capacity)
+     */
+    private double[] tree;
+    /**
+     * 已使用的叶子节点数量
+     */
+    private int size;
+
+    public SumTree(int initialCapacity) {
+        Validate.isTrue(initialCapacity > 0, "求和树初始容量必须大于0！！");
+        this.capacity = Integer.highestOneBit(initialCapacity);
+        if (this.capacity < initialCapacity) {
+            this.capacity <<= 1;
+        }
+        this.tree = new double[capacity << 1];
+    }
+
+    /**
+     * 设置指定样本的优先级
+     *
+     * @param index    样本索引
+     * @param priority 优先级，必须非负
+     */
+    public void set(int index, double priority) {
+        Validate.isTrue(priority >= 0, "样本优先级不能为负数！！");
+        if (index >= capacity) {
+            grow(index + 1);
+        }
+        int pos = index + capacity;
+        tree[pos] = priority;
+        for (pos >>= 1; pos >= 1; pos >>= 1) {
+            tree[pos] = tree[pos << 1] + tree[(pos << 1) + 1];
+        }
+        size = Math.max(size, index + 1);
+    }
+
+    public double get(int index) {
+        return tree[index + capacity];
+    }
+
+    /**
+     * @return 所有样本优先级之和
+     */
+    public double total() {
+        return tree[1];
+    }
+
+    /**
+     * 查找优先级前缀和首次超过指定值的样本
+     *
+     * @param value 取值范围[0, total())
+     * @return 样本索引
+     */
+    public int find(double value) {
+        Validate.isTrue(size > 0, "求和树为空，无法查找样本！！");
+        int pos = 1;
+        while (pos < capacity) {
+            int left = pos << 1;
+            if (value < tree[left]) {
+                pos = left;
+            } else {
+                value -= tree[left];
+                pos = left + 1;
+            }
+        }
+        // 浮点误差可能导致落在未使用的叶子节点上
+        return Math.min(pos - capacity, size - 1);
+    }
+
+    public void clear() {
+        Arrays.fill(tree, 0);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void grow(int minCapacity) {
+        int newCapacity = capacity;
+        while (newCapacity < minCapacity) {
+            newCapacity <<= 1;
+        }
+        double[] newTree = new double[newCapacity << 1];
+        System.arraycopy(tree, capacity, newTree, newCapacity, capacity);
+        for (int pos = newCapacity - 1; pos >= 1; pos--) {
+            newTree[pos] = newTree[pos << 1] + newTree[(pos << 1) + 1];
+        }
+        this.capacity = newCapacity;
+        this.tree = newTree;
+    }
+}
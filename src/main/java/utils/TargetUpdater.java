@@ -0,0 +1,122 @@
+package utils;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.nn.Parameter;
+import ai.djl.nn.ParameterList;
+import ai.djl.util.Pair;
+import algorithm.BaseModel;
+import algorithm.CommonParameter;
+import algorithm.FlatParameters;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * 目标网络参数更新器
+ * 构造时按参数名将源模型与目标模型的参数一一配对，之后每次更新都直接在引擎端原地完成
+ * target = (1 - tau) * target + tau * source，不经过JVM，也不产生临时张量。
+ * <p>
+ * 目标模型只由本更新器修改，其参数不再需要梯度。
+ * 开启{@link CommonParameter#FLAT_PARAMETERS}后，两个模型的参数都改为连续存储，每次更新只需一次向量运算。
+ *
+ * @author Caojunqi
+ * @date 2021-12-25 10:30
+ */
+public final class TargetUpdater {
+
+    private final Parameter[] sources;
+    private final Parameter[] targets;
+    /**
+     * 两个模型参数的连续存储，未开启时为null
+     */
+    private FlatParameters flatSource;
+    private FlatParameters flatTarget;
+    /**
+     * 参数更新比例
+     */
+    private final double tau;
+    /**
+     * 每调用多少次{@link #step()}进行一次更新
+     */
+    private final int interval;
+    private int stepNum;
+
+    /**
+     * @param source   提供新参数值的模型
+     * @param target   目标模型
+     * @param tau      参数更新比例
+     * @param interval 每调用多少次{@link #step()}进行一次更新
+     */
+    public TargetUpdater(BaseModel source, BaseModel target, double tau, int interval) {
+        Validate.isTrue(tau > 0 && tau <= 1, "目标网络参数更新比例必须在(0, 1]范围内！！");
+        Validate.isTrue(interval > 0, "目标网络参数更新间隔必须大于0！！");
+        ParameterList sourceParameterList = source.getModel().getBlock().getParameters();
+        ParameterList targetParameterList = target.getModel().getBlock().getParameters();
+        Validate.isTrue(sourceParameterList.size() == targetParameterList.size(), "源模型与目标模型的参数数量不一致！！");
+        this.sources = new Parameter[targetParameterList.size()];
+        this.targets = new Parameter[targetParameterList.size()];
+        int i = 0;
+        for (Pair<String, Parameter> params : targetParameterList) {
+            Parameter sourceParam = sourceParameterList.get(params.getKey());
+            Validate.isTrue(sourceParam != null, "源模型缺少参数[" + params.getKey() + "]！！");
+            Validate.isTrue(sourceParam.getArray().getShape().equals(params.getValue().getArray().getShape()),
+                    "参数[" + params.getKey() + "]形状不一致！！");
+            params.getValue().getArray().setRequiresGradient(false);
+            sources[i] = sourceParam;
+            targets[i] = params.getValue();
+            i++;
+        }
+        this.tau = tau;
+        this.interval = interval;
+        if (CommonParameter.FLAT_PARAMETERS) {
+            this.flatSource = source.flattenParameters();
+            this.flatTarget = target.flattenParameters();
+        }
+    }
+
+    /**
+     * 将源模型参数完整拷贝给目标模型
+     */
+    public void hardUpdate() {
+        if (flatTarget != null) {
+            flatTarget.copyFrom(flatSource);
+            return;
+        }
+        NDIndex all = new NDIndex("...");
+        for (int i = 0; i < targets.length; i++) {
+            try (NDArray source = sources[i].getArray().stopGradient()) {
+                targets[i].getArray().set(all, source);
+            }
+        }
+    }
+
+    /**
+     * 按tau进行一次软更新
+     */
+    public void softUpdate() {
+        if (flatTarget != null) {
+            flatTarget.softUpdateFrom(flatSource, tau);
+            return;
+        }
+        for (int i = 0; i < targets.length; i++) {
+            // (target - source) * (1 - tau) + source
+            try (NDArray source = sources[i].getArray().stopGradient()) {
+                targets[i].getArray().subi(source).muli(1 - tau).addi(source);
+            }
+        }
+    }
+
+    /**
+     * 计数一次，达到更新间隔时进行软更新
+     *
+     * @return 本次是否进行了更新
+     */
+    public boolean step() {
+        stepNum++;
+        if (stepNum < interval) {
+            return false;
+        }
+        stepNum = 0;
+        softUpdate();
+        return true;
+    }
+}
@@ -0,0 +1,132 @@
+package utils.column;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * 列式数据存储基类
+ * 所有行数据按固定步长依次存放在同一个基础类型数组中，写入时不产生任何对象，
+ * 构建NDArray时直接将[0, size)这一段连续数据交给引擎。
+ *
+ * @author Caojunqi
+ * @date 2021-12-20 10:12
+ */
+public abstract class BaseColumn {
+
+    /**
+     * 标量列，构建出的NDArray形状为(size)；否则为(size, stride)
+     */
+    private final boolean scalar;
+    /**
+     * 初始行容量
+     */
+    private final int initialRows;
+    /**
+     * 每行数据长度，首次写入时确定
+     */
+    protected int stride;
+    /**
+     * 当前可容纳的行数
+     */
+    protected int rowCapacity;
+    /**
+     * 已写入的行数，等于写入过的最大行号+1
+     */
+    protected int size;
+
+    protected BaseColumn(int initialRows, boolean scalar) {
+        Validate.isTrue(initialRows > 0, "数据列初始容量必须大于0！！");
+        this.initialRows = initialRows;
+        this.scalar = scalar;
+        this.stride = scalar ? 1 : -1;
+    }
+
+    /**
+     * 准备写入第row行数据，必要时扩容
+     *
+     * @param row       行号
+     * @param rowLength 该行数据长度
+     * @return 该行在数组中的起始偏移
+     */
+    protected int prepareRow(int row, int rowLength) {
+        if (stride < 0) {
+            stride = rowLength;
+        } else if (size == 0 && rowLength != stride && !scalar) {
+            // 复用的空数据列可以改变步长，底层数组按新步长重新划分行
+            rowCapacity = rowCapacity * stride / rowLength;
+            stride = rowLength;
+        }
+        Validate.isTrue(rowLength == stride, "数据列步长不一致，期望[" + stride + "]实际[" + rowLength + "]！！");
+        if (rowCapacity == 0) {
+            rowCapacity = Math.max(initialRows, row + 1);
+            allocate(rowCapacity * stride);
+        } else if (row >= rowCapacity) {
+            rowCapacity = Math.max(rowCapacity << 1, row + 1);
+            grow(rowCapacity * stride);
+        }
+        size = Math.max(size, row + 1);
+        return row * stride;
+    }
+
+    /**
+     * 只保留指定的行，按顺序移到最前面，其余行丢弃
+     *
+     * @param rows  保留的行号，需严格递增
+     * @param count 保留的行数，即rows中有效元素的个数
+     */
+    public void keepRows(int[] rows, int count) {
+        Validate.isTrue(count <= size, "保留的行数超过已写入的行数！！");
+        for (int i = 0; i < count; i++) {
+            Validate.isTrue(rows[i] >= i && rows[i] < size && (i == 0 || rows[i] > rows[i - 1]), "保留的行号需严格递增且不越界！！");
+            if (rows[i] != i) {
+                move(rows[i] * stride, i * stride, stride);
+            }
+        }
+        size = count;
+    }
+
+    /**
+     * 在底层数组内移动一段数据，目标位置不晚于源位置
+     */
+    protected abstract void move(int from, int to, int length);
+
+    /**
+     * 分配底层数组
+     */
+    protected abstract void allocate(int length);
+
+    /**
+     * 扩容底层数组，保留已有数据
+     */
+    protected abstract void grow(int length);
+
+    /**
+     * 将已写入的数据构建成一个NDArray
+     */
+    public abstract NDArray toNDArray(NDManager manager);
+
+    /**
+     * 清空数据，保留底层数组以便复用
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    protected Shape shape() {
+        return scalar ? new Shape(size) : new Shape(size, stride);
+    }
+
+    protected int length() {
+        return size * stride;
+    }
+}
@@ -0,0 +1,50 @@
+package utils.column;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import org.apache.commons.lang3.Validate;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * boolean型数据列，底层以byte存储
+ *
+ * @author Caojunqi
+ * @date 2021-12-20 10:41
+ */
+public final class BooleanColumn extends BaseColumn {
+
+    private byte[] data;
+
+    public BooleanColumn(int initialRows, boolean scalar) {
+        super(initialRows, scalar);
+    }
+
+    public void set(int row, boolean value) {
+        int offset = prepareRow(row, 1);
+        data[offset] = (byte) (value ? 1 : 0);
+    }
+
+    @Override
+    protected void move(int from, int to, int length) {
+        System.arraycopy(data, from, data, to, length);
+    }
+
+    @Override
+    protected void allocate(int length) {
+        data = new byte[length];
+    }
+
+    @Override
+    protected void grow(int length) {
+        data = Arrays.copyOf(data, length);
+    }
+
+    @Override
+    public NDArray toNDArray(NDManager manager) {
+        Validate.isTrue(size > 0, "数据列为空，无法构建NDArray！！");
+        return manager.create(ByteBuffer.wrap(data, 0, length()), shape(), DataType.BOOLEAN);
+    }
+}
@@ -0,0 +1,62 @@
+package utils.column;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import org.apache.commons.lang3.Validate;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * float型数据列
+ *
+ * @author Caojunqi
+ * @date 2021-12-20 10:30
+ */
+public final class FloatColumn extends BaseColumn {
+
+    private float[] data;
+
+    public FloatColumn(int initialRows, boolean scalar) {
+        super(initialRows, scalar);
+    }
+
+    public void set(int row, float[] values) {
+        int offset = prepareRow(row, values.length);
+        System.arraycopy(values, 0, data, offset, values.length);
+    }
+
+    public void set(int row, float value) {
+        int offset = prepareRow(row, 1);
+        data[offset] = value;
+    }
+
+    /**
+     * 读取第row行的数据
+     */
+    public float[] getRow(int row) {
+        Validate.isTrue(row < size, "数据列行号越界！！");
+        return Arrays.copyOfRange(data, row * stride, (row + 1) * stride);
+    }
+
+    @Override
+    protected void move(int from, int to, int length) {
+        System.arraycopy(data, from, data, to, length);
+    }
+
+    @Override
+    protected void allocate(int length) {
+        data = new float[length];
+    }
+
+    @Override
+    protected void grow(int length) {
+        data = Arrays.copyOf(data, length);
+    }
+
+    @Override
+    public NDArray toNDArray(NDManager manager) {
+        Validate.isTrue(size > 0, "数据列为空，无法构建NDArray！！");
+        return manager.create(FloatBuffer.wrap(data, 0, length()), shape());
+    }
+}
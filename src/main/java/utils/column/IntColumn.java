@@ -0,0 +1,70 @@
+package utils.column;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import org.apache.commons.lang3.Validate;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * int型数据列
+ *
+ * @author Caojunqi
+ * @date 2021-12-20 10:36
+ */
+public final class IntColumn extends BaseColumn {
+
+    private int[] data;
+
+    public IntColumn(int initialRows, boolean scalar) {
+        super(initialRows, scalar);
+    }
+
+    public void set(int row, int[] values) {
+        int offset = prepareRow(row, values.length);
+        System.arraycopy(values, 0, data, offset, values.length);
+    }
+
+    public void set(int row, int value) {
+        int offset = prepareRow(row, 1);
+        data[offset] = value;
+    }
+
+    /**
+     * 读取标量列第row行的数据
+     */
+    public int get(int row) {
+        Validate.isTrue(row < size, "数据列行号越界！！");
+        return data[row];
+    }
+
+    /**
+     * 读取第row行的数据
+     */
+    public int[] getRow(int row) {
+        Validate.isTrue(row < size, "数据列行号越界！！");
+        return Arrays.copyOfRange(data, row * stride, (row + 1) * stride);
+    }
+
+    @Override
+    protected void move(int from, int to, int length) {
+        System.arraycopy(data, from, data, to, length);
+    }
+
+    @Override
+    protected void allocate(int length) {
+        data = new int[length];
+    }
+
+    @Override
+    protected void grow(int length) {
+        data = Arrays.copyOf(data, length);
+    }
+
+    @Override
+    public NDArray toNDArray(NDManager manager) {
+        Validate.isTrue(size > 0, "数据列为空，无法构建NDArray！！");
+        return manager.create(IntBuffer.wrap(data, 0, length()), shape());
+    }
+}
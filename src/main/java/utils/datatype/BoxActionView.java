@@ -0,0 +1,66 @@
+package utils.datatype;
+
+import ai.djl.ndarray.NDArray;
+import env.action.core.impl.BoxAction;
+import org.apache.commons.lang3.Validate;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * 策略模型输出的连续型动作视图
+ * 动作数组形状为(batch, actionDim)，只有在首次访问动作时才通过一次toFloatArray()把整个数组拷贝到JVM中，
+ * 之后各行从该数组中切出，每个{@link BoxAction}也只在被访问时创建。
+ * 训练时只使用策略信息而不访问动作，不会产生任何拷贝。
+ * <p>
+ * 视图持有动作NDArray的引用，首次访问必须在该NDArray所属的NDManager关闭之前进行。
+ *
+ * @author Caojunqi
+ * @date 2021-12-27 14:30
+ */
+public final class BoxActionView extends AbstractList<BoxAction> implements RandomAccess {
+
+    /**
+     * 动作数组，数据拷贝到JVM后置为null
+     */
+    private NDArray actionArray;
+    private final int size;
+    private final int actionDim;
+    /**
+     * 所有动作数据，按行依次存放
+     */
+    private float[] data;
+    private BoxAction[] actions;
+
+    public BoxActionView(NDArray actionArray) {
+        Validate.isTrue(actionArray.getShape().dimension() == 2, "动作数组必须为二维数组(batch, actionDim)！！");
+        this.actionArray = actionArray;
+        this.size = (int) actionArray.getShape().get(0);
+        this.actionDim = (int) actionArray.getShape().get(1);
+    }
+
+    @Override
+    public BoxAction get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        if (actions == null) {
+            data = actionArray.toFloatArray();
+            actions = new BoxAction[size];
+            actionArray = null;
+        }
+        BoxAction action = actions[index];
+        if (action == null) {
+            int offset = index * actionDim;
+            action = new BoxAction(Arrays.copyOfRange(data, offset, offset + actionDim));
+            actions[index] = action;
+        }
+        return action;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,32 @@
+package utils.datatype;
+
+/**
+ * 优先经验回放的一次采样结果
+ * 包含被采中的样本索引，以及对应的重要性采样权重
+ *
+ * @author Caojunqi
+ * @date 2021-12-20 15:48
+ */
+public final class PrioritizedSample {
+    /**
+     * 样本索引
+     */
+    private final int[] index;
+    /**
+     * 重要性采样权重，已按本批次最大值归一化
+     */
+    private final float[] weights;
+
+    public PrioritizedSample(int[] index, float[] weights) {
+        this.index = index;
+        this.weights = weights;
+    }
+
+    public int[] getIndex() {
+        return index;
+    }
+
+    public float[] getWeights() {
+        return weights;
+    }
+}
@@ -0,0 +1,70 @@
+package utils.datatype;
+
+import env.state.core.IState;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 向量化环境执行一步后，各子环境数据的快照
+ * 按列存放，第i个元素对应第i个子环境。向量化环境每次执行都复用同一个快照，数据只在下次执行前有效。
+ *
+ * @author Caojunqi
+ * @date 2021-12-23 10:20
+ */
+public class VectorSnapshot<S extends IState<S>> {
+    /**
+     * 各子环境执行动作时所处的状态
+     */
+    private final List<S> states;
+    /**
+     * 各子环境执行动作后的状态，幕结束时为该幕的最终状态，而非重置后的初始状态
+     */
+    private final List<S> nextStates;
+    /**
+     * 各子环境获得的收益
+     */
+    private final float[] rewards;
+    /**
+     * 各子环境当前幕是否结束
+     */
+    private final boolean[] dones;
+
+    public VectorSnapshot(int envNum) {
+        this.states = new ArrayList<>(Collections.nCopies(envNum, null));
+        this.nextStates = new ArrayList<>(Collections.nCopies(envNum, null));
+        this.rewards = new float[envNum];
+        this.dones = new boolean[envNum];
+    }
+
+    /**
+     * 记录第index个子环境本步的数据
+     */
+    public void set(int index, S state, S nextState, float reward, boolean done) {
+        states.set(index, state);
+        nextStates.set(index, nextState);
+        rewards[index] = reward;
+        dones[index] = done;
+    }
+
+    public List<S> getStates() {
+        return states;
+    }
+
+    public List<S> getNextStates() {
+        return nextStates;
+    }
+
+    public float[] getRewards() {
+        return rewards;
+    }
+
+    public boolean[] getDones() {
+        return dones;
+    }
+
+    public int size() {
+        return rewards.length;
+    }
+}
@@ -0,0 +1,112 @@
+package algorithm;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * 广义优势估计测试类
+ *
+ * @author Caojunqi
+ * @date 2021-12-29 17:50
+ */
+public class AdvantageEstimatorTest {
+
+    private static final float GAMMA = 0.9f;
+    private static final float LAMBDA = 0.5f;
+    private static final float DELTA = 1e-5f;
+
+    @Test
+    public void testHandComputed() {
+        float[] rewards = {1, 2, 3};
+        float[] values = {0.5f, 1, 1.5f};
+        boolean[] masks = {false, true, false};
+        float lastValue = 2;
+        float[] advantages = new float[3];
+        AdvantageEstimator.gae(rewards, values, masks, lastValue, GAMMA, LAMBDA, advantages);
+
+        // 第2个样本之后的状态价值为lastValue；第1个样本处幕结束，不再自举
+        float delta2 = 3 + GAMMA * lastValue - 1.5f;
+        float delta1 = 2 - 1;
+        float delta0 = 1 + GAMMA * 1 - 0.5f;
+        Assert.assertEquals(delta2, advantages[2], DELTA);
+        Assert.assertEquals(delta1, advantages[1], DELTA);
+        Assert.assertEquals(delta0 + GAMMA * LAMBDA * delta1, advantages[0], DELTA);
+    }
+
+    @Test
+    public void testParallelSegmentsMatchSequential() {
+        int n = 20000;
+        Random random = new Random(0);
+        float[] rewards = new float[n];
+        float[] values = new float[n];
+        boolean[] masks = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            rewards[i] = random.nextFloat();
+            values[i] = random.nextFloat();
+            masks[i] = random.nextInt(200) == 0;
+        }
+        float[] expected = new float[n];
+        float prevValue = 3;
+        float prevAdvantage = 0;
+        for (int i = n - 1; i >= 0; i--) {
+            int mask = masks[i] ? 0 : 1;
+            expected[i] = rewards[i] + GAMMA * prevValue * mask - values[i] + GAMMA * LAMBDA * prevAdvantage * mask;
+            prevValue = values[i];
+            prevAdvantage = expected[i];
+        }
+        float[] advantages = new float[n];
+        AdvantageEstimator.gae(rewards, values, masks, 3, GAMMA, LAMBDA, advantages);
+        Assert.assertArrayEquals(expected, advantages, DELTA);
+    }
+
+    @Test
+    public void testEstimateMatchesNDArrayPath() {
+        Random random = new Random(1);
+        int n = 50;
+        float[] rewards = new float[n];
+        float[] values = new float[n];
+        boolean[] masks = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            rewards[i] = random.nextFloat();
+            values[i] = random.nextFloat();
+            masks[i] = i % 17 == 16;
+        }
+        try (NDManager manager = NDManager.newBaseManager()) {
+            NDArray valueArray = manager.create(values);
+            NDArray rewardArray = manager.create(rewards);
+            NDArray maskArray = manager.create(masks);
+            NDList expected = ndArrayEstimate(valueArray, rewardArray, maskArray);
+            NDList actual = AdvantageEstimator.estimate(valueArray, rewardArray, maskArray);
+            for (int i = 0; i < 2; i++) {
+                Assert.assertArrayEquals(expected.get(i).toFloatArray(), actual.get(i).toFloatArray(), DELTA);
+            }
+        }
+    }
+
+    /**
+     * 逐元素读写NDArray的原有实现
+     */
+    private static NDList ndArrayEstimate(NDArray values, NDArray rewards, NDArray masks) {
+        NDManager manager = rewards.getManager();
+        NDArray advantages = manager.create(rewards.getShape());
+        float prevValue = 0;
+        float prevAdvantage = 0;
+        for (long i = rewards.getShape().get(0) - 1; i >= 0; i--) {
+            int mask = masks.getBoolean(i) ? 0 : 1;
+            NDArray delta = rewards.get(i).add(CommonParameter.GAMMA * prevValue * mask).sub(values.get(i));
+            advantages.set(new NDIndex(i), delta.add(CommonParameter.GAMMA * CommonParameter.GAE_LAMBDA * prevAdvantage * mask));
+            prevValue = values.getFloat(i);
+            prevAdvantage = advantages.getFloat(i);
+        }
+        NDArray expectedReturns = values.add(advantages);
+        NDArray advantagesMean = advantages.mean();
+        NDArray advantagesStd = advantages.sub(advantagesMean).square().sum().div(advantages.size() - 1).sqrt();
+        return new NDList(expectedReturns, advantages.sub(advantagesMean).div(advantagesStd));
+    }
+}
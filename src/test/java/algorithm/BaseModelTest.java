@@ -0,0 +1,33 @@
+package algorithm;
+
+import ai.djl.engine.Engine;
+import ai.djl.ndarray.NDManager;
+import algorithm.td3.model.ActorModel;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 模型基类测试类
+ *
+ * @author Caojunqi
+ * @date 2021-12-29 19:30
+ */
+public class BaseModelTest {
+
+    @Test
+    public void testCopyParametersKeepsStorage() {
+        Engine.getInstance().setRandomSeed(0);
+        try (NDManager manager = NDManager.newBaseManager()) {
+            ActorModel model = ActorModel.newModel(manager, 3, 2);
+            float[] copied = model.copyParameters();
+            Assert.assertNull(model.getFlatParameters());
+
+            // 拷贝结果与连续存储的顺序一致，可直接加载进另一个模型
+            float[] flat = model.flattenParameters().toFloatArray();
+            Assert.assertArrayEquals(flat, copied, 0);
+            ActorModel replica = ActorModel.newModel(manager, 3, 2);
+            replica.flattenParameters().load(copied);
+            Assert.assertArrayEquals(copied, replica.copyParameters(), 0);
+        }
+    }
+}
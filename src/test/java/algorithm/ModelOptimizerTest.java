@@ -0,0 +1,89 @@
+package algorithm;
+
+import ai.djl.engine.Engine;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.Parameter;
+import ai.djl.nn.ParameterList;
+import ai.djl.training.GradientCollector;
+import ai.djl.training.tracker.Tracker;
+import ai.djl.util.Pair;
+import algorithm.td3.model.ActorModel;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 模型参数优化器测试类
+ *
+ * @author Caojunqi
+ * @date 2021-12-29 18:20
+ */
+public class ModelOptimizerTest {
+
+    private static final int STATE_DIM = 3;
+    private static final int ACTION_DIM = 2;
+    private static final int STEPS = 5;
+    private static final float DELTA = 1e-5f;
+
+    @Test
+    public void testFusedAdamMatchesDjlAdam() {
+        assertFusedMatches(0);
+    }
+
+    @Test
+    public void testFusedAdamWithWeightDecayMatchesDjlAdam() {
+        assertFusedMatches(0.01f);
+    }
+
+    private static void assertFusedMatches(float weightDecay) {
+        Engine.getInstance().setRandomSeed(0);
+        try (NDManager manager = NDManager.newBaseManager()) {
+            ActorModel reference = ActorModel.newModel(manager, STATE_DIM, ACTION_DIM);
+            ActorModel fused = ActorModel.newModel(manager, STATE_DIM, ACTION_DIM);
+            ModelOptimizer referenceOptimizer = ModelOptimizer.adam(reference, Tracker.fixed(0.01f), weightDecay, false);
+            ModelOptimizer fusedOptimizer = ModelOptimizer.adam(fused, Tracker.fixed(0.01f), weightDecay, true);
+            fused.getFlatParameters().load(flatten(reference.getModel().getBlock().getParameters()));
+
+            NDArray states = manager.randomUniform(-1, 1, new Shape(8, STATE_DIM));
+            for (int step = 0; step < STEPS; step++) {
+                backward(reference, states);
+                referenceOptimizer.update();
+                backward(fused, states);
+                fusedOptimizer.update();
+                Assert.assertArrayEquals("第" + step + "次更新后参数不一致",
+                        flatten(reference.getModel().getBlock().getParameters()), fused.getFlatParameters().toFloatArray(), DELTA);
+            }
+        }
+    }
+
+    private static void backward(BaseModel model, NDArray states) {
+        try (NDManager subManager = states.getManager().newSubManager()) {
+            NDArray input = states.duplicate();
+            input.attach(subManager);
+            NDArray loss = model.forward(new NDList(input)).singletonOrThrow().sub(0.5).square().sum();
+            try (GradientCollector collector = Engine.getInstance().newGradientCollector()) {
+                collector.backward(loss);
+            }
+        }
+    }
+
+    /**
+     * 按参数顺序将全部参数拼接为一个float数组，顺序与{@link FlatParameters}一致
+     */
+    private static float[] flatten(ParameterList parameters) {
+        int size = 0;
+        for (Pair<String, Parameter> params : parameters) {
+            size += params.getValue().getArray().size();
+        }
+        float[] data = new float[size];
+        int offset = 0;
+        for (Pair<String, Parameter> params : parameters) {
+            float[] values = params.getValue().getArray().toFloatArray();
+            System.arraycopy(values, 0, data, offset, values.length);
+            offset += values.length;
+        }
+        return data;
+    }
+}
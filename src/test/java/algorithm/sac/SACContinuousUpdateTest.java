@@ -0,0 +1,126 @@
+package algorithm.sac;
+
+import ai.djl.engine.Engine;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.nn.Parameter;
+import ai.djl.util.Pair;
+import algorithm.BaseModel;
+import env.action.core.impl.BoxAction;
+import env.action.space.impl.BoxActionSpace;
+import env.common.Environment;
+import env.state.core.impl.BoxState;
+import env.state.space.impl.BoxStateSpace;
+import org.junit.Assert;
+import org.junit.Test;
+import utils.datatype.Snapshot;
+
+import java.lang.reflect.Field;
+
+/**
+ * SAC算法参数更新测试类
+ *
+ * @author Caojunqi
+ * @date 2021-12-29 10:30
+ */
+public class SACContinuousUpdateTest {
+
+    private static final int UPDATE_NUM = 3;
+    private static final int EPISODE_NUM = 3;
+
+    @Test
+    public void testParametersFiniteAfterUpdate() throws IllegalAccessException {
+        Engine.getInstance().setRandomSeed(0);
+        try (NDManager manager = NDManager.newBaseManager()) {
+            SwingEnv env = new SwingEnv();
+            env.seed(0);
+            SACContinuous<BoxState> algorithm = new SACContinuous<>(manager, env);
+            for (int update = 0; update < UPDATE_NUM; update++) {
+                algorithm.resetMemory();
+                for (int episode = 0; episode < EPISODE_NUM; episode++) {
+                    BoxState state = env.reset();
+                    boolean done = false;
+                    while (!done) {
+                        BoxAction action = algorithm.selectAction(state);
+                        Snapshot<BoxState> snapshot = env.step(action);
+                        algorithm.collect(state, action, snapshot.isDone(), snapshot.getNextState(), snapshot.getReward());
+                        done = snapshot.isDone();
+                        state = snapshot.getNextState();
+                    }
+                }
+                algorithm.updateModel();
+                assertFinite(algorithm, update);
+            }
+            algorithm.close();
+        }
+    }
+
+    /**
+     * 检查算法持有的全部模型参数及NDArray（如logAlpha）都是有限值
+     */
+    private static void assertFinite(SACContinuous<BoxState> algorithm, int update) throws IllegalAccessException {
+        for (Field field : SACContinuous.class.getDeclaredFields()) {
+            field.setAccessible(true);
+            Object value = field.get(algorithm);
+            if (value instanceof BaseModel) {
+                for (Pair<String, Parameter> params : ((BaseModel) value).getModel().getBlock().getParameters()) {
+                    assertFinite(params.getValue().getArray(), field.getName() + "." + params.getKey(), update);
+                }
+            } else if (value instanceof NDArray) {
+                assertFinite((NDArray) value, field.getName(), update);
+            }
+        }
+    }
+
+    private static void assertFinite(NDArray array, String name, int update) {
+        for (float value : array.toType(DataType.FLOAT32, false).toFloatArray()) {
+            Assert.assertTrue("第" + update + "次更新后[" + name + "]出现非有限值", Float.isFinite(value));
+        }
+    }
+
+    /**
+     * 单摆环境，状态为(cosθ, sinθ, θ')，每幕200步
+     */
+    private static class SwingEnv extends Environment<BoxState, BoxAction> {
+        private static final int EPISODE_LENGTH = 200;
+        private double theta;
+        private double thetaDot;
+        private int step;
+
+        SwingEnv() {
+            super(new BoxStateSpace(new double[][]{{-1, 1}, {-1, 1}, {-8, 8}}), new BoxActionSpace(new double[][]{{-2, 2}}));
+        }
+
+        @Override
+        protected Snapshot<BoxState> doStep(BoxAction action) {
+            double torque = Math.max(-2, Math.min(2, 2 * action.getActionData()[0]));
+            double angle = Math.atan2(Math.sin(theta), Math.cos(theta));
+            double cost = angle * angle + 0.1 * thetaDot * thetaDot + 0.001 * torque * torque;
+            thetaDot = Math.max(-8, Math.min(8, thetaDot + (15 * Math.sin(theta) + 3 * torque) * 0.05));
+            theta += thetaDot * 0.05;
+            step++;
+            return new Snapshot<>(observation(), (float) -cost, step >= EPISODE_LENGTH);
+        }
+
+        @Override
+        public BoxState reset() {
+            theta = (random.nextDouble() * 2 - 1) * Math.PI;
+            thetaDot = random.nextDouble() * 2 - 1;
+            step = 0;
+            return observation();
+        }
+
+        private BoxState observation() {
+            return new BoxState(new float[]{(float) Math.cos(theta), (float) Math.sin(theta), (float) thetaDot});
+        }
+
+        @Override
+        public void render() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -12,7 +12,7 @@ public class SACContinuousTest {
 //        NDManager manager = NDManager.newBaseManager();
 //        Engine.getInstance().setRandomSeed(0);
 //        Pendulum env = new Pendulum();
-//        SACContinuous<BoxState> algorithm = new SACContinuous<>(manager, env);
+//        SACContinuous<BoxState> algorithm = new SACContinuous<>(manager, env, true);
 //        env.seed(0);
 //        new Runner<>(env, algorithm)
 //                .mainLoop();
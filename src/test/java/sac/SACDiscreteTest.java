@@ -12,7 +12,7 @@ public class SACDiscreteTest {
 //        NDManager manager = NDManager.newBaseManager();
 //        Engine.getInstance().setRandomSeed(0);
 //        CartPole env = new CartPole(false);
-//        SACDiscrete<BoxState> algorithm = new SACDiscrete<>(manager, env);
+//        SACDiscrete<BoxState> algorithm = new SACDiscrete<>(manager, env, true);
 //        env.seed(0);
 //        new Runner<>(env, algorithm)
 //                .mainLoop();
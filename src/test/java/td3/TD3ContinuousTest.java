@@ -12,7 +12,7 @@ public class TD3ContinuousTest {
 //        NDManager manager = NDManager.newBaseManager();
 //        Engine.getInstance().setRandomSeed(0);
 //        Pendulum env = new Pendulum();
-//        TD3Continuous<BoxState> algorithm = new TD3Continuous<>(manager, env);
+//        TD3Continuous<BoxState> algorithm = new TD3Continuous<>(manager, env, true);
 //        env.seed(0);
 //        new Runner<>(env, algorithm)
 //                .mainLoop();
@@ -0,0 +1,128 @@
+package utils;
+
+import ai.djl.engine.Engine;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import org.junit.Assert;
+import org.junit.Test;
+import utils.CategoricalSampler.Mode;
+
+import java.util.Random;
+
+/**
+ * 离散型动作分布采样器测试类
+ *
+ * @author Caojunqi
+ * @date 2021-12-29 19:00
+ */
+public class CategoricalSamplerTest {
+
+    private static final float[] PROBS = {0.1f, 0.2f, 0, 0.3f, 0.4f};
+    private static final int ROWS = 40000;
+    /**
+     * 频率允许的偏差，约为标准差的6倍
+     */
+    private static final double TOLERANCE = 0.015;
+
+    @Test
+    public void testInverseCdfMatchesElementwisePath() {
+        Random random = new Random(0);
+        float[] probs = new float[64 * PROBS.length];
+        for (int i = 0; i < probs.length; i++) {
+            probs[i] = random.nextFloat();
+        }
+        // 逐行归一化
+        for (int row = 0; row < 64; row++) {
+            float sum = 0;
+            for (int j = 0; j < PROBS.length; j++) {
+                sum += probs[row * PROBS.length + j];
+            }
+            for (int j = 0; j < PROBS.length; j++) {
+                probs[row * PROBS.length + j] /= sum;
+            }
+        }
+        try (NDManager manager = NDManager.newBaseManager()) {
+            NDArray distribution = manager.create(probs, new Shape(64, PROBS.length));
+            int[] expected = elementwise(distribution, new Random(7));
+            int[] actual = CategoricalSampler.sample(manager, distribution, new Random(7), Mode.INVERSE_CDF).toIntArray();
+            Assert.assertArrayEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void testHostModesFollowDistribution() {
+        float[] probs = new float[ROWS * PROBS.length];
+        for (int i = 0; i < ROWS; i++) {
+            System.arraycopy(PROBS, 0, probs, i * PROBS.length, PROBS.length);
+        }
+        for (Mode mode : Mode.values()) {
+            int[] actions = CategoricalSampler.sample(probs, ROWS, PROBS.length, new Random(1), mode);
+            assertFrequencies(mode, actions);
+        }
+    }
+
+    @Test
+    public void testEngineGumbelFollowsDistribution() {
+        Engine.getInstance().setRandomSeed(0);
+        try (NDManager manager = NDManager.newBaseManager()) {
+            NDArray distribution = manager.create(PROBS).broadcast(new Shape(ROWS, PROBS.length));
+            NDArray actions = CategoricalSampler.sample(manager, distribution, null, Mode.GUMBEL);
+            Assert.assertEquals(DataType.INT32, actions.getDataType());
+            assertFrequencies(Mode.GUMBEL, actions.toIntArray());
+        }
+    }
+
+    @Test
+    public void testBatchShapeAndRoundingFallback() {
+        try (NDManager manager = NDManager.newBaseManager()) {
+            NDArray distribution = manager.create(PROBS).broadcast(new Shape(2, 3, PROBS.length));
+            NDArray actions = CategoricalSampler.sample(manager, distribution, new Random(0), Mode.INVERSE_CDF);
+            Assert.assertEquals(new Shape(2, 3), actions.getShape());
+            Assert.assertEquals(DataType.INT32, actions.getDataType());
+        }
+        // 累积概率略小于1且随机数落在末尾时，取最后一个概率不为0的动作
+        Random alwaysOne = new Random() {
+            @Override
+            public float nextFloat() {
+                return 1;
+            }
+        };
+        int[] actions = CategoricalSampler.sample(new float[]{0.5f, 0.49f, 0}, 1, 3, alwaysOne, Mode.INVERSE_CDF);
+        Assert.assertEquals(1, actions[0]);
+    }
+
+    private static void assertFrequencies(Mode mode, int[] actions) {
+        int[] counts = new int[PROBS.length];
+        for (int action : actions) {
+            counts[action]++;
+        }
+        for (int j = 0; j < PROBS.length; j++) {
+            Assert.assertEquals(mode + "采样下动作[" + j + "]的频率", PROBS[j], counts[j] / (double) actions.length, TOLERANCE);
+        }
+        Assert.assertEquals(mode + "采样选中了概率为0的动作", 0, counts[2]);
+    }
+
+    /**
+     * 逐元素读取概率的原有实现
+     */
+    private static int[] elementwise(NDArray distribution, Random random) {
+        int rows = (int) distribution.getShape().get(0);
+        int actionSize = (int) distribution.getShape().get(1);
+        int[] actions = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            float rnd = random.nextFloat();
+            actions[i] = actionSize - 1;
+            for (int j = 0; j < actionSize; j++) {
+                float cut = distribution.getFloat(i, j);
+                if (rnd <= cut) {
+                    actions[i] = j;
+                    break;
+                }
+                rnd -= cut;
+            }
+        }
+        return actions;
+    }
+}
@@ -0,0 +1,68 @@
+package utils;
+
+import ai.djl.engine.Engine;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.training.GradientCollector;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 通用工具类测试类
+ *
+ * @author Caojunqi
+ * @date 2021-12-29 10:30
+ */
+public class HelperTest {
+
+    @Test
+    public void testMulKeepsScalarUntilBackward() {
+        try (NDManager manager = NDManager.newBaseManager()) {
+            for (int i = 0; i < 10; i++) {
+                try (NDManager subManager = manager.newSubManager()) {
+                    NDArray weight = subManager.create(new float[]{1, 2, 3});
+                    weight.setRequiresGradient(true);
+                    NDArray loss = Helper.mul(weight, 2).square().sum();
+                    // 前向计算与反向传播之间发生GC，并用NaN填满新分配的堆外内存
+                    churnDirectMemory();
+                    try (GradientCollector collector = Engine.getInstance().newGradientCollector()) {
+                        collector.backward(loss);
+                    }
+                    // d(4w^2)/dw = 8w
+                    Assert.assertArrayEquals(new float[]{8, 16, 24}, weight.getGradient().toFloatArray(), 1e-6f);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testClipParameterInPlace() {
+        try (NDManager manager = NDManager.newBaseManager()) {
+            NDArray param = manager.create(new float[]{-5, 0.5f, 5});
+            param.setRequiresGradient(true);
+            try (NDManager subManager = manager.newSubManager()) {
+                Helper.clipParameter(param, -1, 1, subManager);
+            }
+            Assert.assertArrayEquals(new float[]{-1, 0.5f, 1}, param.toFloatArray(), 0);
+            // 截断后仍可正常求导
+            try (GradientCollector collector = Engine.getInstance().newGradientCollector()) {
+                collector.backward(param.square().sum());
+            }
+            Assert.assertArrayEquals(new float[]{-2, 1, 2}, param.getGradient().toFloatArray(), 1e-6f);
+        }
+    }
+
+    private static void churnDirectMemory() {
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer[] buffers = new ByteBuffer[2000];
+            for (int j = 0; j < buffers.length; j++) {
+                buffers[j] = ByteBuffer.allocateDirect(4).order(ByteOrder.nativeOrder());
+                buffers[j].putFloat(0, Float.NaN);
+            }
+            System.gc();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package utils;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import env.action.core.impl.BoxAction;
+import env.action.core.impl.DiscreteAction;
+import env.state.core.impl.BoxState;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 内存映射经验回放缓存测试类
+ *
+ * @author Caojunqi
+ * @date 2021-12-29 15:40
+ */
+public class MappedMemoryTest {
+
+    private static final float DELTA = 1e-6f;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSampleMatchesReplayMemory() throws IOException {
+        File file = folder.newFile("replay.bin");
+        try (NDManager manager = NDManager.newBaseManager();
+             ReplayMemory<BoxState, BoxAction> replay = new ReplayMemory<>(manager, 8);
+             MappedMemory<BoxState, BoxAction> mapped = new MappedMemory<>(manager, file, 8)) {
+            for (int start : new int[]{0, 10, 20}) {
+                addEpisode(replay, start, 3);
+                addEpisode(mapped, start, 3);
+                // 尚未sync时返回本轮新写入的样本，与暂存区中的样本一致
+                assertBatchEquals(replayPending(replay, manager), mapped.sample(manager));
+                replay.sync();
+                mapped.sync();
+            }
+            Assert.assertEquals(replay.getStoredSize(), mapped.getStoredSize());
+            Assert.assertEquals(replay.getNextIndex(), mapped.getNextIndex());
+            assertBatchEquals(replay.sample(manager), mapped.sample(manager, allIndex(mapped)));
+        }
+    }
+
+    @Test
+    public void testOpenRoundTrip() throws IOException {
+        File file = folder.newFile("replay.bin");
+        try (NDManager manager = NDManager.newBaseManager()) {
+            int[] index;
+            float[][] expected;
+            try (MappedMemory<BoxState, BoxAction> mapped = new MappedMemory<>(manager, file, 8)) {
+                addEpisode(mapped, 0, 5);
+                mapped.sync();
+                addEpisode(mapped, 10, 5);
+                mapped.sync();
+                // 未sync的样本不会保留，被其覆盖的最旧样本也随之淘汰
+                addEpisode(mapped, 100, 2);
+                index = allIndex(mapped);
+                Assert.assertEquals(5, index.length);
+                expected = toFloatArrays(mapped.sample(manager, index));
+            }
+            try (MappedMemory<BoxState, BoxAction> reopened = MappedMemory.open(manager, file)) {
+                Assert.assertEquals(index.length, reopened.getStoredSize());
+                Assert.assertEquals(0, reopened.getSize());
+                float[][] actual = toFloatArrays(reopened.sample(manager, index));
+                for (int i = 0; i < expected.length; i++) {
+                    Assert.assertArrayEquals(expected[i], actual[i], DELTA);
+                }
+                // 重新打开后可继续追加
+                addEpisode(reopened, 30, 1);
+                Assert.assertEquals(1, reopened.sync());
+                Assert.assertEquals(30, reopened.sample(manager, new int[]{(reopened.getNextIndex() + 7) % 8}).getStates().getFloat(0, 0), DELTA);
+            }
+        }
+    }
+
+    @Test
+    public void testDiscreteActionRoundTrip() throws IOException {
+        File file = folder.newFile("replay.bin");
+        try (NDManager manager = NDManager.newBaseManager()) {
+            try (MappedMemory<BoxState, DiscreteAction> mapped = new MappedMemory<>(manager, file, 4)) {
+                for (int i = 0; i < 3; i++) {
+                    mapped.addTransition(new BoxState(new float[]{i, -i}), new DiscreteAction(i), i == 2, new BoxState(new float[]{i + 1, -i - 1}), i);
+                }
+                mapped.sync();
+            }
+            try (MappedMemory<BoxState, DiscreteAction> reopened = MappedMemory.open(manager, file)) {
+                MemoryBatch batch = reopened.sample(manager, new int[]{0, 1, 2});
+                Assert.assertArrayEquals(new float[]{0, 0, 1, -1, 2, -2}, batch.getStates().toFloatArray(), DELTA);
+                Assert.assertArrayEquals(new float[]{0, 1, 2}, toFloats(batch.getActions()), DELTA);
+                Assert.assertArrayEquals(new float[]{0, 0, 1}, toFloats(batch.getMasks()), DELTA);
+                Assert.assertArrayEquals(new float[]{1, -1, 2, -2, 3, -3}, batch.getNextStates().toFloatArray(), DELTA);
+            }
+        }
+    }
+
+    /**
+     * 从旧到新排列的全部有效样本的索引，未sync时为本轮新写入的样本
+     */
+    private static int[] allIndex(ReplayMemory<BoxState, ?> memory) {
+        int stored = memory.getStoredSize();
+        int capacity = memory.getCapacity();
+        int[] index = new int[stored];
+        for (int i = 0; i < stored; i++) {
+            index[i] = (memory.getNextIndex() - stored + i + capacity) % capacity;
+        }
+        return index;
+    }
+
+    /**
+     * 按{@link Memory#sample}的方式构建暂存区中尚未sync的样本
+     */
+    private static MemoryBatch replayPending(ReplayMemory<BoxState, BoxAction> replay, NDManager manager) {
+        NDArray observations = replay.createObservations(manager);
+        int size = replay.getSize();
+        int[] stateRows = new int[size];
+        int[] nextStateRows = new int[size];
+        for (int i = 0; i < size; i++) {
+            stateRows[i] = replay.getStateRow(i);
+            nextStateRows[i] = replay.getNextStateRow(i);
+        }
+        return new MemoryBatch(MinibatchGather.gatherRows(observations, manager.create(stateRows)), replay.createActions(manager),
+                replay.createMasks(manager), MinibatchGather.gatherRows(observations, manager.create(nextStateRows)), replay.createRewards(manager));
+    }
+
+    private static void assertBatchEquals(MemoryBatch expected, MemoryBatch actual) {
+        float[][] expectedData = toFloatArrays(expected);
+        float[][] actualData = toFloatArrays(actual);
+        for (int i = 0; i < expectedData.length; i++) {
+            Assert.assertArrayEquals(expectedData[i], actualData[i], DELTA);
+        }
+    }
+
+    private static float[][] toFloatArrays(MemoryBatch batch) {
+        float[][] data = new float[batch.size()][];
+        for (int i = 0; i < batch.size(); i++) {
+            data[i] = toFloats(batch.get(i));
+        }
+        return data;
+    }
+
+    private static float[] toFloats(NDArray array) {
+        return array.toType(DataType.FLOAT32, false).toFloatArray();
+    }
+
+    /**
+     * 添加一幕样本，第i步的state、action、reward均为start+i，nextState为start+i+1
+     */
+    private static void addEpisode(Memory<BoxState, BoxAction> memory, int start, int length) {
+        for (int i = start; i < start + length; i++) {
+            memory.addTransition(new BoxState(new float[]{i}), new BoxAction(new float[]{i}), i == start + length - 1, new BoxState(new float[]{i + 1}), i);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package utils;
+
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import env.action.core.impl.BoxAction;
+import env.state.core.impl.BoxState;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * 经验回放缓存快照测试类
+ *
+ * @author Caojunqi
+ * @date 2021-12-29 16:20
+ */
+public class MemorySnapshotTest {
+
+    private static final float DELTA = 1e-6f;
+    private static final int CAPACITY = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testIncrementalWriteAndRestore() throws IOException, ExecutionException, InterruptedException {
+        File file = folder.newFile("snapshot.bin");
+        try (NDManager manager = NDManager.newBaseManager();
+             ReplayMemory<BoxState, BoxAction> source = new ReplayMemory<>(manager, CAPACITY);
+             ReplayMemory<BoxState, BoxAction> target = new ReplayMemory<>(manager, CAPACITY)) {
+            try (MemorySnapshot snapshot = new MemorySnapshot(file)) {
+                addEpisode(source, 0, 6);
+                source.sync();
+                snapshot.write(source).get();
+                // 第二次只写入新增数据，样本缓冲区发生回绕
+                addEpisode(source, 10, 4);
+                source.sync();
+                snapshot.write(source).get();
+            }
+            MemorySnapshot.restore(file, target);
+            assertSameSamples(source, target, manager);
+        }
+    }
+
+    @Test
+    public void testResumeKeepsSnapshot() throws IOException, ExecutionException, InterruptedException {
+        File file = folder.newFile("snapshot.bin");
+        try (NDManager manager = NDManager.newBaseManager();
+             ReplayMemory<BoxState, BoxAction> source = new ReplayMemory<>(manager, CAPACITY);
+             ReplayMemory<BoxState, BoxAction> resumed = new ReplayMemory<>(manager, CAPACITY);
+             ReplayMemory<BoxState, BoxAction> restored = new ReplayMemory<>(manager, CAPACITY)) {
+            try (MemorySnapshot snapshot = new MemorySnapshot(file)) {
+                addEpisode(source, 0, 5);
+                source.sync();
+                snapshot.write(source).get();
+            }
+            long length = file.length();
+
+            // 恢复后、首次写入之前关闭，快照文件保持不变
+            MemorySnapshot.resume(file, resumed).close();
+            Assert.assertEquals(length, file.length());
+            assertSameSamples(source, resumed, manager);
+
+            // 恢复后继续增量写入，再次恢复得到完整的样本
+            try (MemorySnapshot snapshot = MemorySnapshot.resume(file, resumed)) {
+                addEpisode(resumed, 20, 2);
+                resumed.sync();
+                snapshot.write(resumed).get();
+            }
+            MemorySnapshot.restore(file, restored);
+            Assert.assertEquals(7, restored.getStoredSize());
+            assertSameSamples(resumed, restored, manager);
+        }
+    }
+
+    private static void assertSameSamples(ReplayMemory<BoxState, BoxAction> expected, ReplayMemory<BoxState, BoxAction> actual, NDManager manager) {
+        Assert.assertEquals(expected.getStoredSize(), actual.getStoredSize());
+        Assert.assertEquals(expected.getNextIndex(), actual.getNextIndex());
+        Assert.assertEquals(expected.getObservationNextIndex(), actual.getObservationNextIndex());
+        MemoryBatch expectedBatch = expected.sample(manager);
+        MemoryBatch actualBatch = actual.sample(manager);
+        for (int i = 0; i < expectedBatch.size(); i++) {
+            Assert.assertArrayEquals(expectedBatch.get(i).toType(DataType.FLOAT32, false).toFloatArray(),
+                    actualBatch.get(i).toType(DataType.FLOAT32, false).toFloatArray(), DELTA);
+        }
+    }
+
+    /**
+     * 添加一幕样本，第i步的state、action、reward均为start+i，nextState为start+i+1
+     */
+    private static void addEpisode(Memory<BoxState, BoxAction> memory, int start, int length) {
+        for (int i = start; i < start + length; i++) {
+            memory.addTransition(new BoxState(new float[]{i}), new BoxAction(new float[]{i}), i == start + length - 1, new BoxState(new float[]{i + 1}), i);
+        }
+    }
+}
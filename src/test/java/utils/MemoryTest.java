@@ -0,0 +1,108 @@
+package utils;
+
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import env.action.core.impl.BoxAction;
+import env.state.core.impl.BoxState;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 样本数据缓存测试类
+ *
+ * @author Caojunqi
+ * @date 2021-12-29 16:50
+ */
+public class MemoryTest {
+
+    private static final float DELTA = 1e-6f;
+
+    @Test
+    public void testObservationsStoredOncePerTrajectory() {
+        try (NDManager manager = NDManager.newBaseManager()) {
+            Memory<BoxState, BoxAction> memory = new Memory<>();
+            add(memory, 0, 0, false);
+            add(memory, 0, 1, false);
+            add(memory, 0, 2, true);
+            add(memory, 0, 10, true);
+            // 两幕共4个样本，只写入3+1+2个观测
+            Assert.assertEquals(6, memory.getObservationSize());
+            MemoryBatch batch = memory.sample(manager);
+            assertBatch(batch, new float[]{0, 1, 2, 10}, new float[]{0, 0, 1, 1});
+            memory.releaseCollectors();
+        }
+    }
+
+    @Test
+    public void testSampleReordersEnvironments() {
+        try (NDManager manager = NDManager.newBaseManager()) {
+            Memory<BoxState, BoxAction> memory = new Memory<>();
+            add(memory, 0, 0, false);
+            add(memory, 1, 100, false);
+            add(memory, 0, 1, true);
+            add(memory, 1, 101, false);
+            add(memory, 1, 102, true);
+            add(memory, 0, 10, false);
+            // 未结束的幕不参与采样，各环境已结束的幕按环境索引连续排列
+            MemoryBatch batch = memory.sample(manager);
+            assertBatch(batch, new float[]{0, 1, 100, 101, 102}, new float[]{0, 1, 0, 0, 1});
+            memory.releaseCollectors();
+        }
+    }
+
+    @Test
+    public void testResetFinishedRenumbersRows() {
+        try (NDManager manager = NDManager.newBaseManager()) {
+            Memory<BoxState, BoxAction> memory = new Memory<>();
+            add(memory, 0, 0, false);
+            add(memory, 1, 100, false);
+            add(memory, 0, 1, true);
+            add(memory, 1, 101, false);
+            add(memory, 0, 10, false);
+            int generation = memory.getGeneration();
+
+            memory.resetFinished();
+            // 保留env1的2个样本、env0的1个样本及其引用的3+2个观测，行号从0重新编号
+            Assert.assertEquals(3, memory.getSize());
+            Assert.assertEquals(5, memory.getObservationSize());
+            Assert.assertNotEquals(generation, memory.getGeneration());
+            for (int i = 0; i < memory.getSize(); i++) {
+                Assert.assertTrue(memory.getStateRow(i) < 5 && memory.getNextStateRow(i) < 5);
+            }
+
+            // 继续添加的样本复用保留下来的最新观测
+            add(memory, 1, 102, true);
+            add(memory, 0, 11, true);
+            Assert.assertEquals(7, memory.getObservationSize());
+            MemoryBatch batch = memory.sample(manager);
+            assertBatch(batch, new float[]{10, 11, 100, 101, 102}, new float[]{0, 1, 0, 0, 1});
+
+            memory.resetFinished();
+            Assert.assertEquals(0, memory.getSize());
+            Assert.assertEquals(0, memory.getObservationSize());
+            memory.releaseCollectors();
+        }
+    }
+
+    /**
+     * 检查states、actions、rewards均为给定值，nextStates为给定值+1
+     */
+    private static void assertBatch(MemoryBatch batch, float[] states, float[] masks) {
+        float[] nextStates = new float[states.length];
+        for (int i = 0; i < states.length; i++) {
+            nextStates[i] = states[i] + 1;
+        }
+        Assert.assertArrayEquals(states, batch.getStates().toFloatArray(), DELTA);
+        Assert.assertArrayEquals(states, batch.getActions().toFloatArray(), DELTA);
+        Assert.assertArrayEquals(masks, batch.getMasks().toType(DataType.FLOAT32, false).toFloatArray(), DELTA);
+        Assert.assertArrayEquals(nextStates, batch.getNextStates().toFloatArray(), DELTA);
+        Assert.assertArrayEquals(states, batch.getRewards().toFloatArray(), DELTA);
+    }
+
+    /**
+     * 添加envIndex环境的一个样本，state、action、reward均为value，nextState为value+1
+     */
+    private static void add(Memory<BoxState, BoxAction> memory, int envIndex, float value, boolean done) {
+        memory.addTransition(envIndex, new BoxState(new float[]{value}), new BoxAction(new float[]{value}), done, new BoxState(new float[]{value + 1}), value);
+    }
+}
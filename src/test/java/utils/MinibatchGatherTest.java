@@ -0,0 +1,96 @@
+package utils;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDArrays;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * 小批量样本抽取测试类
+ *
+ * @author Caojunqi
+ * @date 2021-12-29 17:20
+ */
+public class MinibatchGatherTest {
+
+    private static final int ROWS = 12;
+
+    @Test
+    public void testGatherMatchesRowLoop() {
+        Random random = new Random(0);
+        int[] index = new int[20];
+        for (int i = 0; i < index.length; i++) {
+            // 有放回抽取，包含重复行
+            index[i] = random.nextInt(ROWS);
+        }
+        try (NDManager manager = NDManager.newBaseManager()) {
+            MinibatchGather gather = new MinibatchGather(manager, index);
+            NDArray[] arrays = {
+                    manager.arange(ROWS).toType(DataType.FLOAT32, false),
+                    manager.randomUniform(0, 1, new Shape(ROWS, 3)),
+                    manager.randomUniform(0, 1, new Shape(ROWS, 2, 4)),
+                    manager.arange(ROWS * 2).reshape(ROWS, 2).toType(DataType.INT32, false)
+            };
+            for (NDArray array : arrays) {
+                NDArray expected = rowLoop(array, index);
+                NDArray actual = gather.gather(array);
+                Assert.assertEquals(expected.getShape(), actual.getShape());
+                Assert.assertEquals(array.getDataType(), actual.getDataType());
+                Assert.assertEquals(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testShuffledBatchesCoverEachEpoch() {
+        int batchSize = 5;
+        int epochs = 2;
+        try (NDManager manager = NDManager.newBaseManager()) {
+            NDArray rows = manager.arange(ROWS).toType(DataType.FLOAT32, false);
+            NDArray pairs = manager.arange(ROWS * 2).reshape(ROWS, 2).toType(DataType.FLOAT32, false);
+            try (MinibatchPrefetcher prefetcher = MinibatchPrefetcher.shuffled(manager, new NDList(rows, pairs), batchSize, epochs, 0)) {
+                for (int epoch = 0; epoch < epochs; epoch++) {
+                    boolean[] seen = new boolean[ROWS];
+                    // 每轮3批，大小依次为5、5、2
+                    for (int batch = 0; batch < 3; batch++) {
+                        try (MinibatchPrefetcher.Minibatch minibatch = prefetcher.next()) {
+                            int[] index = minibatch.getIndex();
+                            Assert.assertEquals(batch < 2 ? batchSize : ROWS - 2 * batchSize, index.length);
+                            float[] rowData = minibatch.get(0).toFloatArray();
+                            float[] pairData = minibatch.get(1).toFloatArray();
+                            for (int i = 0; i < index.length; i++) {
+                                Assert.assertFalse(seen[index[i]]);
+                                seen[index[i]] = true;
+                                // 抽取的数据与行索引一一对应
+                                Assert.assertEquals(index[i], rowData[i], 0);
+                                Assert.assertEquals(index[i] * 2, pairData[i * 2], 0);
+                                Assert.assertEquals(index[i] * 2 + 1, pairData[i * 2 + 1], 0);
+                            }
+                        }
+                    }
+                    for (boolean value : seen) {
+                        Assert.assertTrue(value);
+                    }
+                }
+                Assert.assertFalse(prefetcher.hasNext());
+            }
+        }
+    }
+
+    /**
+     * 逐行拷贝的抽取方式
+     */
+    private static NDArray rowLoop(NDArray array, int[] index) {
+        NDList rows = new NDList(index.length);
+        for (int i : index) {
+            rows.add(array.get(i));
+        }
+        return NDArrays.stack(rows);
+    }
+}
@@ -0,0 +1,202 @@
+package utils;
+
+import env.action.core.impl.BoxAction;
+import env.state.core.impl.BoxState;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * N步回报累加器测试类
+ *
+ * @author Caojunqi
+ * @date 2021-12-28 15:20
+ */
+public class NStepAccumulatorTest {
+
+    private static final float GAMMA = 0.9f;
+    private static final float DELTA = 1e-6f;
+
+    @Test
+    public void testNStepReward() {
+        RecordingMemory memory = new RecordingMemory();
+        NStepAccumulator<BoxState, BoxAction> accumulator = new NStepAccumulator<>(3, GAMMA, memory);
+        accumulator.add(0, state(0), action(0), false, state(1), 1);
+        accumulator.add(0, state(1), action(1), false, state(2), 2);
+        Assert.assertEquals(0, memory.records.size());
+
+        accumulator.add(0, state(2), action(2), false, state(3), 4);
+        Assert.assertEquals(1, memory.records.size());
+        assertRecord(memory.records.get(0), 0, 3, false, 1 + GAMMA * 2 + GAMMA * GAMMA * 4);
+
+        accumulator.add(0, state(3), action(3), false, state(4), 8);
+        Assert.assertEquals(2, memory.records.size());
+        assertRecord(memory.records.get(1), 1, 4, false, 2 + GAMMA * 4 + GAMMA * GAMMA * 8);
+    }
+
+    @Test
+    public void testBootstrapDiscount() {
+        Assert.assertEquals(1, NStepAccumulator.bootstrapDiscount(GAMMA, 0), DELTA);
+        Assert.assertEquals(GAMMA, NStepAccumulator.bootstrapDiscount(GAMMA, 1), DELTA);
+        Assert.assertEquals(GAMMA * GAMMA * GAMMA, NStepAccumulator.bootstrapDiscount(GAMMA, 3), DELTA);
+
+        // N步目标值与逐步展开的单步目标值一致：r0 + γr1 + γ^2r2 + γ^3·V(s3)
+        RecordingMemory memory = new RecordingMemory();
+        NStepAccumulator<BoxState, BoxAction> accumulator = new NStepAccumulator<>(3, GAMMA, memory);
+        float[] rewards = {1, 2, 4};
+        for (int i = 0; i < rewards.length; i++) {
+            accumulator.add(0, state(i), action(i), false, state(i + 1), rewards[i]);
+        }
+        float nextValue = 10;
+        double target = memory.records.get(0).reward + NStepAccumulator.bootstrapDiscount(GAMMA, 3) * nextValue;
+        double expected = rewards[0] + GAMMA * (rewards[1] + GAMMA * (rewards[2] + GAMMA * nextValue));
+        Assert.assertEquals(expected, target, 1e-4);
+    }
+
+    @Test
+    public void testEpisodeEndFlush() {
+        RecordingMemory memory = new RecordingMemory();
+        NStepAccumulator<BoxState, BoxAction> accumulator = new NStepAccumulator<>(3, GAMMA, memory);
+        accumulator.add(0, state(0), action(0), false, state(1), 1);
+        accumulator.add(0, state(1), action(1), true, state(2), 2);
+
+        // 幕结束时剩余步骤全部以终止状态输出，回报只累加到幕结束为止
+        Assert.assertEquals(2, memory.records.size());
+        assertRecord(memory.records.get(0), 0, 2, true, 1 + GAMMA * 2);
+        assertRecord(memory.records.get(1), 1, 2, true, 2);
+
+        // 下一幕从空队列开始
+        accumulator.add(0, state(5), action(5), true, state(6), 3);
+        Assert.assertEquals(3, memory.records.size());
+        assertRecord(memory.records.get(2), 5, 6, true, 3);
+    }
+
+    @Test
+    public void testEnvironmentsAreIndependent() {
+        RecordingMemory memory = new RecordingMemory();
+        NStepAccumulator<BoxState, BoxAction> accumulator = new NStepAccumulator<>(2, GAMMA, memory);
+        accumulator.add(0, state(0), action(0), false, state(1), 1);
+        accumulator.add(1, state(10), action(10), false, state(11), 5);
+        Assert.assertEquals(0, memory.records.size());
+
+        accumulator.add(1, state(11), action(11), false, state(12), 6);
+        Assert.assertEquals(1, memory.records.size());
+        assertRecord(memory.records.get(0), 10, 12, false, 5 + GAMMA * 6);
+
+        accumulator.reset();
+        accumulator.add(0, state(20), action(20), true, state(21), 7);
+        Assert.assertEquals(2, memory.records.size());
+        assertRecord(memory.records.get(1), 20, 21, true, 7);
+    }
+
+    @Test
+    public void testObservationsWrittenOnce() {
+        RecordingMemory memory = new RecordingMemory();
+        NStepAccumulator<BoxState, BoxAction> accumulator = new NStepAccumulator<>(2, GAMMA, memory);
+        for (int i = 0; i < 4; i++) {
+            accumulator.add(0, state(i), action(i), i == 3, state(i + 1), 1);
+        }
+        // 4步的一幕只写入5个观测
+        Assert.assertEquals(5, memory.observations.size());
+        Assert.assertEquals(4, memory.records.size());
+        assertRecord(memory.records.get(0), 0, 2, false, 1 + GAMMA);
+    }
+
+    @Test
+    public void testRowsRefreshedAfterReset() {
+        RecordingMemory memory = new RecordingMemory();
+        NStepAccumulator<BoxState, BoxAction> accumulator = new NStepAccumulator<>(3, GAMMA, memory);
+        accumulator.add(0, state(0), action(0), false, state(1), 1);
+        accumulator.add(0, state(1), action(1), false, state(2), 2);
+
+        // 暂存区清空后观测行号失效，尚未输出的步骤重新写入state
+        memory.reset();
+        accumulator.add(0, state(2), action(2), false, state(3), 4);
+        Assert.assertEquals(1, memory.records.size());
+        assertRecord(memory.records.get(0), 0, 3, false, 1 + GAMMA * 2 + GAMMA * GAMMA * 4);
+        Assert.assertEquals(4, memory.observations.size());
+    }
+
+    @Test
+    public void testPendingStatesReadBackBeforeReset() {
+        Memory<BoxState, BoxAction> memory = new Memory<>();
+        NStepAccumulator<BoxState, BoxAction> accumulator = new NStepAccumulator<>(3, GAMMA, memory);
+        // 调用方复用同一个state对象，队列不持有该对象，重新写入的state来自缓存中的观测
+        float[] data = new float[]{0};
+        BoxState state = new BoxState(data);
+        accumulator.add(0, state, action(0), false, state(1), 1);
+        data[0] = 1;
+        accumulator.add(0, state, action(1), false, state(2), 2);
+        data[0] = -1;
+
+        memory.reset();
+        accumulator.add(0, state(2), action(2), false, state(3), 4);
+        Assert.assertEquals(1, memory.getSize());
+        Assert.assertEquals(0, memory.getObservation(memory.getStateRow(0)).getStateData()[0], DELTA);
+        Assert.assertEquals(3, memory.getObservation(memory.getNextStateRow(0)).getStateData()[0], DELTA);
+    }
+
+    private static void assertRecord(Record record, float state, float nextState, boolean done, float reward) {
+        Assert.assertEquals(state, record.state.getStateData()[0], DELTA);
+        Assert.assertEquals(state, record.action.getActionData()[0], DELTA);
+        Assert.assertEquals(nextState, record.nextState.getStateData()[0], DELTA);
+        Assert.assertEquals(done, record.done);
+        Assert.assertEquals(reward, record.reward, DELTA);
+    }
+
+    private static BoxState state(float value) {
+        return new BoxState(new float[]{value});
+    }
+
+    private static BoxAction action(float value) {
+        return new BoxAction(new float[]{value});
+    }
+
+    /**
+     * 只记录写入的观测及输出样本的样本缓存
+     */
+    private static class RecordingMemory extends Memory<BoxState, BoxAction> {
+        private final List<BoxState> observations = new ArrayList<>();
+        private final List<Record> records = new ArrayList<>();
+
+        @Override
+        public int addObservation(BoxState state) {
+            observations.add(state.clone());
+            return observations.size() - 1;
+        }
+
+        @Override
+        public void addTransition(int stateRow, BoxAction action, boolean done, int nextStateRow, float reward) {
+            records.add(new Record(observations.get(stateRow), action, done, observations.get(nextStateRow), reward));
+        }
+
+        @Override
+        BoxState getObservation(int row) {
+            return observations.get(row).clone();
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            observations.clear();
+        }
+    }
+
+    private static class Record {
+        private final BoxState state;
+        private final BoxAction action;
+        private final boolean done;
+        private final BoxState nextState;
+        private final float reward;
+
+        Record(BoxState state, BoxAction action, boolean done, BoxState nextState, float reward) {
+            this.state = state;
+            this.action = action;
+            this.done = done;
+            this.nextState = nextState;
+            this.reward = reward;
+        }
+    }
+}
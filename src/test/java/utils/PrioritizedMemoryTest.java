@@ -0,0 +1,100 @@
+package utils;
+
+import ai.djl.ndarray.NDManager;
+import algorithm.CommonParameter;
+import env.action.core.impl.BoxAction;
+import env.state.core.impl.BoxState;
+import org.junit.Assert;
+import org.junit.Test;
+import utils.datatype.PrioritizedSample;
+
+/**
+ * 优先经验回放缓存测试类
+ *
+ * @author Caojunqi
+ * @date 2021-12-29 14:10
+ */
+public class PrioritizedMemoryTest {
+
+    private static final float DELTA = 1e-5f;
+    private static final float[] TD_ERRORS = {0, 1, 3, 7};
+
+    @Test
+    public void testImportanceSamplingWeights() {
+        try (NDManager manager = NDManager.newBaseManager();
+             PrioritizedMemory<BoxState, BoxAction> memory = createMemory(manager)) {
+            double[] priorities = priorities();
+            double total = 0;
+            for (double priority : priorities) {
+                total += priority;
+            }
+            int batchSize = 64;
+            PrioritizedSample sample = memory.samplePrioritized(batchSize);
+            double maxWeight = 0;
+            for (int index : sample.getIndex()) {
+                maxWeight = Math.max(maxWeight, Math.pow(TD_ERRORS.length * priorities[index] / total, -CommonParameter.PRIORITY_BETA));
+            }
+            // w_i = (N * P(i))^-β / max_j w_j
+            for (int i = 0; i < batchSize; i++) {
+                int index = sample.getIndex()[i];
+                double expected = Math.pow(TD_ERRORS.length * priorities[index] / total, -CommonParameter.PRIORITY_BETA) / maxWeight;
+                Assert.assertEquals(expected, sample.getWeights()[i], DELTA);
+            }
+        }
+    }
+
+    @Test
+    public void testSampleFrequencyFollowsPriority() {
+        try (NDManager manager = NDManager.newBaseManager();
+             PrioritizedMemory<BoxState, BoxAction> memory = createMemory(manager)) {
+            double[] priorities = priorities();
+            double total = 0;
+            for (double priority : priorities) {
+                total += priority;
+            }
+            int batchSize = 10000;
+            int[] counts = new int[TD_ERRORS.length];
+            for (int index : memory.samplePrioritized(batchSize).getIndex()) {
+                counts[index]++;
+            }
+            // 分层采样下各样本被采中的次数与其优先级占比的偏差不超过1个分段
+            for (int i = 0; i < counts.length; i++) {
+                Assert.assertEquals(batchSize * priorities[i] / total, counts[i], 1.0001);
+            }
+        }
+    }
+
+    @Test
+    public void testEvictedSampleNeverDrawn() {
+        try (NDManager manager = NDManager.newBaseManager();
+             PrioritizedMemory<BoxState, BoxAction> memory = createMemory(manager)) {
+            memory.evicted(3, 1);
+            PrioritizedSample sample = memory.samplePrioritized(1000);
+            for (int i = 0; i < sample.getIndex().length; i++) {
+                Assert.assertNotEquals(3, sample.getIndex()[i]);
+                Assert.assertTrue(Float.isFinite(sample.getWeights()[i]) && sample.getWeights()[i] > 0);
+            }
+        }
+    }
+
+    /**
+     * 写入一幕4个样本，并按{@link #TD_ERRORS}设置优先级
+     */
+    private static PrioritizedMemory<BoxState, BoxAction> createMemory(NDManager manager) {
+        PrioritizedMemory<BoxState, BoxAction> memory = new PrioritizedMemory<>(manager, 8);
+        for (int i = 0; i < TD_ERRORS.length; i++) {
+            memory.addTransition(new BoxState(new float[]{i}), new BoxAction(new float[]{i}), i == TD_ERRORS.length - 1, new BoxState(new float[]{i + 1}), i);
+        }
+        Assert.assertEquals(TD_ERRORS.length, memory.sync());
+        memory.updatePriorities(new int[]{0, 1, 2, 3}, TD_ERRORS);
+        return memory;
+    }
+
+    private static double[] priorities() {
+        double[] priorities = new double[TD_ERRORS.length];
+        for (int i = 0; i < TD_ERRORS.length; i++) {
+            priorities[i] = Math.pow(Math.abs(TD_ERRORS[i]) + CommonParameter.PRIORITY_EPS, CommonParameter.PRIORITY_ALPHA);
+        }
+        return priorities;
+    }
+}
@@ -0,0 +1,97 @@
+package utils;
+
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import env.action.core.impl.BoxAction;
+import env.state.core.impl.BoxState;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 持久化经验回放缓存测试类
+ *
+ * @author Caojunqi
+ * @date 2021-12-29 15:00
+ */
+public class ReplayMemoryTest {
+
+    private static final float DELTA = 1e-6f;
+
+    @Test
+    public void testSyncMatchesMemorySample() {
+        try (NDManager manager = NDManager.newBaseManager();
+             ReplayMemory<BoxState, BoxAction> replay = new ReplayMemory<>(manager, 16)) {
+            Memory<BoxState, BoxAction> memory = new Memory<>();
+            addEpisode(replay, 0, 5);
+            addEpisode(memory, 0, 5);
+            MemoryBatch expected = memory.sample(manager);
+
+            Assert.assertEquals(5, replay.sync());
+            Assert.assertEquals(0, replay.getSize());
+            Assert.assertEquals(5, replay.getStoredSize());
+            MemoryBatch actual = replay.sample(manager);
+            for (int i = 0; i < expected.size(); i++) {
+                Assert.assertArrayEquals(expected.get(i).toType(DataType.FLOAT32, false).toFloatArray(),
+                        actual.get(i).toType(DataType.FLOAT32, false).toFloatArray(), DELTA);
+            }
+            memory.releaseCollectors();
+        }
+    }
+
+    @Test
+    public void testRingWraparound() {
+        try (NDManager manager = NDManager.newBaseManager();
+             ReplayMemory<BoxState, BoxAction> replay = new ReplayMemory<>(manager, 8)) {
+            // 样本容量8，观测容量10
+            Assert.assertEquals(10, replay.getObservationCapacity());
+            addEpisode(replay, 0, 6);
+            replay.sync();
+            // 第二幕写入5个观测，覆盖最旧的2个观测，引用它们的前2个样本被提前淘汰；新样本从位置6写到位置1
+            addEpisode(replay, 10, 4);
+            replay.sync();
+            Assert.assertEquals(8, replay.getStoredSize());
+            Assert.assertEquals(2, replay.getNextIndex());
+
+            MemoryBatch batch = replay.sample(manager);
+            float[] states = {2, 3, 4, 5, 10, 11, 12, 13};
+            float[] masks = {0, 0, 0, 1, 0, 0, 0, 1};
+            float[] nextStates = new float[states.length];
+            for (int i = 0; i < states.length; i++) {
+                nextStates[i] = states[i] + 1;
+            }
+            Assert.assertArrayEquals(states, batch.getStates().toFloatArray(), DELTA);
+            Assert.assertArrayEquals(states, batch.getActions().toFloatArray(), DELTA);
+            Assert.assertArrayEquals(masks, batch.getMasks().toType(DataType.FLOAT32, false).toFloatArray(), DELTA);
+            Assert.assertArrayEquals(nextStates, batch.getNextStates().toFloatArray(), DELTA);
+            Assert.assertArrayEquals(states, batch.getRewards().toFloatArray(), DELTA);
+
+            // 均匀采样只会抽到有效样本
+            for (int index : replay.sampleIndex(256)) {
+                Assert.assertTrue(index >= 0 && index < 8);
+            }
+        }
+    }
+
+    @Test
+    public void testSyncKeepsNewestWhenOverCapacity() {
+        try (NDManager manager = NDManager.newBaseManager();
+             ReplayMemory<BoxState, BoxAction> replay = new ReplayMemory<>(manager, 4)) {
+            addEpisode(replay, 0, 6);
+            Assert.assertEquals(6, replay.sync());
+            Assert.assertEquals(4, replay.getStoredSize());
+            Assert.assertArrayEquals(new float[]{2, 3, 4, 5}, replay.sample(manager).getStates().toFloatArray(), DELTA);
+
+            replay.clear();
+            Assert.assertEquals(0, replay.getStoredSize());
+        }
+    }
+
+    /**
+     * 添加一幕样本，第i步的state、action、reward均为start+i，nextState为start+i+1
+     */
+    private static void addEpisode(Memory<BoxState, BoxAction> memory, int start, int length) {
+        for (int i = start; i < start + length; i++) {
+            memory.addTransition(new BoxState(new float[]{i}), new BoxAction(new float[]{i}), i == start + length - 1, new BoxState(new float[]{i + 1}), i);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 求和树测试类
+ *
+ * @author Caojunqi
+ * @date 2021-12-29 14:10
+ */
+public class SumTreeTest {
+
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void testTotalAndFind() {
+        SumTree tree = new SumTree(4);
+        double[] priorities = {1, 2, 3, 4};
+        for (int i = 0; i < priorities.length; i++) {
+            tree.set(i, priorities[i]);
+        }
+        Assert.assertEquals(10, tree.total(), DELTA);
+
+        // 前缀和区间依次为[0,1) [1,3) [3,6) [6,10)
+        Assert.assertEquals(0, tree.find(0));
+        Assert.assertEquals(0, tree.find(0.999));
+        Assert.assertEquals(1, tree.find(1));
+        Assert.assertEquals(1, tree.find(2.5));
+        Assert.assertEquals(2, tree.find(3));
+        Assert.assertEquals(3, tree.find(6));
+        Assert.assertEquals(3, tree.find(9.999));
+
+        tree.set(1, 0);
+        Assert.assertEquals(8, tree.total(), DELTA);
+        // 优先级为0的样本不会被查找到
+        Assert.assertEquals(2, tree.find(1));
+    }
+
+    @Test
+    public void testGrowKeepsPriorities() {
+        SumTree tree = new SumTree(3);
+        for (int i = 0; i < 3; i++) {
+            tree.set(i, i + 1);
+        }
+        tree.set(9, 10);
+        Assert.assertEquals(10, tree.size());
+        Assert.assertEquals(16, tree.total(), DELTA);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(i + 1, tree.get(i), DELTA);
+        }
+        Assert.assertEquals(9, tree.find(6));
+    }
+
+    @Test
+    public void testFindPastEndClampsToLastSample() {
+        SumTree tree = new SumTree(8);
+        tree.set(0, 1);
+        tree.set(1, 1);
+        // 浮点误差使查找值达到总和时，不会落在未使用的叶子节点上
+        Assert.assertEquals(1, tree.find(tree.total()));
+
+        tree.clear();
+        Assert.assertEquals(0, tree.size());
+        Assert.assertEquals(0, tree.total(), DELTA);
+    }
+}
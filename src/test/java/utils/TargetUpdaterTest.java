@@ -0,0 +1,100 @@
+package utils;
+
+import ai.djl.engine.Engine;
+import ai.djl.ndarray.NDManager;
+import ai.djl.nn.Parameter;
+import ai.djl.util.Pair;
+import algorithm.BaseModel;
+import algorithm.FlatParameters;
+import algorithm.td3.model.ActorModel;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 目标网络参数更新器测试类
+ *
+ * @author Caojunqi
+ * @date 2021-12-29 18:40
+ */
+public class TargetUpdaterTest {
+
+    private static final double TAU = 0.1;
+    private static final float DELTA = 1e-6f;
+
+    @Test
+    public void testSoftUpdate() {
+        Engine.getInstance().setRandomSeed(0);
+        try (NDManager manager = NDManager.newBaseManager()) {
+            ActorModel source = ActorModel.newModel(manager, 3, 2);
+            ActorModel target = ActorModel.newModel(manager, 3, 2);
+            List<float[]> sourceData = parameters(source);
+            List<float[]> targetData = parameters(target);
+            TargetUpdater updater = new TargetUpdater(source, target, TAU, 2);
+
+            // 未达到更新间隔时不更新
+            Assert.assertFalse(updater.step());
+            assertParameters(targetData, parameters(target));
+            Assert.assertTrue(updater.step());
+            assertParameters(polyak(targetData, sourceData), parameters(target));
+            // 源模型不受影响
+            assertParameters(sourceData, parameters(source));
+
+            updater.hardUpdate();
+            assertParameters(sourceData, parameters(target));
+        }
+    }
+
+    @Test
+    public void testFlatSoftUpdate() {
+        Engine.getInstance().setRandomSeed(0);
+        try (NDManager manager = NDManager.newBaseManager()) {
+            ActorModel source = ActorModel.newModel(manager, 3, 2);
+            ActorModel target = ActorModel.newModel(manager, 3, 2);
+            List<float[]> sourceData = parameters(source);
+            List<float[]> targetData = parameters(target);
+            FlatParameters flatSource = source.flattenParameters();
+            FlatParameters flatTarget = target.flattenParameters();
+
+            // 连续存储后各参数视图保持原值，一次向量运算完成全部参数的软更新
+            assertParameters(targetData, parameters(target));
+            flatTarget.softUpdateFrom(flatSource, TAU);
+            assertParameters(polyak(targetData, sourceData), parameters(target));
+
+            flatTarget.copyFrom(flatSource);
+            assertParameters(sourceData, parameters(target));
+        }
+    }
+
+    /**
+     * (1 - tau) * target + tau * source
+     */
+    private static List<float[]> polyak(List<float[]> targetData, List<float[]> sourceData) {
+        List<float[]> expected = new ArrayList<>(targetData.size());
+        for (int i = 0; i < targetData.size(); i++) {
+            float[] value = new float[targetData.get(i).length];
+            for (int j = 0; j < value.length; j++) {
+                value[j] = (float) ((1 - TAU) * targetData.get(i)[j] + TAU * sourceData.get(i)[j]);
+            }
+            expected.add(value);
+        }
+        return expected;
+    }
+
+    private static List<float[]> parameters(BaseModel model) {
+        List<float[]> data = new ArrayList<>();
+        for (Pair<String, Parameter> params : model.getModel().getBlock().getParameters()) {
+            data.add(params.getValue().getArray().toFloatArray());
+        }
+        return data;
+    }
+
+    private static void assertParameters(List<float[]> expected, List<float[]> actual) {
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertArrayEquals(expected.get(i), actual.get(i), DELTA);
+        }
+    }
+}